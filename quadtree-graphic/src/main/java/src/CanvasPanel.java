@@ -131,6 +131,7 @@ public class CanvasPanel extends Canvas implements Runnable {
             @Override
             public void keyReleased(KeyEvent e) {
                 mKeyPressed = -1;
+                mMainScreen.onKeyReleased(e.getKeyCode());
             }
         });
     }
@@ -1,15 +1,23 @@
 package src;
 
 import src.quadtree.DrawableQuadTree;
+import src.quadtree.PointRaster;
 import src.quadtree.core.Neighbour;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
+import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.HashSet;
-import java.util.Random;
+import java.util.Locale;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static src.quadtree.core.QuadTree.TOTAL_X_DEGREES;
 import static src.quadtree.core.QuadTree.TOTAL_Y_DEGREES;
@@ -31,9 +39,20 @@ import static src.quadtree.core.QuadTree.TOTAL_Y_DEGREES;
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
  * See the License for the specific language governing permissions and
  * limitations under the License.
+ *
+ * The screen is ready as soon as it is created, the world map and the points load in the
+ * background and every frame draws whatever is ready. The map decodes in one thread while
+ * the points are generated by the others in batches, each batch is added to the tree with
+ * a single lock. Frames and searches take the same lock, so they wait for one batch at most
+ * and never walk a node while a batch splits it.
  */
 public class MainScreen extends Screen {
 
+    private static final int POINTS_COUNT = 10000000;
+    private static final int POINTS_BATCH_SIZE = 20000;
+
+    private static final int RASTER_SELECTED_COLOR = Color.RED.getRGB();
+
     private final Color COLOR_MENU = new Color(0,0,0,200);
     private final float mScaleDrawToLongitude;
     private final float mScaleDrawToLatitude;
@@ -42,9 +61,11 @@ public class MainScreen extends Screen {
     private int mTranslationX;
     private int mTranslationY;
 
-    private BufferedImage mImageWorldMap;
+    private volatile BufferedImage mImageWorldMap;
     private DrawableQuadTree mQuadTree;
-    private int mNeighboursCount = 0;
+    private final PointRaster mPointRaster;
+    private volatile boolean mIsRasterRendering;
+    private final AtomicInteger mNeighboursCount = new AtomicInteger();
     private Set<Neighbour> mSelectedNeighbours = new HashSet<>();
     private float mZoom;
     private int mMouseX;
@@ -52,6 +73,14 @@ public class MainScreen extends Screen {
     private int mSearchCount = 1;
     private long mSearchTimeTotal = 0;
 
+    /*
+        Startup metrics, in nanoseconds since the screen was created, 0 until they happen
+     */
+    private final long mCreationTime = System.nanoTime();
+    private long mFirstFrameTime;
+    private volatile long mMapLoadedTime;
+    private volatile long mFullyIndexedTime;
+
     public MainScreen(int x, int y, int width, int height) {
         super(x, y, width, height);
         mScaleDrawToLongitude = (float) width / (float) TOTAL_X_DEGREES;
@@ -59,34 +88,79 @@ public class MainScreen extends Screen {
         mDrawScaleX = (float) width / (float) TOTAL_X_DEGREES;
         mDrawScaleY = (float) height / (float) TOTAL_Y_DEGREES;
         mQuadTree = new DrawableQuadTree(width, height);
+        mPointRaster = new PointRaster(width, height);
+
+        startLoading();
+    }
+
+    private void startLoading() {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "main-screen-loader");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
 
-        Random random = new Random();
-
-        new Thread(() -> {
-            int mDelayCount = 1;
-            for (int i = 0; i < 10000000; i++) {
-                mNeighboursCount++;
-                mQuadTree.addNeighbour(i, random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
-                if (i % mDelayCount == 0) {
-                    try {
-                        Thread.sleep(0);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                if (i % 10000 == 0) {
-                    mDelayCount += 50;
-                }
+        // The map goes first, so it is decoded while the points are generated
+        CompletableFuture.supplyAsync(this::readWorldMap, executor).whenComplete((image, error) -> {
+            if (error != null) {
+                error.printStackTrace();
+                return;
             }
-        }).start();
 
+            mImageWorldMap = image;
+            mMapLoadedTime = System.nanoTime() - mCreationTime;
+            System.out.println("World map loaded in " + toMillis(mMapLoadedTime) + "ms");
+        });
+
+        int batchesCount = (POINTS_COUNT + POINTS_BATCH_SIZE - 1) / POINTS_BATCH_SIZE;
+        CompletableFuture<?>[] batches = new CompletableFuture<?>[batchesCount];
+        for (int batch = 0; batch < batchesCount; batch++) {
+            final int firstId = batch * POINTS_BATCH_SIZE;
+            batches[batch] = CompletableFuture.runAsync(() -> loadPoints(firstId, Math.min(POINTS_BATCH_SIZE, POINTS_COUNT - firstId)), executor);
+        }
+
+        CompletableFuture.allOf(batches).whenComplete((result, error) -> {
+            executor.shutdown();
+            if (error != null) {
+                error.printStackTrace();
+                return;
+            }
+
+            mFullyIndexedTime = System.nanoTime() - mCreationTime;
+            System.out.println(POINTS_COUNT + " points indexed in " + toMillis(mFullyIndexedTime) + "ms");
+        });
+    }
+
+    private BufferedImage readWorldMap() {
         try {
-            // this is a poor loading, we should load in background
-            mImageWorldMap = ImageIO.read(getClass().getResource("/worldmap.jpg"));
+            return ImageIO.read(getClass().getResource("/worldmap.jpg"));
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Generates a batch of random points and adds it to the tree at once
+     */
+    private void loadPoints(int firstId, int count) {
+        SplittableRandom random = new SplittableRandom(firstId);
+        long[] ids = new long[count];
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+
+        for (int i = 0; i < count; i++) {
+            ids[i] = firstId + i;
+            latitudes[i] = random.nextDouble() * 180 - 90;
+            longitudes[i] = random.nextDouble() * 360 - 180;
         }
+
+        mQuadTree.addNeighbours(ids, latitudes, longitudes);
+        mNeighboursCount.addAndGet(count);
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1000000;
     }
 
     @Override
@@ -97,36 +171,87 @@ public class MainScreen extends Screen {
         mTranslationX = translateX;
         mTranslationY = translateY;
 
-        Composite composite = graphics2D.getComposite();
-        graphics2D.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, .25f));
-        graphics2D.drawImage(mImageWorldMap, translateX, translateY, (int) (mImageWorldMap.getWidth() * zoom), (int) (mImageWorldMap.getHeight() * zoom), null);
-        graphics2D.setComposite(composite);
-        mQuadTree.draw(graphics2D, zoom, translateX, translateY);
+        BufferedImage imageWorldMap = mImageWorldMap;
+        if (imageWorldMap != null) {
+            Composite composite = graphics2D.getComposite();
+            graphics2D.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, .25f));
+            graphics2D.drawImage(imageWorldMap, translateX, translateY, (int) (imageWorldMap.getWidth() * zoom), (int) (imageWorldMap.getHeight() * zoom), null);
+            graphics2D.setComposite(composite);
+        }
 
-        graphics2D.setColor(Color.RED);
-        for (Neighbour neighbour : mSelectedNeighbours) {
-            graphics2D.fillRect(translateX + (int) (neighbour.getLongitude() * mDrawScaleX * zoom), translateY + (int) (neighbour.getLatitude() * mDrawScaleY * zoom),
-                    (int) (0.025 * mDrawScaleX * zoom), (int) (0.025 * mDrawScaleY * zoom));
+        if (mIsRasterRendering) {
+            drawRaster(graphics2D, zoom, translateX, translateY);
+        } else {
+            synchronized (mQuadTree) {
+                mQuadTree.draw(graphics2D, zoom, translateX, translateY);
+            }
+
+            graphics2D.setColor(Color.RED);
+            for (Neighbour neighbour : mSelectedNeighbours) {
+                graphics2D.fillRect(translateX + (int) (neighbour.getLongitude() * mDrawScaleX * zoom), translateY + (int) (neighbour.getLatitude() * mDrawScaleY * zoom),
+                        (int) (0.025 * mDrawScaleX * zoom), (int) (0.025 * mDrawScaleY * zoom));
+            }
         }
 
         graphics2D.setColor(COLOR_MENU);
-        graphics2D.fillRect(0, 0, 235, 85);
+        graphics2D.fillRect(0, 0, 235, 115);
         graphics2D.setColor(Color.magenta);
         graphics2D.drawString("Press: 1 for zoom in | 2 for zoom out", 10, 15);
         graphics2D.setColor(Color.WHITE);
-        graphics2D.drawString("Points of interest: " + mNeighboursCount, 10, 30);
+        graphics2D.drawString("Points of interest: " + mNeighboursCount.get(), 10, 30);
         graphics2D.setColor(Color.RED);
         graphics2D.drawString("Points in area: " + mSelectedNeighbours.size(), 10, 45);
         graphics2D.drawString("Search area in KM: " + 100, 10, 60);
         graphics2D.setColor(Color.ORANGE);
         graphics2D.drawString("Searchs: " + mSearchCount + " AVG time(ms): " + (mSearchTimeTotal / mSearchCount), 10, 75);
+        graphics2D.setColor(Color.GREEN);
+        graphics2D.drawString(getLoadingStatus(), 10, 90);
+        graphics2D.setColor(Color.magenta);
+        graphics2D.drawString("Press R to switch rendering: " + (mIsRasterRendering ? "raster" : "Java2D"), 10, 105);
+
+        if (mFirstFrameTime == 0) {
+            mFirstFrameTime = System.nanoTime() - mCreationTime;
+            System.out.println("First frame in " + toMillis(mFirstFrameTime) + "ms");
+        }
+    }
+
+    /**
+     * Draws the tree and the selected neighbours into the raster and shows it with a single call
+     */
+    private void drawRaster(Graphics2D graphics2D, float zoom, int translateX, int translateY) {
+        mPointRaster.clear();
+        synchronized (mQuadTree) {
+            mQuadTree.draw(mPointRaster, zoom, translateX, translateY);
+        }
+
+        final double scaleX = mDrawScaleX * zoom;
+        final double scaleY = mDrawScaleY * zoom;
+        final int width = Math.max((int) (0.025 * scaleX), 1);
+        final int height = Math.max((int) (0.025 * scaleY), 1);
+        for (Neighbour neighbour : mSelectedNeighbours) {
+            mPointRaster.fillRect(translateX + (int) (neighbour.getLongitude() * scaleX), translateY + (int) (neighbour.getLatitude() * scaleY),
+                    width, height, RASTER_SELECTED_COLOR);
+        }
+
+        mPointRaster.drawTo(graphics2D, 0, 0);
+    }
+
+    private String getLoadingStatus() {
+        if (mFullyIndexedTime != 0) {
+            return "First frame: " + toMillis(mFirstFrameTime) + "ms, indexed: " + toMillis(mFullyIndexedTime) + "ms";
+        }
+
+        return String.format(Locale.ROOT, "Loading%s: %.0f%%", mImageWorldMap == null ? " map and points" : " points",
+                100f * mNeighboursCount.get() / POINTS_COUNT);
 
     }
 
     @Override
     public void update(long difftime, float difftimeInSeconds) {
         super.update(difftime, difftimeInSeconds);
-        mQuadTree.update(difftime, difftimeInSeconds);
+        synchronized (mQuadTree) {
+            mQuadTree.update(difftime, difftimeInSeconds);
+        }
     }
 
     @Override
@@ -143,7 +268,10 @@ public class MainScreen extends Screen {
         float longitude = (xz / mScaleDrawToLongitude) - 180;
         try {
             long time = System.currentTimeMillis();
-            mSelectedNeighbours = mQuadTree.findNeighbours(latitude, longitude, 100);
+            // Searches are not synchronized, the lock keeps the batches loading in the background out
+            synchronized (mQuadTree) {
+                mSelectedNeighbours = mQuadTree.findNeighbours(latitude, longitude, 100);
+            }
             mSearchCount++;
             mSearchTimeTotal = (System.currentTimeMillis() - time);
         } catch (Exception e) {
@@ -156,4 +284,12 @@ public class MainScreen extends Screen {
         super.onMouseClick(x, y);
 
     }
+
+    @Override
+    public void onKeyReleased(int keyCode) {
+        super.onKeyReleased(keyCode);
+
+        if (keyCode == KeyEvent.VK_R)
+            mIsRasterRendering = !mIsRasterRendering;
+    }
 }
@@ -59,4 +59,8 @@ public class Screen extends BaseObject {
     public void onMouseClick(int x, int y) {
 
     }
+
+    public void onKeyReleased(int keyCode) {
+
+    }
 }
@@ -40,6 +40,13 @@ public class DrawableQuadTree extends QuadTree implements Drawable {
         ((DrawableQuadTreeNode) getRootNode()).draw(graphics2D, zoom, translateX, translateY );
     }
 
+    /**
+     * Draws into the raster, see {@link DrawableQuadTreeNode#draw(PointRaster, float, int, int)}
+     */
+    public void draw(PointRaster raster, float zoom, int translateX, int translateY) {
+        ((DrawableQuadTreeNode) getRootNode()).draw(raster, zoom, translateX, translateY);
+    }
+
     @Override
     public void update(long difftime, float difftimeInSeconds) {
         ((DrawableQuadTreeNode) getRootNode()).update(difftime, difftimeInSeconds);
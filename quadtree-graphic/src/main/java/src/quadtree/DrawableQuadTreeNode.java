@@ -2,10 +2,12 @@ package src.quadtree;
 
 import src.Drawable;
 import src.quadtree.core.Neighbour;
+import src.quadtree.core.NodeStack;
 import src.quadtree.core.QuadTreeNode;
 
 import java.awt.*;
 import java.awt.geom.Rectangle2D;
+import java.util.List;
 
 /**
  * Created by Leonardo Lana
@@ -28,6 +30,8 @@ import java.awt.geom.Rectangle2D;
 public class DrawableQuadTreeNode extends QuadTreeNode implements Drawable {
 
     private static final Color BLACK = new Color(0, 0, 0, 50);
+    private static final int RASTER_NODE_COLOR = BLACK.getRGB();
+    private static final int RASTER_NEIGHBOUR_COLOR = Color.black.getRGB();
     private float mDrawScaleX;
     private float mDrawScaleY;
     private Rectangle2D mDrawBounds;
@@ -51,23 +55,73 @@ public class DrawableQuadTreeNode extends QuadTreeNode implements Drawable {
         mDrawBounds.setRect(0, 0, drawWidth, drawHeight);
     }
 
+    /**
+     * Draws this node and every node below it, the nodes are visited with an explicit stack
+     */
     @Override
     public void draw(Graphics2D graphics2D, float zoom, int translateX, int translateY) {
-        graphics2D.setColor(BLACK);
-        graphics2D.drawRect(translateX + (int) (getLongitude() * mDrawScaleX * zoom), translateY + (int) (getLatitude() * mDrawScaleY * zoom),
-                (int) (getWidth() * mDrawScaleX * zoom), (int) (getHeight() * mDrawScaleY * zoom));
+        NodeStack pendingNodes = NodeStack.acquire();
+        pendingNodes.push(this);
+
+        try {
+            while (!pendingNodes.isEmpty()) {
+                DrawableQuadTreeNode node = (DrawableQuadTreeNode) pendingNodes.pop();
+                node.drawNode(graphics2D, zoom, translateX, translateY);
+                pendingNodes.pushChildren(node);
+            }
+        } finally {
+            pendingNodes.release();
+        }
+    }
+
+    /**
+     * Same as {@link #draw(Graphics2D, float, int, int)} writing straight into the pixels of a raster.
+     * Nodes outside of the raster are skipped with everything below them.
+     */
+    public void draw(PointRaster raster, float zoom, int translateX, int translateY) {
+        final double scaleX = mDrawScaleX * zoom;
+        final double scaleY = mDrawScaleY * zoom;
+        final int neighbourWidth = Math.max((int) (0.025 * scaleX), 1);
+        final int neighbourHeight = Math.max((int) (0.025 * scaleY), 1);
+        final boolean drawNeighbours = zoom > 13;
+
+        NodeStack pendingNodes = NodeStack.acquire();
+        pendingNodes.push(this);
+
+        try {
+            while (!pendingNodes.isEmpty()) {
+                DrawableQuadTreeNode node = (DrawableQuadTreeNode) pendingNodes.pop();
+                int x = translateX + (int) (node.getLongitude() * scaleX);
+                int y = translateY + (int) (node.getLatitude() * scaleY);
+                int width = (int) (node.getWidth() * scaleX);
+                int height = (int) (node.getHeight() * scaleY);
+
+                if (x > raster.getWidth() || y > raster.getHeight() || x + width < 0 || y + height < 0)
+                    continue;
 
-        if (mTopLeftNode != null)
-            ((DrawableQuadTreeNode) mTopLeftNode).draw(graphics2D, zoom, translateX, translateY);
+                raster.drawRect(x, y, width, height, RASTER_NODE_COLOR);
 
-        if (mTopRightNode != null)
-            ((DrawableQuadTreeNode) mTopRightNode).draw(graphics2D, zoom, translateX, translateY);
+                if (drawNeighbours) {
+                    List<Neighbour> neighbours = node.mNeighbours;
+                    final int size = neighbours.size();
+                    for (int i = 0; i < size; i++) {
+                        Neighbour neighbour = neighbours.get(i);
+                        raster.fillRect(translateX + (int) (neighbour.getLongitude() * scaleX), translateY + (int) (neighbour.getLatitude() * scaleY),
+                                neighbourWidth, neighbourHeight, RASTER_NEIGHBOUR_COLOR);
+                    }
+                }
 
-        if (mBottomLeftNode != null)
-            ((DrawableQuadTreeNode) mBottomLeftNode).draw(graphics2D, zoom, translateX, translateY);
+                pendingNodes.pushChildren(node);
+            }
+        } finally {
+            pendingNodes.release();
+        }
+    }
 
-        if (mBottomRightNode != null)
-            ((DrawableQuadTreeNode) mBottomRightNode).draw(graphics2D, zoom, translateX, translateY);
+    private void drawNode(Graphics2D graphics2D, float zoom, int translateX, int translateY) {
+        graphics2D.setColor(BLACK);
+        graphics2D.drawRect(translateX + (int) (getLongitude() * mDrawScaleX * zoom), translateY + (int) (getLatitude() * mDrawScaleY * zoom),
+                (int) (getWidth() * mDrawScaleX * zoom), (int) (getHeight() * mDrawScaleY * zoom));
 
         graphics2D.setColor(Color.black);
         Neighbour neighbour;
@@ -89,23 +143,8 @@ public class DrawableQuadTreeNode extends QuadTreeNode implements Drawable {
     }
 
     @Override
-    protected QuadTreeNode locateAndCreateNodeForPoint(double latitude, double longitude) {
-        double halfWidth = mBounds.width * .5f;
-        double halfHeight = mBounds.height * .5f;
-
-        if (longitude < mBounds.x + halfWidth) {
-            if (latitude < mBounds.y + halfHeight)
-                return mTopLeftNode != null ? mTopLeftNode : (mTopLeftNode = new DrawableQuadTreeNode(mBounds.y, mBounds.x, halfHeight, halfWidth, mDrawScaleX, mDrawScaleY, (int) mDrawBounds.getWidth(), (int) mDrawBounds.getHeight()));
-
-            return mBottomLeftNode != null ? mBottomLeftNode : (mBottomLeftNode = new DrawableQuadTreeNode(mBounds.y + halfHeight, mBounds.x, halfHeight, halfWidth, mDrawScaleX, mDrawScaleY, (int) mDrawBounds.getWidth(), (int) mDrawBounds.getHeight()));
-
-        }
-
-        if (latitude < mBounds.y + halfHeight)
-            return mTopRightNode != null ? mTopRightNode : (mTopRightNode = new DrawableQuadTreeNode(mBounds.y, mBounds.x + halfWidth, halfHeight, halfWidth, mDrawScaleX, mDrawScaleY, (int) mDrawBounds.getWidth(), (int) mDrawBounds.getHeight()));
-
-
-        return mBottomRightNode != null ? mBottomRightNode : (mBottomRightNode = new DrawableQuadTreeNode(mBounds.y + halfHeight, mBounds.x + halfWidth, halfHeight, halfWidth, mDrawScaleX, mDrawScaleY, (int) mDrawBounds.getWidth(), (int) mDrawBounds.getHeight()));
-
+    protected QuadTreeNode createChild(double latitude, double longitude, double latitudeRange, double longitudeRange) {
+        return new DrawableQuadTreeNode(latitude, longitude, latitudeRange, longitudeRange, mDrawScaleX, mDrawScaleY,
+                (int) mDrawBounds.getWidth(), (int) mDrawBounds.getHeight());
     }
 }
@@ -0,0 +1,107 @@
+package src.quadtree;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * An ARGB image drawn by writing straight into the int[] behind it, instead of a Graphics2D
+ * call per shape. The image is cleared and filled every frame and drawn with a single call.
+ */
+public class PointRaster {
+
+    private final BufferedImage mImage;
+    private final int[] mPixels;
+    private final int mWidth;
+    private final int mHeight;
+
+    public PointRaster(int width, int height) {
+        mWidth = Math.max(width, 1);
+        mHeight = Math.max(height, 1);
+        mImage = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_ARGB);
+        mPixels = ((DataBufferInt) mImage.getRaster().getDataBuffer()).getData();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public void clear() {
+        Arrays.fill(mPixels, 0);
+    }
+
+    /**
+     * Fills the rectangle, the parts outside of the raster are skipped
+     */
+    public void fillRect(int x, int y, int width, int height, int argb) {
+        int left = Math.max(x, 0);
+        int top = Math.max(y, 0);
+        int right = Math.min(x + width, mWidth);
+        int bottom = Math.min(y + height, mHeight);
+
+        for (int row = top; row < bottom; row++) {
+            int offset = row * mWidth;
+            for (int column = left; column < right; column++)
+                mPixels[offset + column] = argb;
+        }
+    }
+
+    /**
+     * Draws the outline of the rectangle under what is already drawn, so outlines never hide points
+     */
+    public void drawRect(int x, int y, int width, int height, int argb) {
+        drawHorizontalLine(x, x + width, y, argb);
+        drawHorizontalLine(x, x + width, y + height, argb);
+        drawVerticalLine(x, y, y + height, argb);
+        drawVerticalLine(x + width, y, y + height, argb);
+    }
+
+    private void drawHorizontalLine(int fromX, int toX, int y, int argb) {
+        if (y < 0 || y >= mHeight)
+            return;
+
+        int offset = y * mWidth;
+        int right = Math.min(toX, mWidth - 1);
+        for (int column = Math.max(fromX, 0); column <= right; column++) {
+            if (mPixels[offset + column] == 0)
+                mPixels[offset + column] = argb;
+        }
+    }
+
+    private void drawVerticalLine(int x, int fromY, int toY, int argb) {
+        if (x < 0 || x >= mWidth)
+            return;
+
+        int bottom = Math.min(toY, mHeight - 1);
+        for (int row = Math.max(fromY, 0); row <= bottom; row++) {
+            if (mPixels[row * mWidth + x] == 0)
+                mPixels[row * mWidth + x] = argb;
+        }
+    }
+
+    public void drawTo(Graphics2D graphics2D, int x, int y) {
+        graphics2D.drawImage(mImage, x, y, null);
+    }
+}
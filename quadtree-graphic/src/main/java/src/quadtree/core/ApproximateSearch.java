@@ -0,0 +1,257 @@
+package src.quadtree.core;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Searches that answer from the counts kept in every node instead of visiting every neighbour.
+ *
+ * The count estimate adds the whole count of the nodes fully inside the area. Nodes on the
+ * edges are opened, the biggest first, until the node budget is spent, the remaining ones are
+ * estimated from how much of their content bounds overlaps the area.
+ *
+ * The sample picks a random position among the neighbours of the nodes inside the area and
+ * walks down to it following the counts of the children. Neighbours of nodes on the edges are
+ * picked the same way and rejected when they are outside, so every neighbour inside the area
+ * has the same chance of being picked.
+ */
+
+class ApproximateSearch {
+
+    static final int DEFAULT_NODE_BUDGET = 64;
+
+    /**
+     * Samples bigger than this fraction of the neighbours that can be picked are taken from the full result instead
+     */
+    private static final int EXACT_SAMPLE_RATIO = 4;
+    private static final int MAX_ATTEMPTS_PER_NEIGHBOUR = 8;
+
+    private ApproximateSearch() {
+    }
+
+    static CountEstimate estimateCount(QuadTreeNode rootNode, Rectangle2D.Double area, int nodeBudget) {
+        PriorityQueue<QuadTreeNode> edgeNodes = new PriorityQueue<>((first, second) -> Integer.compare(second.mCount, first.mCount));
+        long[] exactCount = new long[1];
+        addNode(edgeNodes, rootNode, area, exactCount);
+
+        for (int opened = 0; opened < nodeBudget && !edgeNodes.isEmpty(); opened++) {
+            QuadTreeNode node = edgeNodes.poll();
+
+            if (node.getNeighboursCount() > 0) {
+                for (Neighbour neighbour : node.getNeighbours()) {
+                    if (area.contains(neighbour.getLongitude(), neighbour.getLatitude()))
+                        exactCount[0]++;
+                }
+            }
+
+            for (int childIndex = 0; childIndex < node.mChildren.length(); childIndex++)
+                addNode(edgeNodes, node.mChildren.get(childIndex), area, exactCount);
+        }
+
+        double estimate = exactCount[0];
+        long maximum = exactCount[0];
+        for (QuadTreeNode node : edgeNodes) {
+            estimate += node.mCount * overlap(node.mMinLongitude, node.mMaxLongitude, area.x, area.x + area.width)
+                    * overlap(node.mMinLatitude, node.mMaxLatitude, area.y, area.y + area.height);
+            maximum += node.mCount;
+        }
+
+        return new CountEstimate(Math.round(estimate), exactCount[0], maximum);
+    }
+
+    static List<Neighbour> sample(QuadTreeNode rootNode, Rectangle2D.Double area, int count, Random random) {
+        if (count <= 0)
+            return new ArrayList<>();
+
+        List<QuadTreeNode> nodes = new ArrayList<>();
+        List<Boolean> insideNodes = new ArrayList<>();
+        collectSampledNodes(rootNode, area, nodes, insideNodes);
+
+        int[] cumulativeCounts = new int[nodes.size()];
+        int total = 0;
+        for (int i = 0; i < cumulativeCounts.length; i++) {
+            QuadTreeNode node = nodes.get(i);
+            total += insideNodes.get(i) ? node.mCount : node.getNeighboursCount();
+            cumulativeCounts[i] = total;
+        }
+
+        if (total <= (long) count * EXACT_SAMPLE_RATIO)
+            return exactSample(rootNode, area, count, random);
+
+        // Keyed by id, compressed leaves decode a new object for the same neighbour
+        Map<Long, Neighbour> sampled = new LinkedHashMap<>();
+        long maxAttempts = (long) count * MAX_ATTEMPTS_PER_NEIGHBOUR;
+
+        for (long attempt = 0; sampled.size() < count; attempt++) {
+            if (attempt == maxAttempts)
+                return exactSample(rootNode, area, count, random);
+
+            int position = random.nextInt(total);
+            int index = upperBound(cumulativeCounts, position);
+            int offset = index == 0 ? position : position - cumulativeCounts[index - 1];
+            QuadTreeNode node = nodes.get(index);
+
+            Neighbour neighbour = insideNodes.get(index) ? neighbourAt(node, offset) : edgeNeighbourAt(node, offset, area);
+            if (neighbour != null && !sampled.containsKey(neighbour.getId()))
+                sampled.put(neighbour.getId(), neighbour);
+        }
+
+        return new ArrayList<>(sampled.values());
+    }
+
+    private static void addNode(PriorityQueue<QuadTreeNode> edgeNodes, QuadTreeNode node, Rectangle2D.Double area, long[] exactCount) {
+        if (node == null || !node.contentIntersects(area))
+            return;
+
+        if (node.contentInside(area))
+            exactCount[0] += node.mCount;
+        else
+            edgeNodes.add(node);
+    }
+
+    /**
+     * @return the fraction of the content range that is inside the area range, 1 for a content range of a single value
+     */
+    private static double overlap(double contentMin, double contentMax, double areaMin, double areaMax) {
+        if (contentMax <= contentMin)
+            return 1;
+
+        return Math.max(0, Math.min(contentMax, areaMax) - Math.max(contentMin, areaMin)) / (contentMax - contentMin);
+    }
+
+    /**
+     * Collects the nodes fully inside the area and the nodes on its edges that have neighbours of their own
+     */
+    private static void collectSampledNodes(QuadTreeNode rootNode, Rectangle2D.Double area, List<QuadTreeNode> nodes, List<Boolean> insideNodes) {
+        NodeStack stack = NodeStack.acquire();
+
+        try {
+            stack.push(rootNode);
+
+            while (!stack.isEmpty()) {
+                QuadTreeNode node = stack.pop();
+                if (!node.contentIntersects(area))
+                    continue;
+
+                if (node.contentInside(area)) {
+                    nodes.add(node);
+                    insideNodes.add(true);
+                    continue;
+                }
+
+                if (node.getNeighboursCount() > 0) {
+                    nodes.add(node);
+                    insideNodes.add(false);
+                }
+
+                stack.pushChildren(node);
+            }
+        } finally {
+            stack.release();
+        }
+    }
+
+    /**
+     * @return the first index with a cumulative count above the position
+     */
+    private static int upperBound(int[] cumulativeCounts, int position) {
+        int low = 0;
+        int high = cumulativeCounts.length - 1;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulativeCounts[middle] > position)
+                high = middle;
+            else
+                low = middle + 1;
+        }
+
+        return low;
+    }
+
+    /**
+     * Walks down to the neighbour at the offset, counting the neighbours of a node before the ones of its children
+     * @return null if the counts changed meanwhile and the offset is not there anymore
+     */
+    private static Neighbour neighbourAt(QuadTreeNode node, int offset) {
+        while (node != null) {
+            int ownCount = node.getNeighboursCount();
+            if (offset < ownCount)
+                return edgeNeighbourAt(node, offset, null);
+
+            offset -= ownCount;
+            QuadTreeNode next = null;
+
+            for (int childIndex = 0; childIndex < node.mChildren.length(); childIndex++) {
+                QuadTreeNode child = node.mChildren.get(childIndex);
+                if (child == null)
+                    continue;
+
+                if (offset < child.mCount) {
+                    next = child;
+                    break;
+                }
+
+                offset -= child.mCount;
+            }
+
+            node = next;
+        }
+
+        return null;
+    }
+
+    /**
+     * @param area the neighbour is rejected when it is outside, null accepts it anyway
+     */
+    private static Neighbour edgeNeighbourAt(QuadTreeNode node, int offset, Rectangle2D.Double area) {
+        List<Neighbour> neighbours = node.getNeighbours();
+        if (offset >= neighbours.size())
+            return null;
+
+        Neighbour neighbour = neighbours.get(offset);
+        if (area != null && !area.contains(neighbour.getLongitude(), neighbour.getLatitude()))
+            return null;
+
+        return neighbour;
+    }
+
+    private static List<Neighbour> exactSample(QuadTreeNode rootNode, Rectangle2D.Double area, int count, Random random) {
+        Set<Neighbour> neighbourSet = new HashSet<>();
+        rootNode.findNeighboursWithinRectangle(neighbourSet, area);
+
+        List<Neighbour> neighbours = new ArrayList<>(neighbourSet);
+        if (neighbours.size() <= count)
+            return neighbours;
+
+        Collections.shuffle(neighbours, random);
+        return new ArrayList<>(neighbours.subList(0, count));
+    }
+}
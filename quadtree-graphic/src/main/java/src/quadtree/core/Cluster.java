@@ -0,0 +1,79 @@
+package src.quadtree.core;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * The neighbours below one node of the tree, see {@link QuadTree#clusters(double, double, double, double, int)}.
+ * Coordinates are in degrees, the position of the cluster is the centroid of its neighbours.
+ */
+
+public final class Cluster {
+
+    private final int mCount;
+    private final double mLatitude;
+    private final double mLongitude;
+    private final double mMinLatitude;
+    private final double mMinLongitude;
+    private final double mMaxLatitude;
+    private final double mMaxLongitude;
+
+    Cluster(int count, double latitude, double longitude, double minLatitude, double minLongitude,
+            double maxLatitude, double maxLongitude) {
+        mCount = count;
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mMinLatitude = minLatitude;
+        mMinLongitude = minLongitude;
+        mMaxLatitude = maxLatitude;
+        mMaxLongitude = maxLongitude;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    /*
+        Smallest rectangle holding every neighbour of the cluster, zooming into it shows them all
+     */
+
+    public double getMinLatitude() {
+        return mMinLatitude;
+    }
+
+    public double getMinLongitude() {
+        return mMinLongitude;
+    }
+
+    public double getMaxLatitude() {
+        return mMaxLatitude;
+    }
+
+    public double getMaxLongitude() {
+        return mMaxLongitude;
+    }
+}
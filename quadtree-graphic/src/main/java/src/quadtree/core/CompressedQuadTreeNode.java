@@ -0,0 +1,437 @@
+package src.quadtree.core;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Node that keeps its neighbours compressed, to fit more neighbours per gigabyte.
+ *
+ * Since the bounds of a leaf are known, the coordinates are stored as fixed-point offsets
+ * from the leaf origin, with 16 or 32 bits per coordinate. With 16 bits a leaf of 100km
+ * has a precision of about 2 meters, with 32 bits it is below a millimeter.
+ *
+ * The ids are kept sorted and each one is stored as the difference from the previous id,
+ * encoded as a varint, so close ids take one or two bytes. The arrays have room to grow like
+ * an ArrayList, an id bigger than the others is appended to the tail and any other id only
+ * moves the bytes after it.
+ *
+ * The neighbours are decoded while the leaf is scanned and only the ones inside the area
+ * of interest are created. Payloads are not kept, decoded neighbours are plain {@link NeighbourImpl}.
+ *
+ * Use it as the root node of a {@link QuadTree}, see {@link QuadTree#compressed(int)}.
+ */
+
+public class CompressedQuadTreeNode extends QuadTreeNode {
+
+    public static final int PRECISION_16_BITS = 16;
+    public static final int PRECISION_32_BITS = 32;
+
+    private static final byte[] NO_IDS = new byte[0];
+    private static final int[] NO_COORDINATES = new int[0];
+
+    /**
+     * Longest varint of a 64 bits difference
+     */
+    private static final int MAX_VARINT_LENGTH = 10;
+
+    private final int mPrecisionBits;
+    private final double mMaxOffset;
+
+    /**
+     * Sorted ids, each one is the varint of the difference from the previous id.
+     * Only the first mIdsLength bytes are used
+     */
+    private byte[] mIds = NO_IDS;
+    private int mIdsLength;
+    private long mLastId;
+
+    /**
+     * Latitude and longitude offsets in the same order as the ids,
+     * with 16 bits both share one int, with 32 bits each one has its own int
+     */
+    private int[] mCoordinates = NO_COORDINATES;
+    private int mSize;
+
+    /**
+     * Creates a new node
+     * @param latitude node's Y start point
+     * @param longitude node's X start point
+     * @param latitudeRange node's height
+     * @param longitudeRange node's width
+     * @param precisionBits bits per coordinate, {@link #PRECISION_16_BITS} or {@link #PRECISION_32_BITS}
+     */
+    public CompressedQuadTreeNode(double latitude, double longitude, double latitudeRange, double longitudeRange, int precisionBits) {
+        super(latitude, longitude, latitudeRange, longitudeRange, Collections.<Neighbour>emptyList());
+
+        if (precisionBits != PRECISION_16_BITS && precisionBits != PRECISION_32_BITS)
+            throw new IllegalArgumentException("Precision must be 16 or 32 bits, got " + precisionBits);
+
+        mPrecisionBits = precisionBits;
+        mMaxOffset = precisionBits == PRECISION_16_BITS ? 0xFFFF : 0xFFFFFFFFL;
+    }
+
+    @Override
+    protected void addToLeaf(Neighbour neighbour) {
+        long id = neighbour.getId();
+        int position;
+
+        if (mSize == 0 || id >= mLastId) {
+            position = mSize;
+            ensureIdsCapacity(mIdsLength + varintLength(id - mLastId));
+            mIdsLength = writeVarint(mIds, mIdsLength, id - mLastId);
+            mLastId = id;
+        } else {
+            // The varint of the next id is replaced by the one of the new id and the new difference of the next id
+            IdReader reader = new IdReader(mIds);
+            long previous = 0;
+            int start = 0;
+            position = 0;
+            long next = reader.next();
+            while (next <= id) {
+                previous = next;
+                start = reader.mOffset;
+                position++;
+                next = reader.next();
+            }
+
+            int end = reader.mOffset;
+            int length = varintLength(id - previous) + varintLength(next - id);
+            ensureIdsCapacity(mIdsLength + length - (end - start));
+            System.arraycopy(mIds, end, mIds, start + length, mIdsLength - end);
+            writeVarint(mIds, writeVarint(mIds, start, id - previous), next - id);
+            mIdsLength += length - (end - start);
+        }
+
+        int stride = stride();
+        ensureCoordinatesCapacity((mSize + 1) * stride);
+        System.arraycopy(mCoordinates, position * stride, mCoordinates, (position + 1) * stride, (mSize - position) * stride);
+        encodeCoordinates(position, neighbour.getLatitude(), neighbour.getLongitude());
+        includeInContentBounds(decodeLatitude(position), decodeLongitude(position));
+
+        mSize++;
+    }
+
+    /**
+     * Decodes the leaf once, merges the new neighbours and encodes it again
+     */
+    @Override
+    protected void addAllToLeaf(List<Neighbour> neighbours) {
+        List<Neighbour> allNeighbours = getNeighbours();
+        allNeighbours.addAll(neighbours);
+        allNeighbours.sort((first, second) -> Long.compare(first.getId(), second.getId()));
+
+        long[] ids = new long[allNeighbours.size()];
+        mCoordinates = new int[allNeighbours.size() * stride()];
+        for (int i = 0; i < ids.length; i++) {
+            Neighbour neighbour = allNeighbours.get(i);
+            ids[i] = neighbour.getId();
+            encodeCoordinates(i, neighbour.getLatitude(), neighbour.getLongitude());
+            includeInContentBounds(decodeLatitude(i), decodeLongitude(i));
+        }
+
+        mSize = ids.length;
+        encodeIds(ids);
+    }
+
+    @Override
+    protected void clearLeaf() {
+        mSize = 0;
+        mIds = NO_IDS;
+        mIdsLength = 0;
+        mLastId = 0;
+        mCoordinates = NO_COORDINATES;
+    }
+
+    /**
+     * Decodes the leaf once, the kept neighbours are encoded again over the same arrays while they are read.
+     * A kept varint is never longer than the varints read since the previous kept id, so nothing unread is overwritten
+     */
+    @Override
+    protected void removeAllFromLeaf(Set<Long> ids) {
+        IdReader reader = new IdReader(mIds);
+        int stride = stride();
+        int idsLength = 0;
+        int size = 0;
+        long previous = 0;
+
+        for (int i = 0; i < mSize; i++) {
+            long id = reader.next();
+            if (ids.remove(id))
+                continue;
+
+            idsLength = writeVarint(mIds, idsLength, id - previous);
+            previous = id;
+            System.arraycopy(mCoordinates, i * stride, mCoordinates, size * stride, stride);
+            size++;
+        }
+
+        mIdsLength = idsLength;
+        mLastId = previous;
+        mSize = size;
+    }
+
+    @Override
+    protected Neighbour takeFromLeaf(long id) {
+        if (mSize == 0 || id > mLastId)
+            return null;
+
+        IdReader reader = new IdReader(mIds);
+        long previous = 0;
+        int start = 0;
+        int position = 0;
+        long current = reader.next();
+        while (current < id && position < mSize - 1) {
+            previous = current;
+            start = reader.mOffset;
+            position++;
+            current = reader.next();
+        }
+
+        if (current != id)
+            return null;
+
+        Neighbour neighbour = new NeighbourImpl(id, decodeLatitude(position), decodeLongitude(position));
+
+        // The varints of the removed id and of the next id are replaced by the new difference of the next id
+        int end = reader.mOffset;
+        int length = 0;
+        if (position < mSize - 1) {
+            long next = reader.next();
+            end = reader.mOffset;
+            length = writeVarint(mIds, start, next - previous) - start;
+        } else {
+            mLastId = previous;
+        }
+
+        System.arraycopy(mIds, end, mIds, start + length, mIdsLength - end);
+        mIdsLength -= end - start - length;
+
+        int stride = stride();
+        System.arraycopy(mCoordinates, (position + 1) * stride, mCoordinates, position * stride, (mSize - position - 1) * stride);
+
+        mSize--;
+        return neighbour;
+    }
+
+    @Override
+    protected void copyLeafTo(QuadTreeNode copy) {
+        CompressedQuadTreeNode compressedCopy = (CompressedQuadTreeNode) copy;
+        compressedCopy.mIds = Arrays.copyOf(mIds, mIdsLength);
+        compressedCopy.mIdsLength = mIdsLength;
+        compressedCopy.mLastId = mLastId;
+        compressedCopy.mCoordinates = Arrays.copyOf(mCoordinates, mSize * stride());
+        compressedCopy.mSize = mSize;
+    }
+
+    @Override
+    protected List<Neighbour> getNeighbours() {
+        IdReader reader = new IdReader(mIds);
+        List<Neighbour> neighbours = new ArrayList<>(mSize);
+
+        for (int i = 0; i < mSize; i++)
+            neighbours.add(new NeighbourImpl(reader.next(), decodeLatitude(i), decodeLongitude(i)));
+
+        return neighbours;
+    }
+
+    @Override
+    protected int getNeighboursCount() {
+        return mSize;
+    }
+
+    @Override
+    protected void addNeighbors(boolean contains, Set<Neighbour> neighborSet, Rectangle2D.Double rangeAsRectangle, NeighbourFilter filter) {
+        decode(neighborSet, contains ? null : rangeAsRectangle, filter);
+    }
+
+    @Override
+    protected void findAll(Set<Neighbour> neighborSet, Rectangle2D.Double rangeAsRectangle, NeighbourFilter filter) {
+        decode(neighborSet, rangeAsRectangle, filter);
+    }
+
+    /**
+     * Decodes the leaf in a single pass, adding the neighbours inside the area of interest
+     * @param rangeAsRectangle the area of interest, null when the whole leaf is inside it
+     */
+    private void decode(Set<Neighbour> neighborSet, Rectangle2D.Double rangeAsRectangle, NeighbourFilter filter) {
+        IdReader reader = new IdReader(mIds);
+
+        for (int i = 0; i < mSize; i++) {
+            long id = reader.next();
+            double latitude = decodeLatitude(i);
+            double longitude = decodeLongitude(i);
+
+            if (rangeAsRectangle != null && !rangeAsRectangle.contains(longitude, latitude))
+                continue;
+
+            Neighbour neighbour = new NeighbourImpl(id, latitude, longitude);
+            if (filter == null || filter.accept(neighbour))
+                neighborSet.add(neighbour);
+        }
+    }
+
+    /**
+     * The list of the base node is not used, only the node and the arrays are counted
+     */
+    @Override
+    protected void estimateFootprint(QuadTreeFootprint footprint) {
+        footprint.addNode(this, mBounds, mChildren);
+
+        long bytes = 0;
+        if (mIds.length > 0)
+            bytes += QuadTreeFootprint.arraySize(mIds.length, 1);
+
+        if (mCoordinates.length > 0)
+            bytes += QuadTreeFootprint.arraySize(mCoordinates.length, 4);
+
+        footprint.addLeafArrays(mSize, bytes);
+    }
+
+    @Override
+    protected QuadTreeNode createChild(double latitude, double longitude, double latitudeRange, double longitudeRange) {
+        return new CompressedQuadTreeNode(latitude, longitude, latitudeRange, longitudeRange, mPrecisionBits);
+    }
+
+    private int stride() {
+        return mPrecisionBits == PRECISION_16_BITS ? 1 : 2;
+    }
+
+    /**
+     * Encodes the sorted ids, the differences are treated as unsigned so negative ids also work
+     */
+    private void encodeIds(long[] ids) {
+        byte[] encoded = new byte[ids.length * MAX_VARINT_LENGTH];
+        int offset = 0;
+        long previous = 0;
+
+        for (long id : ids) {
+            offset = writeVarint(encoded, offset, id - previous);
+            previous = id;
+        }
+
+        mIds = Arrays.copyOf(encoded, offset);
+        mIdsLength = offset;
+        mLastId = previous;
+    }
+
+    /**
+     * Grows the ids by half of their length at least, like an ArrayList
+     */
+    private void ensureIdsCapacity(int capacity) {
+        if (capacity > mIds.length)
+            mIds = Arrays.copyOf(mIds, Math.max(capacity, mIds.length + (mIds.length >> 1)));
+    }
+
+    private void ensureCoordinatesCapacity(int capacity) {
+        if (capacity > mCoordinates.length)
+            mCoordinates = Arrays.copyOf(mCoordinates, Math.max(capacity, mCoordinates.length + (mCoordinates.length >> 1)));
+    }
+
+    /**
+     * @return the offset right after the varint
+     */
+    private static int writeVarint(byte[] bytes, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private void encodeCoordinates(int position, double latitude, double longitude) {
+        long latitudeOffset = toOffset(latitude, mBounds.y, mBounds.height);
+        long longitudeOffset = toOffset(longitude, mBounds.x, mBounds.width);
+
+        if (mPrecisionBits == PRECISION_16_BITS) {
+            mCoordinates[position] = (int) (latitudeOffset << 16 | longitudeOffset);
+            return;
+        }
+
+        mCoordinates[position * 2] = (int) latitudeOffset;
+        mCoordinates[position * 2 + 1] = (int) longitudeOffset;
+    }
+
+    private double decodeLatitude(int position) {
+        long offset = mPrecisionBits == PRECISION_16_BITS
+                ? mCoordinates[position] >>> 16
+                : mCoordinates[position * 2] & 0xFFFFFFFFL;
+        return mBounds.y + offset * mBounds.height / mMaxOffset;
+    }
+
+    private double decodeLongitude(int position) {
+        long offset = mPrecisionBits == PRECISION_16_BITS
+                ? mCoordinates[position] & 0xFFFF
+                : mCoordinates[position * 2 + 1] & 0xFFFFFFFFL;
+        return mBounds.x + offset * mBounds.width / mMaxOffset;
+    }
+
+    private long toOffset(double value, double origin, double range) {
+        long offset = Math.round((value - origin) / range * mMaxOffset);
+        return Math.max(0, Math.min((long) mMaxOffset, offset));
+    }
+
+    /**
+     * Reads the ids one after the other, the only place where the varints are decoded
+     */
+    private static final class IdReader {
+
+        private final byte[] mBytes;
+
+        /**
+         * Offset of the next varint
+         */
+        private int mOffset;
+        private long mId;
+
+        IdReader(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        long next() {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mBytes[mOffset++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            mId += delta;
+            return mId;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package src.quadtree.core;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Approximate number of neighbours inside an area, see {@link QuadTree#estimateCount(double, double, double, double)}.
+ *
+ * The real count is always between the minimum and the maximum, both are equal when the estimate is exact.
+ */
+
+public final class CountEstimate {
+
+    private final long mEstimate;
+    private final long mMinimum;
+    private final long mMaximum;
+
+    CountEstimate(long estimate, long minimum, long maximum) {
+        mEstimate = estimate;
+        mMinimum = minimum;
+        mMaximum = maximum;
+    }
+
+    public long getEstimate() {
+        return mEstimate;
+    }
+
+    public long getMinimum() {
+        return mMinimum;
+    }
+
+    public long getMaximum() {
+        return mMaximum;
+    }
+
+    public boolean isExact() {
+        return mMinimum == mMaximum;
+    }
+
+    @Override
+    public String toString() {
+        return mEstimate + " (" + mMinimum + " to " + mMaximum + ")";
+    }
+}
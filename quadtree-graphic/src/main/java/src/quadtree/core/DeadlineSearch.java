@@ -0,0 +1,127 @@
+package src.quadtree.core;
+
+import java.awt.geom.Rectangle2D;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Search of an area of interest that stops when its deadline passes.
+ *
+ * Nodes are opened in the order of the distance from their content bounds to the center of
+ * the area, so when the search stops early the neighbours found are the ones of the closest
+ * cells. The clock is checked before each node is opened, a leaf that was already opened is
+ * always scanned to the end.
+ *
+ * A search that did not get a thread before its deadline is completed by a shared timer
+ * with an empty incomplete result, see {@link #completeAtDeadline(CompletableFuture, long, AtomicBoolean)}.
+ * A search that started returns the neighbours it found by itself.
+ */
+
+class DeadlineSearch {
+
+    private static final ScheduledThreadPoolExecutor TIMER = createTimer();
+
+    private DeadlineSearch() {
+    }
+
+    /**
+     * Completes the future with an empty incomplete result when the deadline passes, unless the search started before.
+     * @param deadline in {@link System#nanoTime()} units
+     * @param started set by the timer or by the search, whichever comes first, the search runs only if it sets it
+     */
+    static void completeAtDeadline(CompletableFuture<NeighbourSearchResult> future, long deadline, AtomicBoolean started) {
+        ScheduledFuture<?> timeout = TIMER.schedule(() -> {
+            if (started.compareAndSet(false, true))
+                future.complete(new NeighbourSearchResult(new HashSet<>(), false));
+        }, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        future.whenComplete((result, error) -> timeout.cancel(false));
+    }
+
+    /**
+     * @param deadline in {@link System#nanoTime()} units
+     * @param future the search stops as soon as it is done, cancelled for example
+     */
+    static NeighbourSearchResult find(QuadTreeNode rootNode, Rectangle2D.Double areaOfInterest, double latitude, double longitude,
+                                      NeighbourFilter filter, long deadline, Future<?> future) {
+        Set<Neighbour> neighbourSet = new HashSet<>();
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        addNode(queue, rootNode, areaOfInterest, latitude, longitude);
+
+        while (!queue.isEmpty()) {
+            if (System.nanoTime() - deadline >= 0 || future.isDone())
+                return new NeighbourSearchResult(neighbourSet, false);
+
+            QuadTreeNode node = queue.poll().mNode;
+            if (node.getNeighboursCount() > 0)
+                node.addNeighbors(node.contentInside(areaOfInterest), neighbourSet, areaOfInterest, filter);
+
+            for (int childIndex = 0; childIndex < node.mChildren.length(); childIndex++)
+                addNode(queue, node.mChildren.get(childIndex), areaOfInterest, latitude, longitude);
+        }
+
+        return new NeighbourSearchResult(neighbourSet, true);
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "quadtree-deadline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Most searches end before their deadline, the cancelled timeouts must not pile up in the queue
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    private static void addNode(PriorityQueue<Candidate> queue, QuadTreeNode node, Rectangle2D.Double areaOfInterest,
+                                double latitude, double longitude) {
+        if (node == null || !node.contentIntersects(areaOfInterest))
+            return;
+
+        double longitudeDistance = Math.max(0, Math.max(node.mMinLongitude - longitude, longitude - node.mMaxLongitude));
+        double latitudeDistance = Math.max(0, Math.max(node.mMinLatitude - latitude, latitude - node.mMaxLatitude));
+        queue.add(new Candidate(latitudeDistance * latitudeDistance + longitudeDistance * longitudeDistance, node));
+    }
+
+    private static class Candidate implements Comparable<Candidate> {
+
+        private final double mSquaredDistance;
+        private final QuadTreeNode mNode;
+
+        Candidate(double squaredDistance, QuadTreeNode node) {
+            mSquaredDistance = squaredDistance;
+            mNode = node;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Double.compare(mSquaredDistance, other.mSquaredDistance);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package src.quadtree.core;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Immutable and compacted copy of a {@link QuadTree}, created by {@link QuadTree#freeze()}.
+ *
+ * Nodes are stored in flat arrays in breadth-first order, the children of a node are
+ * always next to each other so only the index of the first child is kept.
+ *
+ * Neighbours are stored in primitive arrays ordered by a depth-first walk of the leaves,
+ * therefore every node owns a contiguous range of neighbours. When a node is fully inside
+ * the area of interest its whole range is added without looking at the children.
+ *
+ * Nothing changes after the constructor returns, so queries need no locks at all.
+ */
+
+public final class FrozenQuadTree {
+
+    private static final int NO_CHILDREN = -1;
+
+    private static final int OUTSIDE = 0;
+    private static final int INSIDE = 1;
+    private static final int INTERSECTS = 2;
+
+    private final QuadTreeGeometry mGeometry;
+    private final double[] mNodeLongitudes;
+    private final double[] mNodeLatitudes;
+    private final double[] mNodeWidths;
+    private final double[] mNodeHeights;
+    private final int[] mFirstChild;
+    private final byte[] mChildCount;
+    private final int[] mNeighboursStart;
+    private final int[] mNeighboursEnd;
+
+    private final long[] mIds;
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+    private final Neighbour[] mNeighbours;
+
+    private final int mMaxDepth;
+
+    FrozenQuadTree(QuadTreeNode rootNode, QuadTreeGeometry geometry) {
+        mGeometry = geometry;
+        List<QuadTreeNode> nodes = new ArrayList<>();
+        List<Integer> firstChild = new ArrayList<>();
+        List<Integer> childCount = new ArrayList<>();
+        int neighboursCount = 0;
+        int maxDepth = 0;
+
+        // Breadth-first walk, the children of each node are appended together at the end
+        nodes.add(rootNode);
+        int levelEnd = 1;
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i == levelEnd) {
+                maxDepth++;
+                levelEnd = nodes.size();
+            }
+
+            QuadTreeNode node = nodes.get(i);
+            neighboursCount += node.getNeighboursCount();
+            int first = nodes.size();
+            for (int childIndex = 0; childIndex < node.mChildren.length(); childIndex++)
+                addIfNotNull(nodes, node.mChildren.get(childIndex));
+            firstChild.add(nodes.size() == first ? NO_CHILDREN : first);
+            childCount.add(nodes.size() - first);
+        }
+
+        final int size = nodes.size();
+        mNodeLongitudes = new double[size];
+        mNodeLatitudes = new double[size];
+        mNodeWidths = new double[size];
+        mNodeHeights = new double[size];
+        mFirstChild = new int[size];
+        mChildCount = new byte[size];
+        mNeighboursStart = new int[size];
+        mNeighboursEnd = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            QuadTreeNode node = nodes.get(i);
+            mNodeLongitudes[i] = node.mBounds.x;
+            mNodeLatitudes[i] = node.mBounds.y;
+            mNodeWidths[i] = node.mBounds.width;
+            mNodeHeights[i] = node.mBounds.height;
+            mFirstChild[i] = firstChild.get(i);
+            mChildCount[i] = childCount.get(i).byteValue();
+        }
+
+        mIds = new long[neighboursCount];
+        mLatitudes = new double[neighboursCount];
+        mLongitudes = new double[neighboursCount];
+        mNeighbours = new Neighbour[neighboursCount];
+        mMaxDepth = maxDepth;
+
+        copyNeighbours(nodes, 0, 0);
+    }
+
+    public Set<Neighbour> findNeighbours(double latitude, double longitude, double rangeInKm) {
+        return findNeighbours(latitude, longitude, rangeInKm, null);
+    }
+
+    public Set<Neighbour> findNeighbours(double latitude, double longitude, double rangeInKm, NeighbourFilter filter) {
+        Set<Neighbour> neighbourSet = new HashSet<>();
+        Rectangle2D.Double areaOfInterest = getAreaOfInterest(latitude, longitude, rangeInKm);
+        int[] stack = new int[mMaxDepth * 3 + 1];
+        int top = 0;
+        stack[top++] = 0;
+
+        while (top > 0) {
+            int node = stack[--top];
+            int emit = classify(node, areaOfInterest);
+
+            if (emit == OUTSIDE)
+                continue;
+
+            if (emit == INSIDE) {
+                for (int i = mNeighboursStart[node]; i < mNeighboursEnd[node]; i++) {
+                    if (filter == null || filter.accept(mNeighbours[i]))
+                        neighbourSet.add(mNeighbours[i]);
+                }
+                continue;
+            }
+
+            if (mFirstChild[node] == NO_CHILDREN) {
+                for (int i = mNeighboursStart[node]; i < mNeighboursEnd[node]; i++) {
+                    if (contains(areaOfInterest, mLatitudes[i], mLongitudes[i])
+                            && (filter == null || filter.accept(mNeighbours[i])))
+                        neighbourSet.add(mNeighbours[i]);
+                }
+                continue;
+            }
+
+            for (int child = mFirstChild[node] + mChildCount[node] - 1; child >= mFirstChild[node]; child--)
+                stack[top++] = child;
+        }
+
+        return neighbourSet;
+    }
+
+    public Set<Long> findNeighboursIds(double latitude, double longitude, double rangeInKm) {
+        return findNeighboursIds(latitude, longitude, rangeInKm, null);
+    }
+
+    public Set<Long> findNeighboursIds(double latitude, double longitude, double rangeInKm, NeighbourFilter filter) {
+        Set<Long> neighboursIds = new HashSet<>();
+        Rectangle2D.Double areaOfInterest = getAreaOfInterest(latitude, longitude, rangeInKm);
+        int[] stack = new int[mMaxDepth * 3 + 1];
+        int top = 0;
+        stack[top++] = 0;
+
+        while (top > 0) {
+            int node = stack[--top];
+            int emit = classify(node, areaOfInterest);
+
+            if (emit == OUTSIDE)
+                continue;
+
+            if (emit == INSIDE) {
+                for (int i = mNeighboursStart[node]; i < mNeighboursEnd[node]; i++) {
+                    if (filter == null || filter.accept(mNeighbours[i]))
+                        neighboursIds.add(mIds[i]);
+                }
+                continue;
+            }
+
+            if (mFirstChild[node] == NO_CHILDREN) {
+                for (int i = mNeighboursStart[node]; i < mNeighboursEnd[node]; i++) {
+                    if (contains(areaOfInterest, mLatitudes[i], mLongitudes[i])
+                            && (filter == null || filter.accept(mNeighbours[i])))
+                        neighboursIds.add(mIds[i]);
+                }
+                continue;
+            }
+
+            for (int child = mFirstChild[node] + mChildCount[node] - 1; child >= mFirstChild[node]; child--)
+                stack[top++] = child;
+        }
+
+        return neighboursIds;
+    }
+
+    /**
+     * @return how many neighbours were copied when this tree was frozen
+     */
+    public int size() {
+        return mIds.length;
+    }
+
+    /**
+     * Visits every neighbour copied when this tree was frozen, with the coordinates it was added with
+     */
+    public void forEachNeighbour(NeighbourVisitor visitor) {
+        for (int i = 0; i < mIds.length; i++)
+            visitor.visit(mIds[i], mGeometry.denormalizeLatitude(mLatitudes[i]), mGeometry.denormalizeLongitude(mLongitudes[i]));
+    }
+
+    /**
+     * @return the neighbour at the index, as it was added, with normalized coordinates
+     */
+    Neighbour getNeighbour(int index) {
+        return mNeighbours[index];
+    }
+
+    /**
+     * Same rules as {@link Rectangle2D#intersects(double, double, double, double)} and
+     * {@link Rectangle2D#contains(double, double, double, double)} without creating objects
+     */
+    private int classify(int node, Rectangle2D.Double area) {
+        double x = mNodeLongitudes[node];
+        double y = mNodeLatitudes[node];
+        double width = mNodeWidths[node];
+        double height = mNodeHeights[node];
+
+        if (x + width <= area.x || y + height <= area.y || x >= area.x + area.width || y >= area.y + area.height)
+            return OUTSIDE;
+
+        if (x >= area.x && y >= area.y && x + width < area.x + area.width && y + height < area.y + area.height)
+            return INSIDE;
+
+        return INTERSECTS;
+    }
+
+    private static boolean contains(Rectangle2D.Double area, double latitude, double longitude) {
+        return longitude >= area.x && latitude >= area.y
+                && longitude < area.x + area.width && latitude < area.y + area.height;
+    }
+
+    private Rectangle2D.Double getAreaOfInterest(double latitude, double longitude, double rangeInKm) {
+        return mGeometry.getRangeAsRectangle(mGeometry.normalizeLatitude(latitude), mGeometry.normalizeLongitude(longitude),
+                mGeometry.kmToDegree(rangeInKm));
+    }
+
+    /**
+     * Depth-first copy of the neighbours, so each node owns a contiguous range
+     * @return the next free position
+     */
+    private int copyNeighbours(List<QuadTreeNode> nodes, int node, int position) {
+        mNeighboursStart[node] = position;
+
+        List<Neighbour> neighbours = nodes.get(node).getNeighbours();
+        final int size = neighbours.size();
+        for (int i = 0; i < size; i++) {
+            Neighbour neighbour = neighbours.get(i);
+            mIds[position] = neighbour.getId();
+            mLatitudes[position] = neighbour.getLatitude();
+            mLongitudes[position] = neighbour.getLongitude();
+            mNeighbours[position] = neighbour;
+            position++;
+        }
+
+        if (mFirstChild[node] != NO_CHILDREN) {
+            for (int child = mFirstChild[node]; child < mFirstChild[node] + mChildCount[node]; child++)
+                position = copyNeighbours(nodes, child, position);
+        }
+
+        mNeighboursEnd[node] = position;
+        return position;
+    }
+
+    private static void addIfNotNull(List<QuadTreeNode> nodes, QuadTreeNode node) {
+        if (node != null)
+            nodes.add(node);
+    }
+}
@@ -0,0 +1,84 @@
+package src.quadtree.core;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Keeps the latest {@link FrozenQuadTree} of a {@link QuadTree}.
+ *
+ * Writers keep updating the mutable tree, a new frozen copy is published from time to time
+ * and readers always get the latest published copy without taking any lock.
+ */
+
+public class FrozenQuadTreePublisher {
+
+    private final QuadTree mQuadTree;
+    private final AtomicReference<FrozenQuadTree> mFrozenQuadTree;
+    private ScheduledExecutorService mScheduler;
+
+    public FrozenQuadTreePublisher(QuadTree quadTree) {
+        mQuadTree = quadTree;
+        mFrozenQuadTree = new AtomicReference<>(quadTree.freeze());
+    }
+
+    /**
+     * @return the latest published copy, never null
+     */
+    public FrozenQuadTree get() {
+        return mFrozenQuadTree.get();
+    }
+
+    /**
+     * Freezes the tree right now and publishes the copy
+     */
+    public FrozenQuadTree publish() {
+        FrozenQuadTree frozenQuadTree = mQuadTree.freeze();
+        mFrozenQuadTree.set(frozenQuadTree);
+        return frozenQuadTree;
+    }
+
+    /**
+     * Publishes a new copy periodically in a background thread
+     * @param periodInMillis time between the end of a publish and the start of the next one
+     */
+    public synchronized void start(long periodInMillis) {
+        if (mScheduler != null)
+            return;
+
+        mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "frozen-quadtree-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mScheduler.scheduleWithFixedDelay(this::publish, periodInMillis, periodInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (mScheduler == null)
+            return;
+
+        mScheduler.shutdown();
+        mScheduler = null;
+    }
+}
@@ -0,0 +1,364 @@
+package src.quadtree.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Single writer for a {@link QuadTree}.
+ *
+ * Any number of threads publish add, move and remove events to a lock-free ring buffer,
+ * a single applier thread drains it in batches and applies each batch to the tree at once.
+ * Producers never wait on the tree's monitor, they only wait when the ring buffer is full.
+ *
+ * Within a batch the last event of each id wins: a neighbour added and removed in the same
+ * batch never reaches the tree. Removals are applied before additions, both in one traversal.
+ * An addition assumes the id is not in the tree yet, use a move to replace a neighbour.
+ *
+ * The applier keeps the position of every neighbour in the tree, read from the tree when the
+ * pipeline is created, so moves and removals only visit the leaves they change. The tree should
+ * not be written to by anyone else while the pipeline is open, a neighbour not found at its known
+ * position is still removed but the whole tree is searched for it.
+ *
+ * Each slot of the ring buffer keeps the sequence that was last published on it, the applier
+ * only reads a slot after its sequence is published, so no locks are needed on either side.
+ *
+ * If applying a batch fails the pipeline stops: waiting producers and {@link #flush()} throw an
+ * IllegalStateException caused by the failure, offers return false.
+ */
+
+public class IngestionPipeline {
+
+    private static final byte ADD = 1;
+    private static final byte MOVE = 2;
+    private static final byte REMOVE = 3;
+
+    private static final long PRODUCER_WAIT_IN_NANOS = 1000;
+    private static final long APPLIER_IDLE_WAIT_IN_NANOS = 50000;
+
+    private final QuadTree mQuadTree;
+    private final int mCapacity;
+    private final int mMask;
+    private final int mMaxBatchSize;
+
+    private final byte[] mTypes;
+    private final long[] mIds;
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+    private final AtomicLongArray mPublishedSequences;
+
+    /**
+     * Normalized position of every neighbour in the tree, only used by the applier thread
+     */
+    private final LongPositionMap mPositions = new LongPositionMap();
+
+    /**
+     * Next sequence to be claimed by a producer
+     */
+    private final AtomicLong mNextSequence = new AtomicLong();
+
+    /**
+     * Every sequence below this one was already read by the applier and its slot can be reused
+     */
+    private final AtomicLong mConsumedSequence = new AtomicLong();
+
+    /**
+     * Every sequence below this one was already applied to the tree
+     */
+    private final AtomicLong mAppliedSequence = new AtomicLong();
+
+    private final Thread mApplierThread;
+    private volatile boolean mIsRunning = true;
+
+    /**
+     * What stopped the applier thread, set before the pipeline stops running
+     */
+    private volatile Throwable mApplierFailure;
+
+    /**
+     * @param quadTree the tree that receives the events
+     * @param capacity size of the ring buffer, rounded up to a power of two
+     * @param maxBatchSize how many events are applied together at most
+     */
+    public IngestionPipeline(QuadTree quadTree, int capacity, int maxBatchSize) {
+        if (capacity <= 0 || maxBatchSize <= 0)
+            throw new IllegalArgumentException("Capacity and batch size must be positive");
+
+        mQuadTree = quadTree;
+        int powerOfTwo = 1;
+        while (powerOfTwo < capacity)
+            powerOfTwo <<= 1;
+
+        mCapacity = powerOfTwo;
+        mMask = mCapacity - 1;
+        mMaxBatchSize = maxBatchSize;
+
+        mTypes = new byte[mCapacity];
+        mIds = new long[mCapacity];
+        mLatitudes = new double[mCapacity];
+        mLongitudes = new double[mCapacity];
+        mPublishedSequences = new AtomicLongArray(mCapacity);
+        for (int i = 0; i < mCapacity; i++)
+            mPublishedSequences.set(i, -1);
+
+        readPositions();
+
+        mApplierThread = new Thread(this::applyLoop, "quadtree-ingestion");
+        mApplierThread.setDaemon(true);
+        mApplierThread.start();
+    }
+
+    /**
+     * Publishes an addition, waits while the ring buffer is full
+     */
+    public void addNeighbour(long id, double latitude, double longitude) {
+        publish(ADD, id, latitude, longitude, true);
+    }
+
+    /**
+     * Publishes a move, the neighbour is added if it does not exist. Waits while the ring buffer is full
+     */
+    public void moveNeighbour(long id, double latitude, double longitude) {
+        publish(MOVE, id, latitude, longitude, true);
+    }
+
+    /**
+     * Publishes a removal, waits while the ring buffer is full
+     */
+    public void removeNeighbour(long id) {
+        publish(REMOVE, id, 0, 0, true);
+    }
+
+    /**
+     * @return false if the ring buffer is full or the pipeline stopped, and the addition was not published
+     */
+    public boolean offerAddNeighbour(long id, double latitude, double longitude) {
+        return publish(ADD, id, latitude, longitude, false);
+    }
+
+    /**
+     * @return false if the ring buffer is full or the pipeline stopped, and the move was not published
+     */
+    public boolean offerMoveNeighbour(long id, double latitude, double longitude) {
+        return publish(MOVE, id, latitude, longitude, false);
+    }
+
+    /**
+     * @return false if the ring buffer is full or the pipeline stopped, and the removal was not published
+     */
+    public boolean offerRemoveNeighbour(long id) {
+        return publish(REMOVE, id, 0, 0, false);
+    }
+
+    /**
+     * @return how many events are waiting to be applied
+     */
+    public long getPendingCount() {
+        return mNextSequence.get() - mAppliedSequence.get();
+    }
+
+    /**
+     * Waits until every event published before this call is applied to the tree
+     */
+    public void flush() {
+        long sequence = mNextSequence.get();
+        while (mAppliedSequence.get() < sequence) {
+            if (mApplierFailure != null || !mApplierThread.isAlive())
+                throw stoppedException();
+
+            LockSupport.parkNanos(PRODUCER_WAIT_IN_NANOS);
+        }
+    }
+
+    /**
+     * Applies the pending events and stops the applier thread, no events can be published after this call
+     * @throws IllegalStateException if the applier failed, the events after the failure were not applied
+     */
+    public void close() throws InterruptedException {
+        mIsRunning = false;
+        mApplierThread.join();
+
+        if (mApplierFailure != null)
+            throw stoppedException();
+    }
+
+    private boolean publish(byte type, long id, double latitude, double longitude, boolean wait) {
+        long sequence;
+
+        while (true) {
+            if (!mIsRunning) {
+                if (!wait)
+                    return false;
+
+                throw stoppedException();
+            }
+
+            sequence = mNextSequence.get();
+            if (sequence - mConsumedSequence.get() >= mCapacity) {
+                if (!wait)
+                    return false;
+
+                LockSupport.parkNanos(PRODUCER_WAIT_IN_NANOS);
+                continue;
+            }
+
+            if (mNextSequence.compareAndSet(sequence, sequence + 1))
+                break;
+        }
+
+        int index = (int) (sequence & mMask);
+        mTypes[index] = type;
+        mIds[index] = id;
+        mLatitudes[index] = latitude;
+        mLongitudes[index] = longitude;
+
+        // Publishing the sequence also publishes the fields written above
+        mPublishedSequences.lazySet(index, sequence);
+        return true;
+    }
+
+    /**
+     * Reads the position of every neighbour already in the tree
+     */
+    private void readPositions() {
+        synchronized (mQuadTree) {
+            NodeStack stack = NodeStack.acquire();
+
+            try {
+                stack.push(mQuadTree.getRootNode());
+                while (!stack.isEmpty()) {
+                    QuadTreeNode node = stack.pop();
+                    if (node.getNeighboursCount() > 0) {
+                        for (Neighbour neighbour : node.getNeighbours())
+                            mPositions.put(neighbour.getId(), neighbour.getLatitude(), neighbour.getLongitude());
+                    }
+
+                    stack.pushChildren(node);
+                }
+            } finally {
+                stack.release();
+            }
+        }
+    }
+
+    private void applyLoop() {
+        try {
+            while (true) {
+                if (applyBatch() > 0)
+                    continue;
+
+                // Events claimed before close are still applied
+                if (!mIsRunning && mConsumedSequence.get() == mNextSequence.get())
+                    return;
+
+                LockSupport.parkNanos(APPLIER_IDLE_WAIT_IN_NANOS);
+            }
+        } catch (Throwable t) {
+            mApplierFailure = t;
+            mIsRunning = false;
+        }
+    }
+
+    private IllegalStateException stoppedException() {
+        Throwable failure = mApplierFailure;
+        if (failure != null)
+            return new IllegalStateException("The ingestion pipeline stopped, applying a batch failed", failure);
+
+        return new IllegalStateException("The ingestion pipeline is closed");
+    }
+
+    /**
+     * @return how many events were read from the ring buffer
+     */
+    private int applyBatch() {
+        long sequence = mConsumedSequence.get();
+        Map<Long, PendingEvent> lastEvents = new LinkedHashMap<>();
+        List<Neighbour> removedNeighbours = new ArrayList<>();
+        Set<Long> removedIds = new HashSet<>();
+        int count = 0;
+
+        while (count < mMaxBatchSize) {
+            int index = (int) (sequence & mMask);
+            if (mPublishedSequences.get(index) != sequence)
+                break;
+
+            long id = mIds[index];
+            byte type = mTypes[index];
+
+            // Only the first event of an id can touch a neighbour already in the tree,
+            // a move or removal after an addition in the same batch cancels that addition
+            if (lastEvents.put(id, new PendingEvent(type, mLatitudes[index], mLongitudes[index])) == null && type != ADD) {
+                int slot = mPositions.indexOf(id);
+                if (slot >= 0) {
+                    removedNeighbours.add(new NeighbourImpl(id, mPositions.getLatitude(slot), mPositions.getLongitude(slot)));
+                    removedIds.add(id);
+                    mPositions.removeAt(slot);
+                }
+            }
+
+            sequence++;
+            count++;
+        }
+
+        if (count == 0)
+            return 0;
+
+        // Every slot up to here was copied, producers can reuse them while the batch is applied
+        mConsumedSequence.lazySet(sequence);
+
+        QuadTreeGeometry geometry = mQuadTree.getGeometry();
+        List<Neighbour> addedNeighbours = new ArrayList<>(lastEvents.size());
+        for (Map.Entry<Long, PendingEvent> entry : lastEvents.entrySet()) {
+            PendingEvent event = entry.getValue();
+            if (event.mType == REMOVE)
+                continue;
+
+            double latitude = geometry.normalizeNeighbourLatitude(event.mLatitude);
+            double longitude = geometry.normalizeNeighbourLongitude(event.mLongitude);
+            addedNeighbours.add(new NeighbourImpl(entry.getKey(), latitude, longitude));
+            mPositions.put(entry.getKey(), latitude, longitude);
+        }
+
+        mQuadTree.applyBatch(removedNeighbours, removedIds, addedNeighbours);
+        mAppliedSequence.set(sequence);
+        return count;
+    }
+
+    private static class PendingEvent {
+
+        private final byte mType;
+        private final double mLatitude;
+        private final double mLongitude;
+
+        PendingEvent(byte type, double latitude, double longitude) {
+            mType = type;
+            mLatitude = latitude;
+            mLongitude = longitude;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package src.quadtree.core;
+
+import java.util.Arrays;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Map from a long key to a positive int, with open addressing on primitive arrays like
+ * {@link LongPositionMap}, so no object is created per entry. It is not thread safe.
+ */
+
+final class LongIntMap {
+
+    static final int NO_VALUE = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] mKeys = new long[INITIAL_CAPACITY];
+    private int[] mValues = new int[INITIAL_CAPACITY];
+    private int mMask = INITIAL_CAPACITY - 1;
+    private int mSize;
+
+    LongIntMap() {
+        Arrays.fill(mValues, NO_VALUE);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the value of the key or {@link #NO_VALUE}
+     */
+    int get(long key) {
+        int slot = slotOf(key);
+        while (mValues[slot] != NO_VALUE) {
+            if (mKeys[slot] == key)
+                return mValues[slot];
+
+            slot = (slot + 1) & mMask;
+        }
+
+        return NO_VALUE;
+    }
+
+    /**
+     * @param value zero or positive
+     * @return the previous value of the key or {@link #NO_VALUE}
+     */
+    int put(long key, int value) {
+        int slot = slotOf(key);
+        while (mValues[slot] != NO_VALUE) {
+            if (mKeys[slot] == key) {
+                int previous = mValues[slot];
+                mValues[slot] = value;
+                return previous;
+            }
+
+            slot = (slot + 1) & mMask;
+        }
+
+        if (mSize + 1 > mKeys.length >> 1) {
+            grow();
+            return put(key, value);
+        }
+
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mSize++;
+        return NO_VALUE;
+    }
+
+    /**
+     * @return the value the key had or {@link #NO_VALUE}
+     */
+    int remove(long key) {
+        int slot = slotOf(key);
+        while (mValues[slot] != NO_VALUE) {
+            if (mKeys[slot] == key) {
+                int value = mValues[slot];
+                removeAt(slot);
+                return value;
+            }
+
+            slot = (slot + 1) & mMask;
+        }
+
+        return NO_VALUE;
+    }
+
+    /**
+     * The entries after the slot are shifted back so no tombstone is left, see {@link LongPositionMap#removeAt(int)}
+     */
+    private void removeAt(int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mMask;
+
+        while (mValues[next] != NO_VALUE) {
+            int home = slotOf(mKeys[next]);
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mKeys[hole] = mKeys[next];
+                mValues[hole] = mValues[next];
+                hole = next;
+            }
+
+            next = (next + 1) & mMask;
+        }
+
+        mValues[hole] = NO_VALUE;
+        mSize--;
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        int[] values = mValues;
+
+        mKeys = new long[keys.length * 2];
+        mValues = new int[keys.length * 2];
+        Arrays.fill(mValues, NO_VALUE);
+        mMask = mKeys.length - 1;
+        mSize = 0;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != NO_VALUE)
+                put(keys[i], values[i]);
+        }
+    }
+
+    private int slotOf(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mMask;
+    }
+}
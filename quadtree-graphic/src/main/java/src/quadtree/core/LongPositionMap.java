@@ -0,0 +1,141 @@
+package src.quadtree.core;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Map from the id of a neighbour to its normalized position.
+ *
+ * The ids and the coordinates are kept in primitive arrays with open addressing and linear
+ * probing, so no object is created per entry. The arrays are doubled when half of the slots
+ * are used. It is not thread safe.
+ */
+
+final class LongPositionMap {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] mIds = new long[INITIAL_CAPACITY];
+    private double[] mLatitudes = new double[INITIAL_CAPACITY];
+    private double[] mLongitudes = new double[INITIAL_CAPACITY];
+    private boolean[] mUsed = new boolean[INITIAL_CAPACITY];
+    private int mMask = INITIAL_CAPACITY - 1;
+    private int mSize;
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Adds the id or replaces its position
+     */
+    void put(long id, double latitude, double longitude) {
+        int slot = slotOf(id);
+        while (mUsed[slot] && mIds[slot] != id)
+            slot = (slot + 1) & mMask;
+
+        if (!mUsed[slot]) {
+            if (mSize + 1 > mIds.length >> 1) {
+                grow();
+                put(id, latitude, longitude);
+                return;
+            }
+
+            mUsed[slot] = true;
+            mIds[slot] = id;
+            mSize++;
+        }
+
+        mLatitudes[slot] = latitude;
+        mLongitudes[slot] = longitude;
+    }
+
+    /**
+     * @return the slot of the id, or -1 if the id is not in the map
+     */
+    int indexOf(long id) {
+        int slot = slotOf(id);
+        while (mUsed[slot]) {
+            if (mIds[slot] == id)
+                return slot;
+
+            slot = (slot + 1) & mMask;
+        }
+
+        return -1;
+    }
+
+    double getLatitude(int slot) {
+        return mLatitudes[slot];
+    }
+
+    double getLongitude(int slot) {
+        return mLongitudes[slot];
+    }
+
+    /**
+     * Removes the entry in the slot, the entries after it are shifted back so no tombstone is left
+     * @param slot a slot returned by {@link #indexOf(long)}
+     */
+    void removeAt(int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mMask;
+
+        while (mUsed[next]) {
+            // An entry can only move back if its own slot is not between the hole and its current slot
+            int home = slotOf(mIds[next]);
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mIds[hole] = mIds[next];
+                mLatitudes[hole] = mLatitudes[next];
+                mLongitudes[hole] = mLongitudes[next];
+                hole = next;
+            }
+
+            next = (next + 1) & mMask;
+        }
+
+        mUsed[hole] = false;
+        mSize--;
+    }
+
+    private void grow() {
+        long[] ids = mIds;
+        double[] latitudes = mLatitudes;
+        double[] longitudes = mLongitudes;
+        boolean[] used = mUsed;
+
+        int capacity = ids.length * 2;
+        mIds = new long[capacity];
+        mLatitudes = new double[capacity];
+        mLongitudes = new double[capacity];
+        mUsed = new boolean[capacity];
+        mMask = capacity - 1;
+        mSize = 0;
+
+        for (int i = 0; i < ids.length; i++) {
+            if (used[i])
+                put(ids[i], latitudes[i], longitudes[i]);
+        }
+    }
+
+    private int slotOf(long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mMask;
+    }
+}
@@ -0,0 +1,102 @@
+package src.quadtree.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Best-first search for the nearest neighbours of a point.
+ *
+ * Nodes and neighbours share one queue ordered by their distance to the point, a node is
+ * opened only when it is closer than every neighbour already found, so the search stops as
+ * soon as enough neighbours leave the queue.
+ *
+ * Distances are measured in degrees, like every other search in the quadtree.
+ */
+
+class NearestNeighbourSearch {
+
+    private NearestNeighbourSearch() {
+    }
+
+    static List<Neighbour> find(QuadTreeNode rootNode, double latitude, double longitude, int count) {
+        List<Neighbour> neighbours = new ArrayList<>(Math.max(count, 0));
+        if (count <= 0)
+            return neighbours;
+
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        queue.add(new Candidate(squaredDistanceToNode(rootNode, latitude, longitude), rootNode, null));
+
+        while (!queue.isEmpty() && neighbours.size() < count) {
+            Candidate candidate = queue.poll();
+
+            if (candidate.mNeighbour != null) {
+                neighbours.add(candidate.mNeighbour);
+                continue;
+            }
+
+            QuadTreeNode node = candidate.mNode;
+            for (Neighbour neighbour : node.getNeighbours()) {
+                double latitudeDistance = neighbour.getLatitude() - latitude;
+                double longitudeDistance = neighbour.getLongitude() - longitude;
+                queue.add(new Candidate(latitudeDistance * latitudeDistance + longitudeDistance * longitudeDistance, null, neighbour));
+            }
+
+            for (int childIndex = 0; childIndex < node.mChildren.length(); childIndex++)
+                addNode(queue, node.mChildren.get(childIndex), latitude, longitude);
+        }
+
+        return neighbours;
+    }
+
+    /**
+     * @return the squared distance from the point to the closest point of the node, zero if it is inside
+     */
+    static double squaredDistanceToNode(QuadTreeNode node, double latitude, double longitude) {
+        double longitudeDistance = Math.max(0, Math.max(node.mBounds.x - longitude, longitude - (node.mBounds.x + node.mBounds.width)));
+        double latitudeDistance = Math.max(0, Math.max(node.mBounds.y - latitude, latitude - (node.mBounds.y + node.mBounds.height)));
+        return latitudeDistance * latitudeDistance + longitudeDistance * longitudeDistance;
+    }
+
+    private static void addNode(PriorityQueue<Candidate> queue, QuadTreeNode node, double latitude, double longitude) {
+        if (node != null)
+            queue.add(new Candidate(squaredDistanceToNode(node, latitude, longitude), node, null));
+    }
+
+    private static class Candidate implements Comparable<Candidate> {
+
+        private final double mSquaredDistance;
+        private final QuadTreeNode mNode;
+        private final Neighbour mNeighbour;
+
+        Candidate(double squaredDistance, QuadTreeNode node, Neighbour neighbour) {
+            mSquaredDistance = squaredDistance;
+            mNode = node;
+            mNeighbour = neighbour;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Double.compare(mSquaredDistance, other.mSquaredDistance);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package src.quadtree.core;
+
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/**
+ * Filters neighbours while the quadtree is being searched, rejected neighbours are
+ * never added to the result set
+ */
+public interface NeighbourFilter {
+
+    public boolean accept(Neighbour neighbour);
+
+    /**
+     * @return a filter that accepts only the neighbours added with a payload matching the predicate
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> NeighbourFilter payload(Predicate<? super T> predicate) {
+        return neighbour -> neighbour instanceof PayloadNeighbour
+                && predicate.test(((PayloadNeighbour<T>) neighbour).getPayload());
+    }
+
+    /**
+     * @return a filter that accepts only the neighbours added with an int payload matching the predicate
+     */
+    public static NeighbourFilter intPayload(IntPredicate predicate) {
+        return neighbour -> neighbour instanceof IntPayloadNeighbour
+                && predicate.test(((IntPayloadNeighbour) neighbour).getIntPayload());
+    }
+
+}
@@ -0,0 +1,71 @@
+package src.quadtree.core;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Operations shared by every index of neighbours, such as {@link QuadTree} and {@link ShardedQuadTree}.
+ * Latitudes and longitudes are in degrees, from -90 to 90 and from -180 to 180.
+ */
+
+public interface NeighbourIndex {
+
+    public void addNeighbour(long id, double latitude, double longitude);
+
+    /**
+     * @return if the neighbour existed and was removed
+     */
+    public boolean removeNeighbour(long id);
+
+    public void moveNeighbour(long id, double latitude, double longitude);
+
+    /**
+     * Applies many writes in their order, indexes can apply them together under fewer locks
+     * @return for each write if it was applied, false for the removals of neighbours that do not exist
+     */
+    public default boolean[] applyWrites(List<NeighbourWrite> writes) {
+        boolean[] applied = new boolean[writes.size()];
+        for (int i = 0; i < applied.length; i++)
+            applied[i] = writes.get(i).applyTo(this);
+
+        return applied;
+    }
+
+    public Set<Neighbour> findNeighbours(double latitude, double longitude, double rangeInKm);
+
+    public Set<Neighbour> findNeighbours(double latitude, double longitude, double rangeInKm, NeighbourFilter filter);
+
+    public Set<Long> findNeighboursIds(double latitude, double longitude, double rangeInKm);
+
+    public Set<Neighbour> findNeighboursWithinRadius(double latitude, double longitude, double rangeInKm);
+
+    public Set<Neighbour> findNeighboursWithin(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude);
+
+    public List<Neighbour> findNearestNeighbours(double latitude, double longitude, int count);
+
+    /**
+     * Visits every neighbour once. A {@link QuadTree} blocks its writers during the visit,
+     * a {@link ShardedQuadTree} only blocks the writers of the shard being visited
+     */
+    public void forEachNeighbour(NeighbourVisitor visitor);
+
+}
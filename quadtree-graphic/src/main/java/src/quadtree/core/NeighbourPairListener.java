@@ -0,0 +1,33 @@
+package src.quadtree.core;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public interface NeighbourPairListener {
+
+    /**
+     * Called once for every matching pair found by a join.
+     * When the join runs in parallel this method is called from several threads at once.
+     *
+     * @param idA the neighbour's id from the first tree
+     * @param idB the neighbour's id from the second tree
+     */
+    public void onPair(long idA, long idB);
+
+}
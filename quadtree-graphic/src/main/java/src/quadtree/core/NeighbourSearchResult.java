@@ -0,0 +1,52 @@
+package src.quadtree.core;
+
+import java.util.Set;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Neighbours found by a search with a deadline, see
+ * {@link QuadTree#findNeighboursAsync(double, double, double, long, java.util.concurrent.TimeUnit)}.
+ *
+ * When the deadline passed before the search ended the result is incomplete, it holds the
+ * neighbours of the cells closest to the center of the area of interest.
+ */
+
+public final class NeighbourSearchResult {
+
+    private final Set<Neighbour> mNeighbours;
+    private final boolean mComplete;
+
+    NeighbourSearchResult(Set<Neighbour> neighbours, boolean complete) {
+        mNeighbours = neighbours;
+        mComplete = complete;
+    }
+
+    public Set<Neighbour> getNeighbours() {
+        return mNeighbours;
+    }
+
+    /**
+     * @return false if the deadline passed and some cells were not searched
+     */
+    public boolean isComplete() {
+        return mComplete;
+    }
+}
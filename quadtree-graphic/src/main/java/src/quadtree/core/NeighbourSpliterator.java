@@ -0,0 +1,163 @@
+package src.quadtree.core;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Lazy search for neighbours inside a rectangle.
+ *
+ * Instead of filling a set, the nodes are visited only when the next neighbour is requested,
+ * so the caller gets the first neighbours right away and can stop at any time. Nodes that
+ * are still waiting to be visited can be handed to another spliterator, which makes the
+ * search usable by parallel streams.
+ *
+ * Like {@link QuadTreeNode#findNeighboursWithinRectangle(java.util.Set, Rectangle2D.Double)}
+ * the tree is read without locks, neighbours added while the search runs may or may not be found.
+ */
+
+class NeighbourSpliterator implements Spliterator<Neighbour> {
+
+    private final Rectangle2D.Double mRangeAsRectangle;
+    private final NeighbourFilter mFilter;
+
+    /**
+     * Nodes to be visited, the first one is the next to be visited
+     */
+    private final Deque<QuadTreeNode> mPendingNodes;
+
+    private List<Neighbour> mLeafNeighbours;
+    private int mLeafIndex;
+
+    NeighbourSpliterator(QuadTreeNode rootNode, Rectangle2D.Double rangeAsRectangle, NeighbourFilter filter) {
+        this(new ArrayDeque<>(), rangeAsRectangle, filter);
+        mPendingNodes.push(rootNode);
+    }
+
+    private NeighbourSpliterator(Deque<QuadTreeNode> pendingNodes, Rectangle2D.Double rangeAsRectangle, NeighbourFilter filter) {
+        mPendingNodes = pendingNodes;
+        mRangeAsRectangle = rangeAsRectangle;
+        mFilter = filter;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Neighbour> action) {
+        while (true) {
+            if (mLeafNeighbours != null) {
+                while (mLeafIndex < mLeafNeighbours.size()) {
+                    Neighbour neighbour = mLeafNeighbours.get(mLeafIndex++);
+                    if (mRangeAsRectangle.contains(neighbour.getLongitude(), neighbour.getLatitude())
+                            && (mFilter == null || mFilter.accept(neighbour))) {
+                        action.accept(neighbour);
+                        return true;
+                    }
+                }
+
+                mLeafNeighbours = null;
+            }
+
+            if (!nextLeaf())
+                return false;
+        }
+    }
+
+    @Override
+    public Spliterator<Neighbour> trySplit() {
+        // Open the nodes until there is something to share
+        while (mPendingNodes.size() == 1) {
+            QuadTreeNode node = mPendingNodes.pop();
+            if (!expand(node)) {
+                mPendingNodes.push(node);
+                return null;
+            }
+        }
+
+        if (mPendingNodes.size() < 2)
+            return null;
+
+        // The last nodes are the biggest ones, they were pushed by the upper levels
+        Deque<QuadTreeNode> splitNodes = new ArrayDeque<>();
+        int half = mPendingNodes.size() / 2;
+        for (int i = 0; i < half; i++)
+            splitNodes.push(mPendingNodes.pollLast());
+
+        return new NeighbourSpliterator(splitNodes, mRangeAsRectangle, mFilter);
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return NONNULL | DISTINCT;
+    }
+
+    /**
+     * Visits pending nodes until a leaf inside the area of interest is found
+     * @return false if there are no more nodes to visit
+     */
+    private boolean nextLeaf() {
+        while (!mPendingNodes.isEmpty()) {
+            QuadTreeNode node = mPendingNodes.pop();
+
+            if (!node.contentIntersects(mRangeAsRectangle))
+                continue;
+
+            if (!expand(node)) {
+                mLeafNeighbours = node.getNeighbours();
+                mLeafIndex = 0;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds the children of the node, that intersect the area of interest, to the pending nodes
+     * @return false if the node is a leaf
+     */
+    private boolean expand(QuadTreeNode node) {
+        boolean hasChildren = false;
+
+        // Pushed in reverse, so the top left child is visited first
+        for (int i = node.mChildren.length() - 1; i >= 0; i--) {
+            QuadTreeNode child = node.mChildren.get(i);
+            if (child != null) {
+                pushIfIntersects(child);
+                hasChildren = true;
+            }
+        }
+
+        return hasChildren;
+    }
+
+    private void pushIfIntersects(QuadTreeNode node) {
+        if (node.contentIntersects(mRangeAsRectangle))
+            mPendingNodes.push(node);
+    }
+}
@@ -0,0 +1,32 @@
+package src.quadtree.core;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public interface NeighbourVisitor {
+
+    /**
+     * Called once for every neighbour of an index, see {@link NeighbourIndex#forEachNeighbour(NeighbourVisitor)}
+     *
+     * @param latitude in degrees, as the neighbour was added
+     * @param longitude in degrees, as the neighbour was added
+     */
+    public void visit(long id, double latitude, double longitude);
+
+}
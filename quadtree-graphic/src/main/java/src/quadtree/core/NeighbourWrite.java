@@ -0,0 +1,84 @@
+package src.quadtree.core;
+
+import java.util.List;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Addition, move or removal of a neighbour, applied with others by {@link NeighbourIndex#applyWrites(List)}.
+ */
+
+public final class NeighbourWrite {
+
+    public static final byte ADD = 1;
+    public static final byte MOVE = 2;
+    public static final byte REMOVE = 3;
+
+    final byte mType;
+    final long mId;
+    final double mLatitude;
+    final double mLongitude;
+
+    /**
+     * @param type {@link #ADD}, {@link #MOVE} or {@link #REMOVE}, the coordinates of a removal are ignored
+     */
+    public NeighbourWrite(byte type, long id, double latitude, double longitude) {
+        if (type != ADD && type != MOVE && type != REMOVE)
+            throw new IllegalArgumentException("Unknown write type " + type);
+
+        mType = type;
+        mId = id;
+        mLatitude = latitude;
+        mLongitude = longitude;
+    }
+
+    public byte getType() {
+        return mType;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    /**
+     * Applies this write alone
+     * @return false for the removal of a neighbour that does not exist
+     */
+    boolean applyTo(NeighbourIndex index) {
+        switch (mType) {
+            case ADD:
+                index.addNeighbour(mId, mLatitude, mLongitude);
+                return true;
+            case MOVE:
+                index.moveNeighbour(mId, mLatitude, mLongitude);
+                return true;
+            default:
+                return index.removeNeighbour(mId);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package src.quadtree.core;
+
+import java.util.Arrays;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Stack of nodes used by the iterative traversals of {@link QuadTreeNode}.
+ *
+ * Each thread keeps one stack and reuses it, so a traversal does not allocate. A depth
+ * first traversal holds at most 3 nodes per level plus one, the initial size covers trees
+ * much deeper than the default geometry and the stack grows if a tree is deeper still.
+ * A traversal started while the stack of the thread is in use, from a filter for example,
+ * gets a new stack instead.
+ *
+ * Node types outside of this package, like the drawable nodes, use it for their own traversals.
+ */
+
+public final class NodeStack {
+
+    private static final int INITIAL_CAPACITY = 3 * 32 + 1;
+
+    private static final ThreadLocal<NodeStack> STACKS = ThreadLocal.withInitial(NodeStack::new);
+
+    private QuadTreeNode[] mNodes = new QuadTreeNode[INITIAL_CAPACITY];
+    private int mSize;
+    private boolean mInUse;
+
+    private NodeStack() {
+    }
+
+    /**
+     * @return the stack of the current thread, it must be given back with {@link #release()}
+     */
+    public static NodeStack acquire() {
+        NodeStack stack = STACKS.get();
+        if (stack.mInUse)
+            stack = new NodeStack();
+
+        stack.mInUse = true;
+        return stack;
+    }
+
+    public void release() {
+        clear();
+        mInUse = false;
+    }
+
+    void clear() {
+        // Drop the references, so removed nodes can be collected
+        Arrays.fill(mNodes, 0, mSize, null);
+        mSize = 0;
+    }
+
+    public void push(QuadTreeNode node) {
+        if (mSize == mNodes.length)
+            mNodes = Arrays.copyOf(mNodes, mSize * 2);
+
+        mNodes[mSize++] = node;
+    }
+
+    /**
+     * Pushes the children of the node that exist, in reverse so they are popped in the order of mChildren
+     * @return false if the node is a leaf
+     */
+    public boolean pushChildren(QuadTreeNode node) {
+        boolean hasChildren = false;
+
+        for (int i = node.mChildren.length() - 1; i >= 0; i--) {
+            QuadTreeNode child = node.mChildren.get(i);
+            if (child != null) {
+                push(child);
+                hasChildren = true;
+            }
+        }
+
+        return hasChildren;
+    }
+
+    public QuadTreeNode pop() {
+        QuadTreeNode node = mNodes[--mSize];
+        mNodes[mSize] = null;
+        return node;
+    }
+
+    QuadTreeNode get(int index) {
+        return mNodes[index];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+}
@@ -0,0 +1,128 @@
+package src.quadtree.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Fixed size records kept outside of the Java heap, used by {@link OffHeapQuadTree}.
+ *
+ * Records are addressed by an int index and live in direct buffers of the same size, called
+ * chunks, a new chunk is allocated when every record is in use. Freed records are chained in
+ * a free list through their first 4 bytes and reused before the arena grows. Chunks are never
+ * released, the memory goes back to the system only when the arena itself is collected.
+ *
+ * It is not thread safe, the owner locks around it.
+ */
+
+final class OffHeapArena {
+
+    static final int NONE = -1;
+
+    private final int mRecordSize;
+    private final int mChunkShift;
+    private final int mChunkMask;
+
+    private ByteBuffer[] mChunks = new ByteBuffer[0];
+    private int mAllocated;
+    private int mFreeHead = NONE;
+    private int mFreeCount;
+
+    /**
+     * @param recordSize bytes per record, at least 4
+     * @param chunkShift each chunk holds 2^chunkShift records
+     */
+    OffHeapArena(int recordSize, int chunkShift) {
+        mRecordSize = recordSize;
+        mChunkShift = chunkShift;
+        mChunkMask = (1 << chunkShift) - 1;
+    }
+
+    /**
+     * @return the index of a record, its content is undefined
+     */
+    int allocate() {
+        if (mFreeHead != NONE) {
+            int index = mFreeHead;
+            mFreeHead = getInt(index, 0);
+            mFreeCount--;
+            return index;
+        }
+
+        int index = mAllocated++;
+        int chunk = index >>> mChunkShift;
+        if (chunk == mChunks.length) {
+            mChunks = Arrays.copyOf(mChunks, chunk + 1);
+            mChunks[chunk] = ByteBuffer.allocateDirect(mRecordSize << mChunkShift).order(ByteOrder.nativeOrder());
+        }
+
+        return index;
+    }
+
+    void free(int index) {
+        putInt(index, 0, mFreeHead);
+        mFreeHead = index;
+        mFreeCount++;
+    }
+
+    /**
+     * @return how many records are in use
+     */
+    int size() {
+        return mAllocated - mFreeCount;
+    }
+
+    /**
+     * @return the bytes of every chunk, in use or not
+     */
+    long capacityInBytes() {
+        return (long) mChunks.length * (mRecordSize << mChunkShift);
+    }
+
+    int getInt(int index, int field) {
+        return mChunks[index >>> mChunkShift].getInt(offset(index, field));
+    }
+
+    void putInt(int index, int field, int value) {
+        mChunks[index >>> mChunkShift].putInt(offset(index, field), value);
+    }
+
+    long getLong(int index, int field) {
+        return mChunks[index >>> mChunkShift].getLong(offset(index, field));
+    }
+
+    void putLong(int index, int field, long value) {
+        mChunks[index >>> mChunkShift].putLong(offset(index, field), value);
+    }
+
+    double getDouble(int index, int field) {
+        return mChunks[index >>> mChunkShift].getDouble(offset(index, field));
+    }
+
+    void putDouble(int index, int field, double value) {
+        mChunks[index >>> mChunkShift].putDouble(offset(index, field), value);
+    }
+
+    private int offset(int index, int field) {
+        return (index & mChunkMask) * mRecordSize + field;
+    }
+}
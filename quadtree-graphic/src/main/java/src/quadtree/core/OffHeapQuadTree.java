@@ -0,0 +1,618 @@
+package src.quadtree.core;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Quadtree kept outside of the Java heap, so a big index does not make the garbage collector
+ * slower. Build it with {@link QuadTree.Builder#buildOffHeap()}, it splits the nodes the same
+ * way as a {@link QuadTree} with the same geometry.
+ *
+ * The nodes live in one {@link OffHeapArena}, each one keeps the indexes of its children, its
+ * count and its content bounds. The bounds of a node are not stored, they are computed on the
+ * way down. The neighbours of a leaf live in a chain of blocks of another arena, only the first
+ * block of the chain is not full. Emptied blocks and nodes go back to the free lists of their
+ * arenas and are reused by the next writes.
+ *
+ * Only the neighbours returned by the queries are created on the heap. Payloads are not kept.
+ * Writes take a write lock and queries a read lock, like the shards of a {@link ShardedQuadTree}.
+ * Direct memory is limited by -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+ */
+
+public class OffHeapQuadTree implements NeighbourIndex {
+
+    private static final int NONE = OffHeapArena.NONE;
+    private static final int ROOT = 0;
+
+    /*
+        Node record: 4 child indexes, first block of the leaf, neighbours in the leaf,
+        neighbours below the node and the content bounds
+     */
+    private static final int NODE_CHILDREN = 0;
+    private static final int NODE_FIRST_BLOCK = 16;
+    private static final int NODE_LEAF_SIZE = 20;
+    private static final int NODE_COUNT = 24;
+    private static final int NODE_MIN_LATITUDE = 32;
+    private static final int NODE_MAX_LATITUDE = 40;
+    private static final int NODE_MIN_LONGITUDE = 48;
+    private static final int NODE_MAX_LONGITUDE = 56;
+    private static final int NODE_SIZE = 64;
+    private static final int NODES_CHUNK_SHIFT = 15;
+
+    /*
+        Block record: next block of the chain, neighbours in the block,
+        then the id, latitude and longitude of each neighbour
+     */
+    private static final int BLOCK_CAPACITY = 16;
+    private static final int BLOCK_NEXT = 0;
+    private static final int BLOCK_SIZE = 4;
+    private static final int BLOCK_NEIGHBOURS = 8;
+    private static final int NEIGHBOUR_SIZE = 24;
+    private static final int BLOCK_RECORD_SIZE = BLOCK_NEIGHBOURS + BLOCK_CAPACITY * NEIGHBOUR_SIZE;
+    private static final int BLOCKS_CHUNK_SHIFT = 13;
+
+    private final QuadTreeGeometry mGeometry;
+    private final OffHeapArena mNodes = new OffHeapArena(NODE_SIZE, NODES_CHUNK_SHIFT);
+    private final OffHeapArena mBlocks = new OffHeapArena(BLOCK_RECORD_SIZE, BLOCKS_CHUNK_SHIFT);
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    public OffHeapQuadTree() {
+        this(new QuadTree.Builder().buildGeometry());
+    }
+
+    OffHeapQuadTree(QuadTreeGeometry geometry) {
+        mGeometry = geometry;
+        createNode();
+    }
+
+    @Override
+    public void addNeighbour(long id, double latitude, double longitude) {
+        mLock.writeLock().lock();
+        try {
+            insert(id, mGeometry.normalizeNeighbourLatitude(latitude), mGeometry.normalizeNeighbourLongitude(longitude));
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean removeNeighbour(long id) {
+        mLock.writeLock().lock();
+        try {
+            return remove(ROOT, id);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves a neighbour to a new position, if the neighbour does not exist it is added
+     */
+    @Override
+    public void moveNeighbour(long id, double latitude, double longitude) {
+        mLock.writeLock().lock();
+        try {
+            remove(ROOT, id);
+            insert(id, mGeometry.normalizeNeighbourLatitude(latitude), mGeometry.normalizeNeighbourLongitude(longitude));
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<Neighbour> findNeighbours(double latitude, double longitude, double rangeInKm) {
+        return findNeighbours(latitude, longitude, rangeInKm, null);
+    }
+
+    @Override
+    public Set<Neighbour> findNeighbours(double latitude, double longitude, double rangeInKm, NeighbourFilter filter) {
+        double rangeInDegrees = mGeometry.kmToDegree(rangeInKm);
+        return find(mGeometry.getRangeAsRectangle(mGeometry.normalizeLatitude(latitude), mGeometry.normalizeLongitude(longitude), rangeInDegrees), filter);
+    }
+
+    @Override
+    public Set<Long> findNeighboursIds(double latitude, double longitude, double rangeInKm) {
+        Set<Long> neighboursIds = new HashSet<>();
+
+        for (Neighbour neighbour : findNeighbours(latitude, longitude, rangeInKm))
+            neighboursIds.add(neighbour.getId());
+
+        return neighboursIds;
+    }
+
+    @Override
+    public Set<Neighbour> findNeighboursWithinRadius(double latitude, double longitude, double rangeInKm) {
+        final double centerLatitude = mGeometry.normalizeLatitude(latitude);
+        final double centerLongitude = mGeometry.normalizeLongitude(longitude);
+        final double rangeInDegrees = mGeometry.kmToDegree(rangeInKm);
+        final double squaredRange = rangeInDegrees * rangeInDegrees;
+
+        return findNeighbours(latitude, longitude, rangeInKm, neighbour -> {
+            double latitudeDistance = neighbour.getLatitude() - centerLatitude;
+            double longitudeDistance = neighbour.getLongitude() - centerLongitude;
+            return latitudeDistance * latitudeDistance + longitudeDistance * longitudeDistance <= squaredRange;
+        });
+    }
+
+    @Override
+    public Set<Neighbour> findNeighboursWithin(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+        return find(new Rectangle2D.Double(mGeometry.normalizeLongitude(minLongitude), mGeometry.normalizeLatitude(minLatitude),
+                maxLongitude - minLongitude, maxLatitude - minLatitude), null);
+    }
+
+    /**
+     * Finds the closest neighbours to the given point, distances are measured in degrees
+     * @param count how many neighbours should be returned at most
+     */
+    @Override
+    public List<Neighbour> findNearestNeighbours(double latitude, double longitude, int count) {
+        List<Neighbour> neighbours = new ArrayList<>(Math.max(count, 0));
+        if (count <= 0)
+            return neighbours;
+
+        double normalizedLatitude = mGeometry.normalizeLatitude(latitude);
+        double normalizedLongitude = mGeometry.normalizeLongitude(longitude);
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+
+        mLock.readLock().lock();
+        try {
+            addNode(queue, ROOT, normalizedLatitude, normalizedLongitude);
+
+            while (!queue.isEmpty() && neighbours.size() < count) {
+                Candidate candidate = queue.poll();
+
+                if (candidate.mNeighbour != null) {
+                    neighbours.add(candidate.mNeighbour);
+                    continue;
+                }
+
+                for (int block = mNodes.getInt(candidate.mNode, NODE_FIRST_BLOCK); block != NONE; block = mBlocks.getInt(block, BLOCK_NEXT)) {
+                    for (int slot = 0; slot < mBlocks.getInt(block, BLOCK_SIZE); slot++) {
+                        Neighbour neighbour = neighbourAt(block, slot);
+                        double latitudeDistance = neighbour.getLatitude() - normalizedLatitude;
+                        double longitudeDistance = neighbour.getLongitude() - normalizedLongitude;
+                        queue.add(new Candidate(latitudeDistance * latitudeDistance + longitudeDistance * longitudeDistance, NONE, neighbour));
+                    }
+                }
+
+                for (int i = 0; i < 4; i++)
+                    addNode(queue, child(candidate.mNode, i), normalizedLatitude, normalizedLongitude);
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        return neighbours;
+    }
+
+    /**
+     * Visits every neighbour once, writers are blocked during the visit
+     */
+    @Override
+    public void forEachNeighbour(NeighbourVisitor visitor) {
+        mLock.readLock().lock();
+        try {
+            Deque<Integer> pendingNodes = new ArrayDeque<>();
+            pendingNodes.push(ROOT);
+
+            while (!pendingNodes.isEmpty()) {
+                int node = pendingNodes.pop();
+
+                for (int block = mNodes.getInt(node, NODE_FIRST_BLOCK); block != NONE; block = mBlocks.getInt(block, BLOCK_NEXT)) {
+                    for (int slot = 0; slot < mBlocks.getInt(block, BLOCK_SIZE); slot++) {
+                        int field = BLOCK_NEIGHBOURS + slot * NEIGHBOUR_SIZE;
+                        visitor.visit(mBlocks.getLong(block, field), mGeometry.denormalizeLatitude(mBlocks.getDouble(block, field + 8)),
+                                mGeometry.denormalizeLongitude(mBlocks.getDouble(block, field + 16)));
+                    }
+                }
+
+                for (int i = 0; i < 4; i++) {
+                    if (child(node, i) != NONE)
+                        pendingNodes.push(child(node, i));
+                }
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return how many neighbours are stored
+     */
+    public int size() {
+        mLock.readLock().lock();
+        try {
+            return mNodes.getInt(ROOT, NODE_COUNT);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the direct memory reserved by the nodes and blocks, including the free ones
+     */
+    public long getOffHeapBytes() {
+        mLock.readLock().lock();
+        try {
+            return mNodes.capacityInBytes() + mBlocks.capacityInBytes();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    private Set<Neighbour> find(Rectangle2D.Double areaOfInterest, NeighbourFilter filter) {
+        Set<Neighbour> neighbourSet = new HashSet<>();
+
+        mLock.readLock().lock();
+        try {
+            find(ROOT, areaOfInterest, neighbourSet, filter);
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        return neighbourSet;
+    }
+
+    /**
+     * @param areaOfInterest null when the whole node is known to be inside the area of interest
+     */
+    private void find(int node, Rectangle2D.Double areaOfInterest, Set<Neighbour> neighbourSet, NeighbourFilter filter) {
+        if (areaOfInterest != null) {
+            if (!contentIntersects(node, areaOfInterest))
+                return;
+
+            // All of the neighbours below this node are inside the area of interest
+            if (contentInside(node, areaOfInterest))
+                areaOfInterest = null;
+        }
+
+        for (int block = mNodes.getInt(node, NODE_FIRST_BLOCK); block != NONE; block = mBlocks.getInt(block, BLOCK_NEXT)) {
+            for (int slot = 0; slot < mBlocks.getInt(block, BLOCK_SIZE); slot++) {
+                int field = BLOCK_NEIGHBOURS + slot * NEIGHBOUR_SIZE;
+                if (areaOfInterest != null && !areaOfInterest.contains(mBlocks.getDouble(block, field + 16), mBlocks.getDouble(block, field + 8)))
+                    continue;
+
+                Neighbour neighbour = neighbourAt(block, slot);
+                if (filter == null || filter.accept(neighbour))
+                    neighbourSet.add(neighbour);
+            }
+        }
+
+        for (int i = 0; i < 4; i++) {
+            int child = child(node, i);
+            if (child != NONE)
+                find(child, areaOfInterest, neighbourSet, filter);
+        }
+    }
+
+    /**
+     * Goes down like {@link QuadTreeNode#addNeighbour(Neighbour, double, int)}, growing the count and
+     * the content bounds of every node on the way
+     */
+    private void insert(long id, double latitude, double longitude) {
+        int node = ROOT;
+        double x = 0;
+        double y = 0;
+        double width = mGeometry.mLongitudeRange;
+        double height = mGeometry.mLatitudeRange;
+
+        // Same rule as QuadTreeNode, the node goes down while its largest side can be halved
+        while (Math.max(width, height) * .5f >= mGeometry.mDeepestNodeSizeInDegrees) {
+            if (mGeometry.mLeafCapacity > 0 && isLeaf(node)) {
+                if (mNodes.getInt(node, NODE_LEAF_SIZE) < mGeometry.mLeafCapacity)
+                    break;
+
+                split(node, x, y, width, height);
+            }
+
+            includeInNode(node, latitude, longitude);
+
+            double halfWidth = width * .5f;
+            double halfHeight = height * .5f;
+            int index = childIndexFor(x, y, halfWidth, halfHeight, latitude, longitude);
+            if (index == QuadTreeNode.TOP_RIGHT || index == QuadTreeNode.BOTTOM_RIGHT)
+                x += halfWidth;
+            if (index == QuadTreeNode.BOTTOM_LEFT || index == QuadTreeNode.BOTTOM_RIGHT)
+                y += halfHeight;
+
+            width = halfWidth;
+            height = halfHeight;
+            node = childOrCreate(node, index);
+        }
+
+        includeInNode(node, latitude, longitude);
+        addToLeaf(node, id, latitude, longitude);
+    }
+
+    /**
+     * Moves the neighbours of a full leaf down to its children, the blocks of the leaf are freed
+     */
+    private void split(int node, double x, double y, double width, double height) {
+        double halfWidth = width * .5f;
+        double halfHeight = height * .5f;
+        int block = mNodes.getInt(node, NODE_FIRST_BLOCK);
+        mNodes.putInt(node, NODE_FIRST_BLOCK, NONE);
+        mNodes.putInt(node, NODE_LEAF_SIZE, 0);
+
+        while (block != NONE) {
+            for (int slot = 0; slot < mBlocks.getInt(block, BLOCK_SIZE); slot++) {
+                int field = BLOCK_NEIGHBOURS + slot * NEIGHBOUR_SIZE;
+                long id = mBlocks.getLong(block, field);
+                double latitude = mBlocks.getDouble(block, field + 8);
+                double longitude = mBlocks.getDouble(block, field + 16);
+
+                int child = childOrCreate(node, childIndexFor(x, y, halfWidth, halfHeight, latitude, longitude));
+                includeInNode(child, latitude, longitude);
+                addToLeaf(child, id, latitude, longitude);
+            }
+
+            int next = mBlocks.getInt(block, BLOCK_NEXT);
+            mBlocks.free(block);
+            block = next;
+        }
+    }
+
+    /**
+     * Stores the neighbour in the first block of the leaf, a new first block is chained when it is full
+     */
+    private void addToLeaf(int node, long id, double latitude, double longitude) {
+        int block = mNodes.getInt(node, NODE_FIRST_BLOCK);
+        if (block == NONE || mBlocks.getInt(block, BLOCK_SIZE) == BLOCK_CAPACITY) {
+            int newBlock = mBlocks.allocate();
+            mBlocks.putInt(newBlock, BLOCK_NEXT, block);
+            mBlocks.putInt(newBlock, BLOCK_SIZE, 0);
+            mNodes.putInt(node, NODE_FIRST_BLOCK, newBlock);
+            block = newBlock;
+        }
+
+        int slot = mBlocks.getInt(block, BLOCK_SIZE);
+        int field = BLOCK_NEIGHBOURS + slot * NEIGHBOUR_SIZE;
+        mBlocks.putLong(block, field, id);
+        mBlocks.putDouble(block, field + 8, latitude);
+        mBlocks.putDouble(block, field + 16, longitude);
+        mBlocks.putInt(block, BLOCK_SIZE, slot + 1);
+        mNodes.putInt(node, NODE_LEAF_SIZE, mNodes.getInt(node, NODE_LEAF_SIZE) + 1);
+    }
+
+    /**
+     * Removes the neighbour below the node, the children left empty are freed
+     * @return if the neighbour existed and was removed
+     */
+    private boolean remove(int node, long id) {
+        if (mNodes.getInt(node, NODE_COUNT) == 0)
+            return false;
+
+        boolean removed = removeFromLeaf(node, id);
+
+        for (int i = 0; i < 4 && !removed; i++) {
+            int child = child(node, i);
+            if (child != NONE && remove(child, id)) {
+                removed = true;
+
+                if (mNodes.getInt(child, NODE_COUNT) == 0) {
+                    mNodes.putInt(node, NODE_CHILDREN + i * 4, NONE);
+                    mNodes.free(child);
+                }
+            }
+        }
+
+        if (removed)
+            updateContent(node);
+
+        return removed;
+    }
+
+    /**
+     * Fills the hole with the last neighbour of the first block, so only the first block is not full
+     */
+    private boolean removeFromLeaf(int node, long id) {
+        int firstBlock = mNodes.getInt(node, NODE_FIRST_BLOCK);
+
+        for (int block = firstBlock; block != NONE; block = mBlocks.getInt(block, BLOCK_NEXT)) {
+            for (int slot = 0; slot < mBlocks.getInt(block, BLOCK_SIZE); slot++) {
+                int field = BLOCK_NEIGHBOURS + slot * NEIGHBOUR_SIZE;
+                if (mBlocks.getLong(block, field) != id)
+                    continue;
+
+                int lastSlot = mBlocks.getInt(firstBlock, BLOCK_SIZE) - 1;
+                int lastField = BLOCK_NEIGHBOURS + lastSlot * NEIGHBOUR_SIZE;
+                mBlocks.putLong(block, field, mBlocks.getLong(firstBlock, lastField));
+                mBlocks.putDouble(block, field + 8, mBlocks.getDouble(firstBlock, lastField + 8));
+                mBlocks.putDouble(block, field + 16, mBlocks.getDouble(firstBlock, lastField + 16));
+
+                if (lastSlot == 0) {
+                    mNodes.putInt(node, NODE_FIRST_BLOCK, mBlocks.getInt(firstBlock, BLOCK_NEXT));
+                    mBlocks.free(firstBlock);
+                } else {
+                    mBlocks.putInt(firstBlock, BLOCK_SIZE, lastSlot);
+                }
+
+                mNodes.putInt(node, NODE_LEAF_SIZE, mNodes.getInt(node, NODE_LEAF_SIZE) - 1);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Recomputes the count and the content bounds from the neighbours of the leaf and from the children
+     */
+    private void updateContent(int node) {
+        double minLatitude = Double.POSITIVE_INFINITY;
+        double maxLatitude = Double.NEGATIVE_INFINITY;
+        double minLongitude = Double.POSITIVE_INFINITY;
+        double maxLongitude = Double.NEGATIVE_INFINITY;
+        int count = mNodes.getInt(node, NODE_LEAF_SIZE);
+
+        for (int block = mNodes.getInt(node, NODE_FIRST_BLOCK); block != NONE; block = mBlocks.getInt(block, BLOCK_NEXT)) {
+            for (int slot = 0; slot < mBlocks.getInt(block, BLOCK_SIZE); slot++) {
+                int field = BLOCK_NEIGHBOURS + slot * NEIGHBOUR_SIZE;
+                double latitude = mBlocks.getDouble(block, field + 8);
+                double longitude = mBlocks.getDouble(block, field + 16);
+                minLatitude = Math.min(minLatitude, latitude);
+                maxLatitude = Math.max(maxLatitude, latitude);
+                minLongitude = Math.min(minLongitude, longitude);
+                maxLongitude = Math.max(maxLongitude, longitude);
+            }
+        }
+
+        for (int i = 0; i < 4; i++) {
+            int child = child(node, i);
+            if (child == NONE)
+                continue;
+
+            minLatitude = Math.min(minLatitude, mNodes.getDouble(child, NODE_MIN_LATITUDE));
+            maxLatitude = Math.max(maxLatitude, mNodes.getDouble(child, NODE_MAX_LATITUDE));
+            minLongitude = Math.min(minLongitude, mNodes.getDouble(child, NODE_MIN_LONGITUDE));
+            maxLongitude = Math.max(maxLongitude, mNodes.getDouble(child, NODE_MAX_LONGITUDE));
+            count += mNodes.getInt(child, NODE_COUNT);
+        }
+
+        mNodes.putDouble(node, NODE_MIN_LATITUDE, minLatitude);
+        mNodes.putDouble(node, NODE_MAX_LATITUDE, maxLatitude);
+        mNodes.putDouble(node, NODE_MIN_LONGITUDE, minLongitude);
+        mNodes.putDouble(node, NODE_MAX_LONGITUDE, maxLongitude);
+        mNodes.putInt(node, NODE_COUNT, count);
+    }
+
+    private int createNode() {
+        int node = mNodes.allocate();
+        for (int i = 0; i < 4; i++)
+            mNodes.putInt(node, NODE_CHILDREN + i * 4, NONE);
+
+        mNodes.putInt(node, NODE_FIRST_BLOCK, NONE);
+        mNodes.putInt(node, NODE_LEAF_SIZE, 0);
+        mNodes.putInt(node, NODE_COUNT, 0);
+        mNodes.putDouble(node, NODE_MIN_LATITUDE, Double.POSITIVE_INFINITY);
+        mNodes.putDouble(node, NODE_MAX_LATITUDE, Double.NEGATIVE_INFINITY);
+        mNodes.putDouble(node, NODE_MIN_LONGITUDE, Double.POSITIVE_INFINITY);
+        mNodes.putDouble(node, NODE_MAX_LONGITUDE, Double.NEGATIVE_INFINITY);
+        return node;
+    }
+
+    private int childOrCreate(int node, int index) {
+        int child = child(node, index);
+        if (child == NONE) {
+            child = createNode();
+            mNodes.putInt(node, NODE_CHILDREN + index * 4, child);
+        }
+
+        return child;
+    }
+
+    private int child(int node, int index) {
+        return mNodes.getInt(node, NODE_CHILDREN + index * 4);
+    }
+
+    private boolean isLeaf(int node) {
+        for (int i = 0; i < 4; i++) {
+            if (child(node, i) != NONE)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Same rule as {@link QuadTreeNode#childIndexFor(double, double)}
+     */
+    private static int childIndexFor(double x, double y, double halfWidth, double halfHeight, double latitude, double longitude) {
+        int index = longitude < x + halfWidth ? QuadTreeNode.TOP_LEFT : QuadTreeNode.TOP_RIGHT;
+        return latitude < y + halfHeight ? index : index + 1;
+    }
+
+    private void includeInNode(int node, double latitude, double longitude) {
+        mNodes.putInt(node, NODE_COUNT, mNodes.getInt(node, NODE_COUNT) + 1);
+
+        if (latitude < mNodes.getDouble(node, NODE_MIN_LATITUDE))
+            mNodes.putDouble(node, NODE_MIN_LATITUDE, latitude);
+
+        if (latitude > mNodes.getDouble(node, NODE_MAX_LATITUDE))
+            mNodes.putDouble(node, NODE_MAX_LATITUDE, latitude);
+
+        if (longitude < mNodes.getDouble(node, NODE_MIN_LONGITUDE))
+            mNodes.putDouble(node, NODE_MIN_LONGITUDE, longitude);
+
+        if (longitude > mNodes.getDouble(node, NODE_MAX_LONGITUDE))
+            mNodes.putDouble(node, NODE_MAX_LONGITUDE, longitude);
+    }
+
+    /**
+     * Same rules as {@link QuadTreeNode#contentIntersects(Rectangle2D.Double)}
+     */
+    private boolean contentIntersects(int node, Rectangle2D.Double rectangle) {
+        return mNodes.getDouble(node, NODE_MIN_LONGITUDE) < rectangle.x + rectangle.width
+                && mNodes.getDouble(node, NODE_MAX_LONGITUDE) >= rectangle.x
+                && mNodes.getDouble(node, NODE_MIN_LATITUDE) < rectangle.y + rectangle.height
+                && mNodes.getDouble(node, NODE_MAX_LATITUDE) >= rectangle.y;
+    }
+
+    private boolean contentInside(int node, Rectangle2D.Double rectangle) {
+        return mNodes.getDouble(node, NODE_MIN_LONGITUDE) >= rectangle.x
+                && mNodes.getDouble(node, NODE_MAX_LONGITUDE) < rectangle.x + rectangle.width
+                && mNodes.getDouble(node, NODE_MIN_LATITUDE) >= rectangle.y
+                && mNodes.getDouble(node, NODE_MAX_LATITUDE) < rectangle.y + rectangle.height;
+    }
+
+    private Neighbour neighbourAt(int block, int slot) {
+        int field = BLOCK_NEIGHBOURS + slot * NEIGHBOUR_SIZE;
+        return new NeighbourImpl(mBlocks.getLong(block, field), mBlocks.getDouble(block, field + 8), mBlocks.getDouble(block, field + 16));
+    }
+
+    private void addNode(PriorityQueue<Candidate> queue, int node, double latitude, double longitude) {
+        if (node == NONE || mNodes.getInt(node, NODE_COUNT) == 0)
+            return;
+
+        double longitudeDistance = Math.max(0, Math.max(mNodes.getDouble(node, NODE_MIN_LONGITUDE) - longitude,
+                longitude - mNodes.getDouble(node, NODE_MAX_LONGITUDE)));
+        double latitudeDistance = Math.max(0, Math.max(mNodes.getDouble(node, NODE_MIN_LATITUDE) - latitude,
+                latitude - mNodes.getDouble(node, NODE_MAX_LATITUDE)));
+        queue.add(new Candidate(latitudeDistance * latitudeDistance + longitudeDistance * longitudeDistance, node, null));
+    }
+
+    private static class Candidate implements Comparable<Candidate> {
+
+        private final double mSquaredDistance;
+        private final int mNode;
+        private final Neighbour mNeighbour;
+
+        Candidate(double squaredDistance, int node, Neighbour neighbour) {
+            mSquaredDistance = squaredDistance;
+            mNode = node;
+            mNeighbour = neighbour;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Double.compare(mSquaredDistance, other.mSquaredDistance);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package src.quadtree.core;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+public class PayloadNeighbourImpl<T> extends NeighbourImpl implements PayloadNeighbour<T> {
+
+    private final T mPayload;
+
+    public PayloadNeighbourImpl(long id, double latitude, double longitude, T payload) {
+        super(id, latitude, longitude);
+        mPayload = payload;
+    }
+
+    @Override
+    public T getPayload() {
+        return mPayload;
+    }
+}
@@ -1,8 +1,24 @@
 package src.quadtree.core;
 
 import java.awt.geom.Rectangle2D;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by Leonardo Lana
@@ -38,43 +54,252 @@ import java.util.Set;
  *
  */
 
-public class QuadTree {
+public class QuadTree implements NeighbourIndex {
 
     public static final int TOTAL_X_DEGREES = 360; // -180 to 180 - longitude
     public static final int TOTAL_Y_DEGREES = 180; // -90 to 90   - latitude
-    private static final int NORMALIZE_X = 180;
-    private static final int NORMALIZE_Y = 90;
+    static final int NORMALIZE_X = 180;
+    static final int NORMALIZE_Y = 90;
 
     private QuadTreeNode mRootNode;
+    private final QuadTreeGeometry mGeometry;
 
     public QuadTree() {
-        mRootNode = new QuadTreeNode(0, 0, TOTAL_Y_DEGREES, TOTAL_X_DEGREES);
+        this(new QuadTreeNode(0, 0, TOTAL_Y_DEGREES, TOTAL_X_DEGREES));
     }
 
+    /**
+     * Creates a tree for the whole world with the given root, its bounds must be in normalized degrees
+     */
     public QuadTree(QuadTreeNode rootNode) {
+        this(rootNode, QuadTreeGeometry.WORLD);
+    }
+
+    QuadTree(QuadTreeNode rootNode, QuadTreeGeometry geometry) {
         mRootNode = rootNode;
+        mGeometry = geometry;
+    }
+
+    /**
+     * Creates a tree that keeps its neighbours compressed, see {@link CompressedQuadTreeNode}
+     * @param precisionBits bits per coordinate, 16 or 32
+     */
+    public static QuadTree compressed(int precisionBits) {
+        return new Builder().setCompressed(precisionBits).build();
     }
 
+    @Override
     public synchronized void addNeighbour(long id, double latitude, double longitude) {
-        Neighbour neighbour = new NeighbourImpl(id, normalizeLatitude(latitude),
-                normalizeLongitude(longitude));
-        mRootNode.addNeighbour(neighbour, QuadTreeConstants.QUADTREE_LAST_NODE_SIZE_IN_DEGREE);
+        Neighbour neighbour = new NeighbourImpl(id, mGeometry.normalizeNeighbourLatitude(latitude),
+                mGeometry.normalizeNeighbourLongitude(longitude));
+        mRootNode.addNeighbour(neighbour, mGeometry.mDeepestNodeSizeInDegrees, mGeometry.mLeafCapacity);
+    }
+
+    /**
+     * Adds a neighbour carrying a payload, the payload can be used by a {@link NeighbourFilter}
+     * while searching, see {@link NeighbourFilter#payload(java.util.function.Predicate)}
+     * @throws UnsupportedOperationException if the tree is compressed, compressed trees do not keep payloads
+     */
+    public synchronized <T> void addNeighbour(long id, double latitude, double longitude, T payload) {
+        checkKeepsPayloads();
+        Neighbour neighbour = new PayloadNeighbourImpl<>(id, mGeometry.normalizeNeighbourLatitude(latitude),
+                mGeometry.normalizeNeighbourLongitude(longitude), payload);
+        mRootNode.addNeighbour(neighbour, mGeometry.mDeepestNodeSizeInDegrees, mGeometry.mLeafCapacity);
+    }
+
+    /**
+     * Adds a neighbour carrying an int payload, the payload can be used by a {@link NeighbourFilter}
+     * while searching, see {@link NeighbourFilter#intPayload(java.util.function.IntPredicate)}
+     * @throws UnsupportedOperationException if the tree is compressed, compressed trees do not keep payloads
+     */
+    public synchronized void addNeighbour(long id, double latitude, double longitude, int payload) {
+        checkKeepsPayloads();
+        Neighbour neighbour = new IntPayloadNeighbourImpl(id, mGeometry.normalizeNeighbourLatitude(latitude),
+                mGeometry.normalizeNeighbourLongitude(longitude), payload);
+        mRootNode.addNeighbour(neighbour, mGeometry.mDeepestNodeSizeInDegrees, mGeometry.mLeafCapacity);
+    }
+
+    /**
+     * Adds many neighbours with a single lock, each node is visited once for the whole batch.
+     * The arrays are read up to the length of the ids.
+     */
+    public synchronized void addNeighbours(long[] ids, double[] latitudes, double[] longitudes) {
+        List<Neighbour> neighbours = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            neighbours.add(new NeighbourImpl(ids[i], mGeometry.normalizeNeighbourLatitude(latitudes[i]),
+                    mGeometry.normalizeNeighbourLongitude(longitudes[i])));
+        }
+
+        mRootNode.addNeighbours(neighbours, mGeometry.mDeepestNodeSizeInDegrees, mGeometry.mLeafCapacity);
     }
 
-    public void removeNeighbour(long id) {
-        mRootNode.removeNeighbour(id);
+    /**
+     * @return if the neighbour existed and was removed
+     */
+    @Override
+    public synchronized boolean removeNeighbour(long id) {
+        return mRootNode.removeNeighbour(id);
     }
 
+    /**
+     * Moves a neighbour to a new position keeping its payload, if the neighbour does not exist it is added
+     */
+    @Override
+    public synchronized void moveNeighbour(long id, double latitude, double longitude) {
+        Neighbour removed = mRootNode.takeNeighbour(id);
+        double normalizedLatitude = mGeometry.normalizeNeighbourLatitude(latitude);
+        double normalizedLongitude = mGeometry.normalizeNeighbourLongitude(longitude);
+        Neighbour neighbour = removed == null ? new NeighbourImpl(id, normalizedLatitude, normalizedLongitude)
+                : QuadTreeNode.movedTo(removed, normalizedLatitude, normalizedLongitude);
+        mRootNode.addNeighbour(neighbour, mGeometry.mDeepestNodeSizeInDegrees, mGeometry.mLeafCapacity);
+    }
+
+    /**
+     * Applies every write taking the lock once
+     */
+    @Override
+    public synchronized boolean[] applyWrites(List<NeighbourWrite> writes) {
+        return NeighbourIndex.super.applyWrites(writes);
+    }
+
+    @Override
     public Set<Neighbour> findNeighbours(double latitude, double longitude, double rangeInKm) {
+        return findNeighbours(latitude, longitude, rangeInKm, null);
+    }
+
+    /**
+     * Same as {@link #findNeighbours(double, double, double)} but only the neighbours accepted
+     * by the filter are returned, the filter is checked while the leaves are scanned
+     */
+    @Override
+    public Set<Neighbour> findNeighbours(double latitude, double longitude, double rangeInKm, NeighbourFilter filter) {
         Set<Neighbour> neighbourSet = new HashSet<>();
-        double rangeInDegrees = QuadTreeConstants.kmToDegree(rangeInKm);
-        Rectangle2D.Double areaOfInterest = getRangeAsRectangle(normalizeLatitude(latitude), normalizeLongitude(longitude), rangeInDegrees);
+        double rangeInDegrees = mGeometry.kmToDegree(rangeInKm);
+        Rectangle2D.Double areaOfInterest = mGeometry.getRangeAsRectangle(mGeometry.normalizeLatitude(latitude), mGeometry.normalizeLongitude(longitude), rangeInDegrees);
+        mRootNode.findNeighboursWithinRectangle(neighbourSet, areaOfInterest, filter);
+        return neighbourSet;
+    }
+
+    /**
+     * Same as {@link #findNeighbours(double, double, double)} but the area of interest is a circle
+     * instead of a square, distances are measured in degrees
+     */
+    @Override
+    public Set<Neighbour> findNeighboursWithinRadius(double latitude, double longitude, double rangeInKm) {
+        final double centerLatitude = mGeometry.normalizeLatitude(latitude);
+        final double centerLongitude = mGeometry.normalizeLongitude(longitude);
+        final double rangeInDegrees = mGeometry.kmToDegree(rangeInKm);
+        final double squaredRange = rangeInDegrees * rangeInDegrees;
+
+        return findNeighbours(latitude, longitude, rangeInKm, neighbour -> {
+            double latitudeDistance = neighbour.getLatitude() - centerLatitude;
+            double longitudeDistance = neighbour.getLongitude() - centerLongitude;
+            return latitudeDistance * latitudeDistance + longitudeDistance * longitudeDistance <= squaredRange;
+        });
+    }
+
+    /**
+     * Finds the neighbours inside the given latitude and longitude bounds
+     */
+    @Override
+    public Set<Neighbour> findNeighboursWithin(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+        Set<Neighbour> neighbourSet = new HashSet<>();
+        Rectangle2D.Double areaOfInterest = new Rectangle2D.Double(mGeometry.normalizeLongitude(minLongitude), mGeometry.normalizeLatitude(minLatitude),
+                maxLongitude - minLongitude, maxLatitude - minLatitude);
         mRootNode.findNeighboursWithinRectangle(neighbourSet, areaOfInterest);
         return neighbourSet;
     }
 
+    /**
+     * Groups the neighbours inside the viewport by the nodes of the tree, one cluster per node.
+     * Zoom 0 is a single cluster for the whole tree and each zoom level splits every cell in four,
+     * like the levels of the tree. Nodes on the edges of the viewport are returned whole, so their
+     * counts include the neighbours that are just outside of it.
+     * @param zoom level of the nodes, a smaller node without children is returned as it is
+     */
+    public List<Cluster> clusters(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude, int zoom) {
+        List<Cluster> clusters = new ArrayList<>();
+        Rectangle2D.Double viewport = new Rectangle2D.Double(mGeometry.normalizeLongitude(minLongitude), mGeometry.normalizeLatitude(minLatitude),
+                maxLongitude - minLongitude, maxLatitude - minLatitude);
+        double clusterWidth = Math.scalb(mRootNode.mBounds.width, -Math.max(zoom, 0));
+        NodeStack stack = NodeStack.acquire();
+
+        try {
+            stack.push(mRootNode);
+
+            while (!stack.isEmpty()) {
+                QuadTreeNode node = stack.pop();
+                if (!node.contentIntersects(viewport))
+                    continue;
+
+                if (node.mBounds.width > clusterWidth && stack.pushChildren(node))
+                    continue;
+
+                int count = node.mCount;
+                if (count > 0) {
+                    clusters.add(new Cluster(count, mGeometry.denormalizeLatitude(node.mLatitudeSum / count),
+                            mGeometry.denormalizeLongitude(node.mLongitudeSum / count),
+                            mGeometry.denormalizeLatitude(node.mMinLatitude), mGeometry.denormalizeLongitude(node.mMinLongitude),
+                            mGeometry.denormalizeLatitude(node.mMaxLatitude), mGeometry.denormalizeLongitude(node.mMaxLongitude)));
+                }
+            }
+        } finally {
+            stack.release();
+        }
+
+        return clusters;
+    }
+
+    /**
+     * Estimates how many neighbours are inside the given latitude and longitude bounds from the
+     * counts kept in the nodes, without collecting them, see {@link CountEstimate} for the error bounds
+     */
+    public CountEstimate estimateCount(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+        return estimateCount(minLatitude, minLongitude, maxLatitude, maxLongitude, ApproximateSearch.DEFAULT_NODE_BUDGET);
+    }
+
+    /**
+     * @param nodeBudget how many nodes on the edges of the area are opened at most, a bigger budget
+     *                   gives tighter bounds and the exact count once every edge node is opened
+     */
+    public CountEstimate estimateCount(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude, int nodeBudget) {
+        Rectangle2D.Double areaOfInterest = new Rectangle2D.Double(mGeometry.normalizeLongitude(minLongitude), mGeometry.normalizeLatitude(minLatitude),
+                maxLongitude - minLongitude, maxLatitude - minLatitude);
+        return ApproximateSearch.estimateCount(mRootNode, areaOfInterest, nodeBudget);
+    }
+
+    /**
+     * Picks a uniform random sample of the neighbours inside the given latitude and longitude bounds,
+     * without collecting all of them. Every neighbour inside the bounds has the same chance of being picked
+     * @param count how many neighbours should be returned, all of them are returned if there are fewer
+     */
+    public List<Neighbour> sampleNeighbours(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude, int count) {
+        return sampleNeighbours(minLatitude, minLongitude, maxLatitude, maxLongitude, count, ThreadLocalRandom.current());
+    }
+
+    public List<Neighbour> sampleNeighbours(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude, int count, Random random) {
+        Rectangle2D.Double areaOfInterest = new Rectangle2D.Double(mGeometry.normalizeLongitude(minLongitude), mGeometry.normalizeLatitude(minLatitude),
+                maxLongitude - minLongitude, maxLatitude - minLatitude);
+        return ApproximateSearch.sample(mRootNode, areaOfInterest, count, random);
+    }
+
+    /**
+     * Finds the closest neighbours to the given point, distances are measured in degrees
+     * @param count how many neighbours should be returned at most
+     * @return the neighbours sorted from the closest to the farthest
+     */
+    @Override
+    public List<Neighbour> findNearestNeighbours(double latitude, double longitude, int count) {
+        return NearestNeighbourSearch.find(mRootNode, mGeometry.normalizeLatitude(latitude), mGeometry.normalizeLongitude(longitude), count);
+    }
+
+    @Override
     public Set<Long> findNeighboursIds(double latitude, double longitude, double rangeInKm) {
-        Set<Neighbour> neighbourSet = findNeighbours(latitude, longitude, rangeInKm);
+        return findNeighboursIds(latitude, longitude, rangeInKm, null);
+    }
+
+    public Set<Long> findNeighboursIds(double latitude, double longitude, double rangeInKm, NeighbourFilter filter) {
+        Set<Neighbour> neighbourSet = findNeighbours(latitude, longitude, rangeInKm, filter);
         Set<Long> neighboursIds = new HashSet<>();
 
         for(Neighbour neighbour : neighbourSet)
@@ -83,26 +308,293 @@ public class QuadTree {
         return neighboursIds;
     }
 
+    /**
+     * Lazy version of {@link #findNeighbours(double, double, double)}, the tree is searched
+     * leaf by leaf as the stream is consumed, so limiting the stream stops the search.
+     * The stream can be made parallel, pending nodes are shared between the threads.
+     */
+    public Stream<Neighbour> streamNeighbours(double latitude, double longitude, double rangeInKm) {
+        return streamNeighbours(latitude, longitude, rangeInKm, null);
+    }
+
+    public Stream<Neighbour> streamNeighbours(double latitude, double longitude, double rangeInKm, NeighbourFilter filter) {
+        return StreamSupport.stream(createSpliterator(latitude, longitude, rangeInKm, filter), false);
+    }
+
+    /**
+     * Lazy version of {@link #findNeighbours(double, double, double)}, see {@link #streamNeighbours(double, double, double)}
+     */
+    public Iterator<Neighbour> iterateNeighbours(double latitude, double longitude, double rangeInKm) {
+        return iterateNeighbours(latitude, longitude, rangeInKm, null);
+    }
+
+    public Iterator<Neighbour> iterateNeighbours(double latitude, double longitude, double rangeInKm, NeighbourFilter filter) {
+        return Spliterators.iterator(createSpliterator(latitude, longitude, rangeInKm, filter));
+    }
+
+    /**
+     * Same as {@link #findNeighbours(double, double, double)} but the search runs in the common fork join
+     * pool and stops when the timeout passes, see {@link NeighbourSearchResult}. The timeout counts from
+     * this call, so the time spent waiting for a thread is included. If the search did not start by then the
+     * future is completed with an empty incomplete result. Cancelling the future stops the search.
+     */
+    public CompletableFuture<NeighbourSearchResult> findNeighboursAsync(double latitude, double longitude, double rangeInKm,
+                                                                        long timeout, TimeUnit unit) {
+        return findNeighboursAsync(latitude, longitude, rangeInKm, null, timeout, unit, ForkJoinPool.commonPool());
+    }
+
+    public CompletableFuture<NeighbourSearchResult> findNeighboursAsync(double latitude, double longitude, double rangeInKm,
+                                                                        NeighbourFilter filter, long timeout, TimeUnit unit, Executor executor) {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        final double normalizedLatitude = mGeometry.normalizeLatitude(latitude);
+        final double normalizedLongitude = mGeometry.normalizeLongitude(longitude);
+        final Rectangle2D.Double areaOfInterest = mGeometry.getRangeAsRectangle(normalizedLatitude, normalizedLongitude,
+                mGeometry.kmToDegree(rangeInKm));
+        final CompletableFuture<NeighbourSearchResult> future = new CompletableFuture<>();
+        final AtomicBoolean started = new AtomicBoolean();
+
+        DeadlineSearch.completeAtDeadline(future, deadline, started);
+
+        try {
+            executor.execute(() -> {
+                if (!started.compareAndSet(false, true))
+                    return;
+
+                try {
+                    future.complete(DeadlineSearch.find(mRootNode, areaOfInterest, normalizedLatitude, normalizedLongitude,
+                            filter, deadline, future));
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Finds every pair of neighbours, one from this tree and one from the other tree,
+     * that are within the range of each other. Both trees are traversed only once.
+     *
+     * @param other the tree to be joined with this one
+     * @param rangeInKm the maximum distance between the neighbours of a pair
+     * @param listener receives the ids of each matching pair, this tree's id first
+     * @throws IllegalArgumentException if the trees were built with different origins or km per degree
+     */
+    public void join(QuadTree other, double rangeInKm, NeighbourPairListener listener) {
+        checkCompatible(other);
+        QuadTreeJoin.join(mRootNode, other.getRootNode(), mGeometry.kmToDegree(rangeInKm), listener);
+    }
+
+    /**
+     * Same as {@link #join(QuadTree, double, NeighbourPairListener)} but the traversal is split
+     * between the threads of the common fork join pool, the listener must be thread safe.
+     */
+    public void joinParallel(QuadTree other, double rangeInKm, NeighbourPairListener listener) {
+        checkCompatible(other);
+        QuadTreeJoin.joinParallel(mRootNode, other.getRootNode(), mGeometry.kmToDegree(rangeInKm), listener);
+    }
+
+    /**
+     * Removes and then adds many neighbours with a single lock,
+     * each node is visited at most once for the removals and once for the additions.
+     * The removals only visit the paths to the leaves of their positions, the ids
+     * not found there are searched in the whole tree.
+     * @param removedNeighbours neighbours to be removed, at their already normalized stored position
+     * @param removedIds ids of the removed neighbours, the ids found are removed from this set
+     * @param addedNeighbours already normalized neighbours to be added
+     */
+    synchronized void applyBatch(List<Neighbour> removedNeighbours, Set<Long> removedIds, List<Neighbour> addedNeighbours) {
+        if (!removedNeighbours.isEmpty())
+            mRootNode.removeNeighboursAt(removedNeighbours, removedIds);
+
+        mRootNode.removeNeighbours(removedIds);
+        mRootNode.addNeighbours(addedNeighbours, mGeometry.mDeepestNodeSizeInDegrees, mGeometry.mLeafCapacity);
+    }
+
+    /**
+     * Creates an immutable and compacted copy of this tree, see {@link FrozenQuadTree}.
+     * Writers are blocked while the copy is made.
+     */
+    public synchronized FrozenQuadTree freeze() {
+        return new FrozenQuadTree(mRootNode, mGeometry);
+    }
+
+    @Override
+    public synchronized void forEachNeighbour(NeighbourVisitor visitor) {
+        Deque<QuadTreeNode> pendingNodes = new ArrayDeque<>();
+        pendingNodes.push(mRootNode);
+
+        while (!pendingNodes.isEmpty()) {
+            QuadTreeNode node = pendingNodes.pop();
+
+            if (node.getNeighboursCount() > 0) {
+                for (Neighbour neighbour : node.getNeighbours()) {
+                    visitor.visit(neighbour.getId(), mGeometry.denormalizeLatitude(neighbour.getLatitude()),
+                            mGeometry.denormalizeLongitude(neighbour.getLongitude()));
+                }
+            }
+
+            for (int childIndex = 0; childIndex < node.mChildren.length(); childIndex++)
+                pushIfNotNull(pendingNodes, node.mChildren.get(childIndex));
+        }
+    }
+
+    /**
+     * Walks the tree and estimates the heap it retains, see {@link QuadTreeFootprint}.
+     * Writers are blocked during the walk.
+     */
+    public synchronized QuadTreeFootprint estimateFootprint() {
+        QuadTreeFootprint footprint = new QuadTreeFootprint();
+        Deque<QuadTreeNode> pendingNodes = new ArrayDeque<>();
+        pendingNodes.push(mRootNode);
+
+        while (!pendingNodes.isEmpty()) {
+            QuadTreeNode node = pendingNodes.pop();
+            node.estimateFootprint(footprint);
+
+            for (int childIndex = 0; childIndex < node.mChildren.length(); childIndex++)
+                pushIfNotNull(pendingNodes, node.mChildren.get(childIndex));
+        }
+
+        return footprint;
+    }
+
+    private NeighbourSpliterator createSpliterator(double latitude, double longitude, double rangeInKm, NeighbourFilter filter) {
+        double rangeInDegrees = mGeometry.kmToDegree(rangeInKm);
+        Rectangle2D.Double areaOfInterest = mGeometry.getRangeAsRectangle(mGeometry.normalizeLatitude(latitude), mGeometry.normalizeLongitude(longitude), rangeInDegrees);
+        return new NeighbourSpliterator(mRootNode, areaOfInterest, filter);
+    }
+
     protected QuadTreeNode getRootNode() {
         return mRootNode;
     }
 
-    private double normalizeLatitude(double latitude) {
-        return latitude + NORMALIZE_Y;
+    QuadTreeGeometry getGeometry() {
+        return mGeometry;
     }
 
-    private double normalizeLongitude(double longitude) {
-        return longitude + NORMALIZE_X;
+    private void checkKeepsPayloads() {
+        if (mRootNode instanceof CompressedQuadTreeNode)
+            throw new UnsupportedOperationException("Compressed trees do not keep payloads");
     }
 
-    private Rectangle2D.Double getRangeAsRectangle(double latitude, double longitude, double range) {
-        /*
-           We need to centralize the point and have the range on every direction
-         */
-        return new Rectangle2D.Double(Math.max(longitude - range, 0),
-                Math.max(latitude - range, 0),
-                Math.min(range * 2, TOTAL_X_DEGREES),
-                Math.min(range * 2, TOTAL_Y_DEGREES));
+    private void checkCompatible(QuadTree other) {
+        if (!mGeometry.isCompatibleWith(other.mGeometry))
+            throw new IllegalArgumentException("Only trees with the same origin and km per degree can be joined");
     }
 
+    private static void pushIfNotNull(Deque<QuadTreeNode> pendingNodes, QuadTreeNode node) {
+        if (node != null)
+            pendingNodes.push(node);
+    }
+
+    /**
+     * Builds a quadtree with its own geometry, so trees tuned for different datasets can live
+     * side by side, a city index with 1km cells next to a world index with 100km cells for example.
+     * The defaults build the same tree as {@link QuadTree#QuadTree()}.
+     */
+    public static class Builder {
+
+        private double mMinimumCellSizeInKm = QuadTreeConstants.QUADTREE_LAST_NODE_SIZE_IN_KM;
+        private double mKmPerDegree = QuadTreeConstants.ONE_DEGREE_IN_KM;
+        private double mMinLatitude = -NORMALIZE_Y;
+        private double mMinLongitude = -NORMALIZE_X;
+        private double mMaxLatitude = NORMALIZE_Y;
+        private double mMaxLongitude = NORMALIZE_X;
+        private int mLeafCapacity;
+        private int mPrecisionBits;
+
+        /**
+         * Nodes are not split below this size, the deepest nodes are between this size and twice it
+         */
+        public Builder setMinimumCellSizeInKm(double minimumCellSizeInKm) {
+            mMinimumCellSizeInKm = minimumCellSizeInKm;
+            return this;
+        }
+
+        /**
+         * Used to convert the ranges and the cell size from km to degrees
+         */
+        public Builder setKmPerDegree(double kmPerDegree) {
+            mKmPerDegree = kmPerDegree;
+            return this;
+        }
+
+        /**
+         * The area covered by the tree, the whole world by default.
+         * Neighbours added outside of it are moved to the closest point just inside its edges,
+         * they are stored and returned with these coordinates.
+         */
+        public Builder setBounds(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+            mMinLatitude = minLatitude;
+            mMinLongitude = minLongitude;
+            mMaxLatitude = maxLatitude;
+            mMaxLongitude = maxLongitude;
+            return this;
+        }
+
+        /**
+         * How many neighbours a node holds before it is split, a node is never split below the
+         * minimum cell size. With 0, the default, neighbours always go down to the deepest nodes.
+         */
+        public Builder setLeafCapacity(int leafCapacity) {
+            mLeafCapacity = leafCapacity;
+            return this;
+        }
+
+        /**
+         * Keeps the neighbours compressed, see {@link CompressedQuadTreeNode}
+         * @param precisionBits bits per coordinate, 16 or 32
+         */
+        public Builder setCompressed(int precisionBits) {
+            mPrecisionBits = precisionBits;
+            return this;
+        }
+
+        boolean isCompressed() {
+            return mPrecisionBits != 0;
+        }
+
+        public QuadTree build() {
+            QuadTreeGeometry geometry = buildGeometry();
+            return new QuadTree(createNode(0, 0, geometry.mLatitudeRange, geometry.mLongitudeRange), geometry);
+        }
+
+        /**
+         * Builds a tree with the same geometry kept outside of the Java heap, see {@link OffHeapQuadTree}
+         */
+        public OffHeapQuadTree buildOffHeap() {
+            if (isCompressed())
+                throw new IllegalArgumentException("Off heap trees keep full precision coordinates and can not be compressed");
+
+            return new OffHeapQuadTree(buildGeometry());
+        }
+
+        QuadTreeGeometry buildGeometry() {
+            if (mMinimumCellSizeInKm <= 0 || mKmPerDegree <= 0)
+                throw new IllegalArgumentException("The cell size and km per degree must be positive");
+
+            if (mMinLatitude >= mMaxLatitude || mMinLongitude >= mMaxLongitude)
+                throw new IllegalArgumentException("The minimum bounds must be below the maximum bounds");
+
+            if (mLeafCapacity < 0)
+                throw new IllegalArgumentException("The leaf capacity can not be negative, got " + mLeafCapacity);
+
+            return new QuadTreeGeometry(mMinLatitude, mMinLongitude, mMaxLatitude - mMinLatitude,
+                    mMaxLongitude - mMinLongitude, mKmPerDegree, mMinimumCellSizeInKm / mKmPerDegree, mLeafCapacity);
+        }
+
+        /**
+         * Creates a node of the kind of this builder, with bounds in normalized degrees
+         */
+        QuadTreeNode createNode(double latitude, double longitude, double latitudeRange, double longitudeRange) {
+            if (mPrecisionBits != 0)
+                return new CompressedQuadTreeNode(latitude, longitude, latitudeRange, longitudeRange, mPrecisionBits);
+
+            return new QuadTreeNode(latitude, longitude, latitudeRange, longitudeRange);
+        }
+    }
 }
@@ -0,0 +1,169 @@
+package src.quadtree.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Rebuilds a {@link QuadTree} in the background so its nodes stay close to each other in memory.
+ *
+ * After many writes the nodes, the leaf lists and the neighbours are spread over the heap in
+ * the order they were allocated, and a search jumps between distant addresses. Each pass copies
+ * the subtrees below a fixed depth into new objects, allocated one after the other along a
+ * Hilbert curve, see {@link QuadTreeNode#copyInHilbertOrder(int)}, and swaps every copy in place
+ * of its subtree.
+ *
+ * Writers are blocked only while one subtree is copied. Searches are never blocked, a search
+ * that already entered a replaced subtree finishes on it, since the old subtree is not changed.
+ * Subtrees that did not receive any write since they were rebuilt are skipped.
+ */
+
+public class QuadTreeDefragmenter {
+
+    public static final int DEFAULT_SUBTREE_DEPTH = 4;
+
+    private final QuadTree mQuadTree;
+    private final int mSubtreeDepth;
+
+    /**
+     * Version of each rebuilt subtree right after it was rebuilt, see {@link QuadTreeNode#getSubtreeVersion()}.
+     * Passes run one at a time holding it.
+     */
+    private final Map<QuadTreeNode, Long> mRebuiltVersions = new WeakHashMap<>();
+    private ScheduledExecutorService mScheduler;
+
+    public QuadTreeDefragmenter(QuadTree quadTree) {
+        this(quadTree, DEFAULT_SUBTREE_DEPTH);
+    }
+
+    /**
+     * @param subtreeDepth depth of the roots of the rebuilt subtrees, the nodes above it are never
+     *                     rebuilt. Deeper subtrees are smaller and block the writers for less time.
+     */
+    public QuadTreeDefragmenter(QuadTree quadTree, int subtreeDepth) {
+        if (subtreeDepth <= 0)
+            throw new IllegalArgumentException("The subtree depth must be positive, got " + subtreeDepth);
+
+        mQuadTree = quadTree;
+        mSubtreeDepth = subtreeDepth;
+    }
+
+    /**
+     * Rebuilds every subtree that changed since the previous pass, one subtree at a time
+     * @return how many subtrees were rebuilt
+     */
+    public int defragment() {
+        synchronized (mRebuiltVersions) {
+            List<QuadTreeNode> parents = new ArrayList<>();
+            List<Integer> states = new ArrayList<>();
+
+            // The parents are never replaced by a pass, the ones created meanwhile wait for the next pass
+            synchronized (mQuadTree) {
+                collectParents(mQuadTree.getRootNode(), 0, 1, parents, states);
+            }
+
+            int rebuilt = 0;
+            for (int i = 0; i < parents.size(); i++) {
+                QuadTreeNode parent = parents.get(i);
+                int state = states.get(i);
+
+                for (int j = 0; j < 4; j++) {
+                    if (rebuild(parent, QuadTreeNode.HILBERT_ORDER[state][j], QuadTreeNode.HILBERT_NEXT_STATE[state][j]))
+                        rebuilt++;
+                }
+            }
+
+            return rebuilt;
+        }
+    }
+
+    /**
+     * Runs a pass periodically in a background thread
+     * @param periodInMillis time between the end of a pass and the start of the next one
+     */
+    public synchronized void start(long periodInMillis) {
+        if (mScheduler != null)
+            return;
+
+        mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "quadtree-defragmenter");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        mScheduler.scheduleWithFixedDelay(this::defragment, periodInMillis, periodInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (mScheduler == null)
+            return;
+
+        mScheduler.shutdown();
+        mScheduler = null;
+    }
+
+    /**
+     * Collects the nodes right above the subtree depth in Hilbert order, with the orientation of the curve in each one
+     */
+    private void collectParents(QuadTreeNode node, int hilbertState, int depth, List<QuadTreeNode> parents, List<Integer> states) {
+        if (depth == mSubtreeDepth) {
+            parents.add(node);
+            states.add(hilbertState);
+            return;
+        }
+
+        for (int i = 0; i < 4; i++) {
+            QuadTreeNode child = node.mChildren.get(QuadTreeNode.HILBERT_ORDER[hilbertState][i]);
+            if (child != null)
+                collectParents(child, QuadTreeNode.HILBERT_NEXT_STATE[hilbertState][i], depth + 1, parents, states);
+        }
+    }
+
+    /**
+     * @return if the child was replaced by a copy
+     */
+    private boolean rebuild(QuadTreeNode parent, int index, int hilbertState) {
+        synchronized (mQuadTree) {
+            QuadTreeNode child = parent.mChildren.get(index);
+            if (child == null)
+                return false;
+
+            Long rebuiltVersion = mRebuiltVersions.get(child);
+            if (rebuiltVersion != null && rebuiltVersion == child.getSubtreeVersion())
+                return false;
+
+            QuadTreeNode copy = child.copyInHilbertOrder(hilbertState);
+            // Release store, a search that loads the copy also sees every field written by the copy
+            parent.mChildren.lazySet(index, copy);
+            parent.mVersion++;
+            child.retire();
+
+            mRebuiltVersions.remove(child);
+            mRebuiltVersions.put(copy, copy.getSubtreeVersion());
+            return true;
+        }
+    }
+}
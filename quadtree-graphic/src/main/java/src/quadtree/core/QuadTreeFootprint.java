@@ -0,0 +1,217 @@
+package src.quadtree.core;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Estimated heap retained by a quadtree, see {@link QuadTree#estimateFootprint()}.
+ *
+ * The sizes assume a 64 bit JVM with compressed references, the default for heaps below
+ * 32GB: 12 bytes of object header, 4 bytes per reference and objects aligned to 8 bytes.
+ * Object sizes are computed from the declared fields, so subclasses are measured correctly.
+ *
+ * The capacity of an ArrayList cannot be read, it is estimated from its size assuming
+ * it grew one element at a time, so the slack of lists that shrank is not included.
+ * Payloads are not included either, only the reference to them.
+ */
+
+public class QuadTreeFootprint {
+
+    private static final int OBJECT_HEADER_SIZE = 12;
+    private static final int ARRAY_HEADER_SIZE = 16;
+    private static final int REFERENCE_SIZE = 4;
+    private static final int ARRAY_LIST_DEFAULT_CAPACITY = 10;
+
+    private static final ClassValue<Integer> SHALLOW_SIZES = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            long size = OBJECT_HEADER_SIZE;
+
+            for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+                for (Field field : current.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()))
+                        size += fieldSize(field.getType());
+                }
+            }
+
+            return (int) align(size);
+        }
+    };
+
+    private long mNodeCount;
+    private long mNodeBytes;
+    private long mBoundsBytes;
+    private long mListBytes;
+    private long mListSlackBytes;
+    private long mNeighbourCount;
+    private long mNeighbourBytes;
+    private long mLeafArrayBytes;
+
+    QuadTreeFootprint() {
+    }
+
+    /**
+     * Adds a node object, its array of children and its bounds
+     */
+    void addNode(QuadTreeNode node, Object bounds, AtomicReferenceArray<QuadTreeNode> children) {
+        mNodeCount++;
+        mNodeBytes += shallowSize(node) + shallowSize(children) + arraySize(children.length(), REFERENCE_SIZE);
+        mBoundsBytes += shallowSize(bounds);
+    }
+
+    /**
+     * Adds a list of neighbours, the list itself, its backing array and the neighbours
+     */
+    void addNeighbourList(List<Neighbour> neighbours) {
+        int size = neighbours.size();
+        int capacity = estimateCapacity(size);
+
+        mListBytes += shallowSize(neighbours) + (capacity > 0 ? arraySize(capacity, REFERENCE_SIZE) : 0);
+        mListSlackBytes += (long) (capacity - size) * REFERENCE_SIZE;
+
+        for (int i = 0; i < size; i++)
+            addNeighbour(neighbours.get(i));
+    }
+
+    /**
+     * Adds neighbours that are not stored as objects, like the arrays of a compressed leaf
+     * @param neighbourCount how many neighbours are stored in the arrays
+     * @param bytes the size of the arrays, see {@link #arraySize(int, int)}
+     */
+    void addLeafArrays(int neighbourCount, long bytes) {
+        mNeighbourCount += neighbourCount;
+        mLeafArrayBytes += bytes;
+    }
+
+    private void addNeighbour(Neighbour neighbour) {
+        mNeighbourCount++;
+        mNeighbourBytes += shallowSize(neighbour);
+    }
+
+    /**
+     * @return the size of an array, with its header and alignment
+     */
+    static long arraySize(int length, int elementSize) {
+        return align(ARRAY_HEADER_SIZE + (long) length * elementSize);
+    }
+
+    /**
+     * @return the smallest capacity an ArrayList grown one element at a time can have for the size
+     */
+    private static int estimateCapacity(int size) {
+        if (size == 0)
+            return 0;
+
+        int capacity = ARRAY_LIST_DEFAULT_CAPACITY;
+        while (capacity < size)
+            capacity += capacity >> 1;
+
+        return capacity;
+    }
+
+    private static int shallowSize(Object object) {
+        return SHALLOW_SIZES.get(object.getClass());
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class)
+            return 8;
+
+        if (type == int.class || type == float.class)
+            return 4;
+
+        if (type == short.class || type == char.class)
+            return 2;
+
+        if (type == byte.class || type == boolean.class)
+            return 1;
+
+        return REFERENCE_SIZE;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    public long getNodeCount() {
+        return mNodeCount;
+    }
+
+    public long getNodeBytes() {
+        return mNodeBytes;
+    }
+
+    public long getBoundsBytes() {
+        return mBoundsBytes;
+    }
+
+    /**
+     * @return the size of the leaf lists and their backing arrays, including the slack
+     */
+    public long getListBytes() {
+        return mListBytes;
+    }
+
+    /**
+     * @return the part of the backing arrays of the leaf lists that is not used
+     */
+    public long getListSlackBytes() {
+        return mListSlackBytes;
+    }
+
+    public long getNeighbourCount() {
+        return mNeighbourCount;
+    }
+
+    /**
+     * @return the size of the neighbour objects
+     */
+    public long getNeighbourBytes() {
+        return mNeighbourBytes;
+    }
+
+    /**
+     * @return the size of the arrays of the compressed leaves
+     */
+    public long getLeafArrayBytes() {
+        return mLeafArrayBytes;
+    }
+
+    public long getTotalBytes() {
+        return mNodeBytes + mBoundsBytes + mListBytes + mNeighbourBytes + mLeafArrayBytes;
+    }
+
+    public double getBytesPerNeighbour() {
+        return mNeighbourCount == 0 ? 0 : (double) getTotalBytes() / mNeighbourCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "%d neighbours, %d nodes, %d bytes (%.1f per neighbour): nodes %d, bounds %d, lists %d (slack %d), neighbours %d, leaf arrays %d",
+                mNeighbourCount, mNodeCount, getTotalBytes(), getBytesPerNeighbour(),
+                mNodeBytes, mBoundsBytes, mListBytes, mListSlackBytes, mNeighbourBytes, mLeafArrayBytes);
+    }
+}
@@ -0,0 +1,120 @@
+package src.quadtree.core;
+
+import java.awt.geom.Rectangle2D;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Geometry of one quadtree, see {@link QuadTree.Builder}.
+ *
+ * Coordinates are normalized by subtracting the origin, the south west corner of the
+ * area covered by the tree, so the root node starts at 0, 0. For the whole world the
+ * origin is -90, -180, the same normalization described in {@link QuadTree}.
+ */
+
+final class QuadTreeGeometry {
+
+    static final QuadTreeGeometry WORLD = new QuadTreeGeometry(-QuadTree.NORMALIZE_Y, -QuadTree.NORMALIZE_X,
+            QuadTree.TOTAL_Y_DEGREES, QuadTree.TOTAL_X_DEGREES, QuadTreeConstants.ONE_DEGREE_IN_KM,
+            QuadTreeConstants.QUADTREE_LAST_NODE_SIZE_IN_DEGREE, 0);
+
+    final double mOriginLatitude;
+    final double mOriginLongitude;
+    final double mLatitudeRange;
+    final double mLongitudeRange;
+    final double mKmPerDegree;
+    final double mDeepestNodeSizeInDegrees;
+
+    /**
+     * Neighbours a node holds before it is split, 0 always descends to the deepest node size
+     */
+    final int mLeafCapacity;
+
+    QuadTreeGeometry(double originLatitude, double originLongitude, double latitudeRange, double longitudeRange,
+                     double kmPerDegree, double deepestNodeSizeInDegrees, int leafCapacity) {
+        mOriginLatitude = originLatitude;
+        mOriginLongitude = originLongitude;
+        mLatitudeRange = latitudeRange;
+        mLongitudeRange = longitudeRange;
+        mKmPerDegree = kmPerDegree;
+        mDeepestNodeSizeInDegrees = deepestNodeSizeInDegrees;
+        mLeafCapacity = leafCapacity;
+    }
+
+    double normalizeLatitude(double latitude) {
+        return latitude - mOriginLatitude;
+    }
+
+    double normalizeLongitude(double longitude) {
+        return longitude - mOriginLongitude;
+    }
+
+    /**
+     * Normalizes the position of a neighbour being added. A position outside of the bounds is moved
+     * to the closest edge, just inside it, so every search covering that edge finds the neighbour.
+     */
+    double normalizeNeighbourLatitude(double latitude) {
+        return clamp(normalizeLatitude(latitude), mLatitudeRange);
+    }
+
+    double normalizeNeighbourLongitude(double longitude) {
+        return clamp(normalizeLongitude(longitude), mLongitudeRange);
+    }
+
+    double denormalizeLatitude(double latitude) {
+        return latitude + mOriginLatitude;
+    }
+
+    double denormalizeLongitude(double longitude) {
+        return longitude + mOriginLongitude;
+    }
+
+    double kmToDegree(double km) {
+        return km / mKmPerDegree;
+    }
+
+    /**
+     * @return if coordinates normalized by both geometries can be compared
+     */
+    boolean isCompatibleWith(QuadTreeGeometry other) {
+        return mOriginLatitude == other.mOriginLatitude && mOriginLongitude == other.mOriginLongitude
+                && mKmPerDegree == other.mKmPerDegree;
+    }
+
+    private static double clamp(double coordinate, double range) {
+        return Math.max(0, Math.min(Math.nextDown(range), coordinate));
+    }
+
+    /**
+     * @return the square around an already normalized point, cut where it goes below the origin
+     */
+    Rectangle2D.Double getRangeAsRectangle(double latitude, double longitude, double range) {
+        /*
+           We need to centralize the point and have the range on every direction,
+           a side moved up to the origin loses what was left behind it
+         */
+        double minLongitude = Math.max(longitude - range, 0);
+        double minLatitude = Math.max(latitude - range, 0);
+        return new Rectangle2D.Double(minLongitude,
+                minLatitude,
+                Math.min(longitude + range - minLongitude, mLongitudeRange),
+                Math.min(latitude + range - minLatitude, mLatitudeRange));
+    }
+}
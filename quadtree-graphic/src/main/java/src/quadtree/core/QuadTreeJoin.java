@@ -0,0 +1,174 @@
+package src.quadtree.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Spatial join between two quadtrees.
+ *
+ * Both trees are descended at the same time, a pair of nodes is discarded as soon as
+ * their bounds are farther apart than the range, so only leaves that are close to each
+ * other are compared point by point.
+ *
+ * The range is the same square used by {@link QuadTree#findNeighbours(double, double, double)},
+ * two neighbours match when both their latitude and longitude differences are within the range.
+ */
+
+class QuadTreeJoin {
+
+    /**
+     * Pairs of nodes smaller than this are joined sequentially by the parallel join,
+     * forking smaller pairs costs more than it saves
+     */
+    private static final double PARALLEL_MIN_NODE_SIZE_IN_DEGREE = 10;
+
+    private QuadTreeJoin() {
+    }
+
+    static void join(QuadTreeNode nodeA, QuadTreeNode nodeB, double rangeInDegrees, NeighbourPairListener listener) {
+        if (isFartherThan(nodeA, nodeB, rangeInDegrees))
+            return;
+
+        boolean leafA = nodeA.isLeaf();
+        boolean leafB = nodeB.isLeaf();
+
+        if (leafA && leafB) {
+            joinLeaves(nodeA, nodeB, rangeInDegrees, listener);
+            return;
+        }
+
+        // Always split the biggest node, so both sides go down at the same pace
+        if (shouldSplitA(nodeA, leafA, nodeB, leafB)) {
+            for (QuadTreeNode child : children(nodeA))
+                join(child, nodeB, rangeInDegrees, listener);
+            return;
+        }
+
+        for (QuadTreeNode child : children(nodeB))
+            join(nodeA, child, rangeInDegrees, listener);
+    }
+
+    static void joinParallel(QuadTreeNode nodeA, QuadTreeNode nodeB, double rangeInDegrees, NeighbourPairListener listener) {
+        ForkJoinPool.commonPool().invoke(new JoinTask(nodeA, nodeB, rangeInDegrees, listener));
+    }
+
+    /**
+     * Compares every neighbour of both leaves
+     */
+    private static void joinLeaves(QuadTreeNode leafA, QuadTreeNode leafB, double rangeInDegrees, NeighbourPairListener listener) {
+        List<Neighbour> neighboursA = leafA.getNeighbours();
+        List<Neighbour> neighboursB = leafB.getNeighbours();
+        final int sizeA = neighboursA.size();
+        final int sizeB = neighboursB.size();
+
+        for (int i = 0; i < sizeA; i++) {
+            Neighbour neighbourA = neighboursA.get(i);
+            double latitude = neighbourA.getLatitude();
+            double longitude = neighbourA.getLongitude();
+
+            for (int j = 0; j < sizeB; j++) {
+                Neighbour neighbourB = neighboursB.get(j);
+                if (Math.abs(latitude - neighbourB.getLatitude()) <= rangeInDegrees
+                        && Math.abs(longitude - neighbourB.getLongitude()) <= rangeInDegrees)
+                    listener.onPair(neighbourA.getId(), neighbourB.getId());
+            }
+        }
+    }
+
+    /**
+     * @return if the gap between both nodes is bigger than the range in any direction
+     */
+    private static boolean isFartherThan(QuadTreeNode nodeA, QuadTreeNode nodeB, double rangeInDegrees) {
+        double gapX = Math.max(nodeA.mBounds.x - (nodeB.mBounds.x + nodeB.mBounds.width),
+                nodeB.mBounds.x - (nodeA.mBounds.x + nodeA.mBounds.width));
+        double gapY = Math.max(nodeA.mBounds.y - (nodeB.mBounds.y + nodeB.mBounds.height),
+                nodeB.mBounds.y - (nodeA.mBounds.y + nodeA.mBounds.height));
+
+        return gapX > rangeInDegrees || gapY > rangeInDegrees;
+    }
+
+    private static boolean shouldSplitA(QuadTreeNode nodeA, boolean leafA, QuadTreeNode nodeB, boolean leafB) {
+        return !leafA && (leafB || nodeA.mBounds.width >= nodeB.mBounds.width);
+    }
+
+    private static List<QuadTreeNode> children(QuadTreeNode node) {
+        List<QuadTreeNode> children = new ArrayList<>(4);
+
+        for (int childIndex = 0; childIndex < node.mChildren.length(); childIndex++) {
+            QuadTreeNode child = node.mChildren.get(childIndex);
+            if (child != null)
+                children.add(child);
+        }
+
+        return children;
+    }
+
+    private static class JoinTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final QuadTreeNode mNodeA;
+        private final QuadTreeNode mNodeB;
+        private final double mRangeInDegrees;
+        private final NeighbourPairListener mListener;
+
+        JoinTask(QuadTreeNode nodeA, QuadTreeNode nodeB, double rangeInDegrees, NeighbourPairListener listener) {
+            mNodeA = nodeA;
+            mNodeB = nodeB;
+            mRangeInDegrees = rangeInDegrees;
+            mListener = listener;
+        }
+
+        @Override
+        protected void compute() {
+            if (isFartherThan(mNodeA, mNodeB, mRangeInDegrees))
+                return;
+
+            if (Math.max(mNodeA.mBounds.width, mNodeB.mBounds.width) <= PARALLEL_MIN_NODE_SIZE_IN_DEGREE) {
+                QuadTreeJoin.join(mNodeA, mNodeB, mRangeInDegrees, mListener);
+                return;
+            }
+
+            boolean leafA = mNodeA.isLeaf();
+            boolean leafB = mNodeB.isLeaf();
+
+            if (leafA && leafB) {
+                joinLeaves(mNodeA, mNodeB, mRangeInDegrees, mListener);
+                return;
+            }
+
+            List<JoinTask> tasks = new ArrayList<>(4);
+
+            if (shouldSplitA(mNodeA, leafA, mNodeB, leafB)) {
+                for (QuadTreeNode child : children(mNodeA))
+                    tasks.add(new JoinTask(child, mNodeB, mRangeInDegrees, mListener));
+            } else {
+                for (QuadTreeNode child : children(mNodeB))
+                    tasks.add(new JoinTask(mNodeA, child, mRangeInDegrees, mListener));
+            }
+
+            invokeAll(tasks);
+        }
+    }
+}
@@ -2,8 +2,11 @@ package src.quadtree.core;
 
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Created by Leonardo Lana
@@ -37,50 +40,62 @@ public class QuadTreeNode {
     protected Rectangle2D.Double mBounds;
 
     /**
-     * Represents the top left node of this node
+     * Index of each child in mChildren
      * ---------
-     * | x |   |
+     * | 0 | 2 |
      * |---|---|
-     * |   |   |
+     * | 1 | 3 |
      * ---------
      */
-    protected QuadTreeNode mTopLeftNode;
+    public static final int TOP_LEFT = 0;
+    public static final int BOTTOM_LEFT = 1;
+    public static final int TOP_RIGHT = 2;
+    public static final int BOTTOM_RIGHT = 3;
 
     /**
-     * Represents the top right node of this node
-     * ---------
-     * |   | x |
-     * |---|---|
-     * |   |   |
-     * ---------
+     * Order of the children along a Hilbert curve for each of its 4 orientations,
+     * and the orientation of the curve inside each of these children
      */
-    protected QuadTreeNode mTopRightNode;
+    static final int[][] HILBERT_ORDER = {{0, 1, 3, 2}, {0, 2, 3, 1}, {3, 1, 0, 2}, {3, 2, 0, 1}};
+    static final int[][] HILBERT_NEXT_STATE = {{1, 0, 0, 2}, {0, 1, 1, 3}, {3, 2, 2, 0}, {2, 3, 3, 1}};
 
     /**
-     * Represents the bottom left node of this node
-     * ---------
-     * |   |   |
-     * |---|---|
-     * | x |   |
-     * ---------
+     * The 4 children of this node, a child is null until a neighbour is added inside it.
+     * Searches read the children without a lock while writers create them and the defragmenter
+     * replaces them, a child is stored with a release store so its fields are seen before the child.
      */
-    protected QuadTreeNode mBottomLeftNode;
+    protected final AtomicReferenceArray<QuadTreeNode> mChildren = new AtomicReferenceArray<>(4);
 
     /**
-     * Represents the bottom right node of this node
-     * ---------
-     * |   |   |
-     * |---|---|
-     * |   | x |
-     * ---------
+     *  List of points of interest A.K.A neighbours inside this node
+     *  this list is only filled in the nodes without children
      */
-    protected QuadTreeNode mBottomRightNode;
+    protected List<Neighbour> mNeighbours;
 
     /**
-     *  List of points of interest A.K.A neighbours inside this node
-     *  this list is only filled in the deepest nodes
+     * Smallest rectangle holding every neighbour stored below this node, usually much tighter
+     * than mBounds. It is empty, min bigger than max, while the node has no neighbours.
+     * It grows on every insert and is tightened again along the path of every removal.
+     */
+    protected double mMinLatitude = Double.POSITIVE_INFINITY;
+    protected double mMaxLatitude = Double.NEGATIVE_INFINITY;
+    protected double mMinLongitude = Double.POSITIVE_INFINITY;
+    protected double mMaxLongitude = Double.NEGATIVE_INFINITY;
+
+    /**
+     * How many neighbours are stored below this node and the sum of their coordinates, the
+     * centroid is the sum divided by the count. Kept along the same paths as the content bounds.
+     */
+    protected int mCount;
+    protected double mLatitudeSum;
+    protected double mLongitudeSum;
+
+    /**
+     * Incremented when the neighbours stored in this node change or when a child is created under it.
+     * Writes that only pass through this node on the way to a leaf do not change it, so a cached
+     * search stays valid while the leaves it read and the nodes above them keep their versions.
      */
-    protected List<Neighbour> mNeighbours = new ArrayList<>();
+    protected volatile int mVersion;
 
     /**
      * Creates a new node
@@ -90,7 +105,16 @@ public class QuadTreeNode {
      * @param longitudeRange node's width
      */
     public QuadTreeNode(double latitude, double longitude, double latitudeRange, double longitudeRange) {
+        this(latitude, longitude, latitudeRange, longitudeRange, new ArrayList<>());
+    }
+
+    /**
+     * Creates a new node storing its neighbours in the given list, nodes that override
+     * the leaf methods and keep the neighbours elsewhere pass an empty immutable list
+     */
+    protected QuadTreeNode(double latitude, double longitude, double latitudeRange, double longitudeRange, List<Neighbour> neighbours) {
         mBounds = new Rectangle2D.Double(longitude, latitude, longitudeRange, latitudeRange);
+        mNeighbours = neighbours;
     }
 
     /**
@@ -99,139 +123,447 @@ public class QuadTreeNode {
      * @param neighbour
      */
     public void addNeighbour(Neighbour neighbour, double deepestNodeSize) {
-        double halfSize = mBounds.width * .5f;
-        if (halfSize < deepestNodeSize) {
-            mNeighbours.add(neighbour);
+        addNeighbour(neighbour, deepestNodeSize, 0);
+    }
+
+    /**
+     * Adds a neighbour in the quadtree.
+     * This method will navigate and create nodes if necessary, until a node with room for the neighbour
+     * or the smallest (deepest) node is reached. A full node is split before the neighbour goes down.
+     * @param neighbour
+     * @param leafCapacity how many neighbours a node holds before it is split, 0 always goes down to the deepest node
+     */
+    public void addNeighbour(Neighbour neighbour, double deepestNodeSize, int leafCapacity) {
+        double latitude = neighbour.getLatitude();
+        double longitude = neighbour.getLongitude();
+
+        QuadTreeNode leaf = this;
+        while (leaf.getLargestSide() * .5f >= deepestNodeSize) {
+            if (leafCapacity > 0 && leaf.isLeaf()) {
+                if (leaf.getNeighboursCount() < leafCapacity)
+                    break;
+
+                leaf.split();
+            }
+
+            leaf = leaf.locateAndCreateNodeForPoint(latitude, longitude);
+        }
+
+        leaf.addToLeaf(neighbour);
+        leaf.includeInAggregate(latitude, longitude);
+        leaf.mVersion++;
+
+        // The parents grow after the neighbour is stored, walking the same path again
+        for (QuadTreeNode node = this; node != leaf; node = node.mChildren.get(node.childIndexFor(latitude, longitude))) {
+            node.includeInContentBounds(leaf);
+            node.includeInAggregate(latitude, longitude);
+        }
+    }
+
+    /**
+     * Adds many neighbours in the quadtree at once.
+     * The neighbours are split between the children, so each node is visited only once
+     * and each deepest node receives all of its neighbours together
+     * @param neighbours
+     */
+    public void addNeighbours(List<Neighbour> neighbours, double deepestNodeSize) {
+        addNeighbours(neighbours, deepestNodeSize, 0);
+    }
+
+    /**
+     * Same as {@link #addNeighbours(List, double)}, see {@link #addNeighbour(Neighbour, double, int)} for the leaf capacity
+     */
+    public void addNeighbours(List<Neighbour> neighbours, double deepestNodeSize, int leafCapacity) {
+        if (neighbours.isEmpty())
             return;
+
+        for (Neighbour neighbour : neighbours)
+            includeInAggregate(neighbour.getLatitude(), neighbour.getLongitude());
+
+        double halfSize = getLargestSide() * .5f;
+        boolean leaf = isLeaf();
+        if (halfSize < deepestNodeSize || (leafCapacity > 0 && leaf
+                && getNeighboursCount() + neighbours.size() <= leafCapacity)) {
+            addAllToLeaf(neighbours);
+            mVersion++;
+            return;
+        }
+
+        if (leaf && getNeighboursCount() > 0)
+            split();
+
+        Map<QuadTreeNode, List<Neighbour>> neighboursByNode = new IdentityHashMap<>(4);
+        for (Neighbour neighbour : neighbours) {
+            QuadTreeNode node = locateAndCreateNodeForPoint(neighbour.getLatitude(), neighbour.getLongitude());
+            List<Neighbour> nodeNeighbours = neighboursByNode.get(node);
+            if (nodeNeighbours == null)
+                neighboursByNode.put(node, nodeNeighbours = new ArrayList<>());
+            nodeNeighbours.add(neighbour);
         }
 
-        QuadTreeNode node = locateAndCreateNodeForPoint(neighbour.getLatitude(), neighbour.getLongitude());
-        node.addNeighbour(neighbour, deepestNodeSize);
+        for (Map.Entry<QuadTreeNode, List<Neighbour>> entry : neighboursByNode.entrySet()) {
+            entry.getKey().addNeighbours(entry.getValue(), deepestNodeSize, leafCapacity);
+            includeInContentBounds(entry.getKey());
+        }
     }
 
     /**
-     * Removes a neighbour from the quadtree
-     * @param id the neighbour's id
-     * @return if the neighbour existed and was removed
+     * Moves the neighbours of this node down to its children, called when a node with a leaf capacity is full.
+     * The content bounds and the aggregate do not change, the same neighbours are still below this node
      */
-    public boolean removeNeighbour(long id) {
-        for (Neighbour neighbor : mNeighbours) {
-            if (id == neighbor.getId()) {
-                mNeighbours.remove(neighbor);
-                return true;
-            }
+    private void split() {
+        List<Neighbour> neighbours = getNeighbours();
+
+        for (Neighbour neighbour : neighbours) {
+            QuadTreeNode child = locateAndCreateNodeForPoint(neighbour.getLatitude(), neighbour.getLongitude());
+            child.addToLeaf(neighbour);
+            child.includeInAggregate(neighbour.getLatitude(), neighbour.getLongitude());
         }
 
-        if (mTopLeftNode != null) {
-            if (mTopLeftNode.removeNeighbour(id))
-                return true;
+        for (int childIndex = 0; childIndex < mChildren.length(); childIndex++) {
+            QuadTreeNode child = mChildren.get(childIndex);
+            if (child != null)
+                child.mVersion++;
         }
 
-        if (mBottomLeftNode != null) {
-            if (mBottomLeftNode.removeNeighbour(id))
-                return true;
+        clearLeaf();
+        mVersion++;
+    }
+
+    /**
+     * @return if this node has no children
+     */
+    boolean isLeaf() {
+        for (int childIndex = 0; childIndex < mChildren.length(); childIndex++) {
+            QuadTreeNode child = mChildren.get(childIndex);
+            if (child != null)
+                return false;
         }
 
-        if (mTopRightNode != null) {
-            if (mTopRightNode.removeNeighbour(id))
-                return true;
+        return true;
+    }
+
+    /**
+     * Removes many neighbours from the quadtree in a single traversal
+     * @param ids the ids to be removed, the ids found are removed from this set
+     * @return if any neighbour below this node was removed
+     */
+    public boolean removeNeighbours(Set<Long> ids) {
+        if (ids.isEmpty())
+            return false;
+
+        boolean removed = removeFromThisLeaf(ids);
+
+        for (int childIndex = 0; childIndex < mChildren.length(); childIndex++) {
+            QuadTreeNode child = mChildren.get(childIndex);
+            if (child != null)
+                removed |= child.removeNeighbours(ids);
         }
 
-        if (mBottomRightNode != null) {
-            if (mBottomRightNode.removeNeighbour(id))
-                return true;
+        if (removed)
+            updateContent();
+
+        return removed;
+    }
+
+    /**
+     * Removes many neighbours whose positions are known, only the nodes on the paths to their leaves are visited.
+     * The neighbours are split between the children like in {@link #addNeighbours(List, double, int)}
+     * @param neighbours the neighbours to be removed, at the position they were stored with
+     * @param ids the ids of these neighbours, the ids found are removed from this set
+     * @return if any neighbour below this node was removed
+     */
+    boolean removeNeighboursAt(List<Neighbour> neighbours, Set<Long> ids) {
+        boolean removed = false;
+
+        if (getNeighboursCount() > 0) {
+            removed = removeFromThisLeaf(ids);
+        } else {
+            Map<QuadTreeNode, List<Neighbour>> neighboursByNode = new IdentityHashMap<>(4);
+            for (Neighbour neighbour : neighbours) {
+                QuadTreeNode node = mChildren.get(childIndexFor(neighbour.getLatitude(), neighbour.getLongitude()));
+                if (node == null)
+                    continue;
+
+                List<Neighbour> nodeNeighbours = neighboursByNode.get(node);
+                if (nodeNeighbours == null)
+                    neighboursByNode.put(node, nodeNeighbours = new ArrayList<>());
+                nodeNeighbours.add(neighbour);
+            }
+
+            for (Map.Entry<QuadTreeNode, List<Neighbour>> entry : neighboursByNode.entrySet())
+                removed |= entry.getKey().removeNeighboursAt(entry.getValue(), ids);
         }
 
-        return false;
+        if (removed)
+            updateContent();
+
+        return removed;
     }
 
     /**
-     * Recursively search for neighbours inside the given rectangle
+     * Removes the neighbours with the ids from the ones stored in this node, not from its children
+     * @return if any of them was removed
+     */
+    private boolean removeFromThisLeaf(Set<Long> ids) {
+        int count = getNeighboursCount();
+        if (count == 0)
+            return false;
+
+        removeAllFromLeaf(ids);
+        if (getNeighboursCount() == count)
+            return false;
+
+        mVersion++;
+        return true;
+    }
+
+    /**
+     * Removes a neighbour from the quadtree
+     * @param id the neighbour's id
+     * @return if the neighbour existed and was removed
+     */
+    public boolean removeNeighbour(long id) {
+        return takeNeighbour(id) != null;
+    }
+
+    /**
+     * Same as {@link #removeNeighbour(long)}
+     * @return the removed neighbour as it was stored, with its payload, or null if it did not exist
+     */
+    Neighbour takeNeighbour(long id) {
+        NodeStack stack = NodeStack.acquire();
+
+        try {
+            QuadTreeNode leaf = null;
+            Neighbour neighbour = null;
+            stack.push(this);
+
+            while (!stack.isEmpty()) {
+                QuadTreeNode node = stack.pop();
+                if (node.isContentEmpty())
+                    continue;
+
+                neighbour = node.takeFromLeaf(id);
+                if (neighbour != null) {
+                    leaf = node;
+                    break;
+                }
+
+                stack.pushChildren(node);
+            }
+
+            if (leaf == null)
+                return null;
+
+            // The path to the leaf is found again from the position of the leaf
+            stack.clear();
+            double latitude = leaf.mBounds.getCenterY();
+            double longitude = leaf.mBounds.getCenterX();
+            for (QuadTreeNode node = this; node != leaf; node = node.mChildren.get(node.childIndexFor(latitude, longitude)))
+                stack.push(node);
+
+            leaf.updateContent();
+            leaf.mVersion++;
+
+            while (!stack.isEmpty())
+                stack.pop().updateContent();
+
+            return neighbour;
+        } finally {
+            stack.release();
+        }
+    }
+
+    /**
+     * Search for neighbours inside the given rectangle
      * @param neighbourSet a set to be filled by this method
      * @param rangeAsRectangle the area of interest
      */
     public void findNeighboursWithinRectangle(Set<Neighbour> neighbourSet, Rectangle2D.Double rangeAsRectangle) {
-        boolean end;
+        findNeighboursWithinRectangle(neighbourSet, rangeAsRectangle, null);
+    }
 
-        // In case of containing the whole area of interest
-        if (mBounds.contains(rangeAsRectangle)) {
-            end = true;
+    /**
+     * Search for neighbours inside the given rectangle that are accepted by the filter
+     * @param neighbourSet a set to be filled by this method
+     * @param rangeAsRectangle the area of interest
+     * @param filter checked for each neighbour inside the area of interest, null accepts all of them
+     */
+    public void findNeighboursWithinRectangle(Set<Neighbour> neighbourSet, Rectangle2D.Double rangeAsRectangle, NeighbourFilter filter) {
+        NodeStack stack = NodeStack.acquire();
 
-            // If end is true, it means that we are on the deepest node
-            // otherwise we should keep going deeper
+        try {
+            stack.push(this);
 
-            if (mTopLeftNode != null) {
-                mTopLeftNode.findNeighboursWithinRectangle(neighbourSet, rangeAsRectangle);
-                end = false;
-            }
+            while (!stack.isEmpty()) {
+                QuadTreeNode node = stack.pop();
 
-            if (mBottomLeftNode != null) {
-                mBottomLeftNode.findNeighboursWithinRectangle(neighbourSet, rangeAsRectangle);
-                end = false;
-            }
+                // None of the neighbours below this node can be inside the area of interest
+                if (!node.contentIntersects(rangeAsRectangle))
+                    continue;
 
-            if (mTopRightNode != null) {
-                mTopRightNode.findNeighboursWithinRectangle(neighbourSet, rangeAsRectangle);
-                end = false;
-            }
+                // All of the neighbours below this node are inside the area of interest
+                if (node.contentInside(rangeAsRectangle)) {
+                    addSubtree(stack, node, neighbourSet, rangeAsRectangle, filter);
+                    continue;
+                }
 
-            if (mBottomRightNode != null) {
-                mBottomRightNode.findNeighboursWithinRectangle(neighbourSet, rangeAsRectangle);
-                end = false;
+                // Only the nodes without children on the edge of the area of interest are checked point by point
+                if (!stack.pushChildren(node))
+                    node.addNeighbors(false, neighbourSet, rangeAsRectangle, filter);
             }
+        } finally {
+            stack.release();
+        }
+    }
 
+    /**
+     * Adds every neighbour below the node, without checking their positions.
+     * The stack is shared with the caller, only the nodes pushed here are popped
+     */
+    private static void addSubtree(NodeStack stack, QuadTreeNode root, Set<Neighbour> neighbourSet,
+                                   Rectangle2D.Double rangeAsRectangle, NeighbourFilter filter) {
+        int bottom = stack.size();
+        stack.push(root);
 
-            if (end)
-                addNeighbors(true, neighbourSet, rangeAsRectangle);
+        while (stack.size() > bottom) {
+            QuadTreeNode node = stack.pop();
+            if (node.getNeighboursCount() > 0)
+                node.addNeighbors(true, neighbourSet, rangeAsRectangle, filter);
 
-            return;
+            stack.pushChildren(node);
         }
+    }
+
+    /**
+     * @return if there are no neighbours below this node
+     */
+    boolean isContentEmpty() {
+        return mMinLatitude > mMaxLatitude;
+    }
 
-        // In case of intersection with the area of interest
-        if (mBounds.intersects(rangeAsRectangle)) {
-            end = true;
+    /**
+     * @return if the content bounds of this node overlap the rectangle, using the same
+     * rule as {@link Rectangle2D#contains(double, double)} for the points on the edges
+     */
+    boolean contentIntersects(Rectangle2D.Double rectangle) {
+        return mMinLongitude < rectangle.x + rectangle.width && mMaxLongitude >= rectangle.x
+                && mMinLatitude < rectangle.y + rectangle.height && mMaxLatitude >= rectangle.y;
+    }
 
-            // If end is true, it means that we are on the deepest node
-            // otherwise we should keep going deeper
+    /**
+     * @return if every neighbour below this node is inside the rectangle
+     */
+    boolean contentInside(Rectangle2D.Double rectangle) {
+        return mMinLongitude >= rectangle.x && mMaxLongitude < rectangle.x + rectangle.width
+                && mMinLatitude >= rectangle.y && mMaxLatitude < rectangle.y + rectangle.height;
+    }
 
-            if (mTopLeftNode != null) {
-                mTopLeftNode.findNeighboursWithinRectangle(neighbourSet, rangeAsRectangle);
-                end = false;
-            }
+    /**
+     * Grows the content bounds to hold the given point
+     */
+    protected void includeInContentBounds(double latitude, double longitude) {
+        if (latitude < mMinLatitude)
+            mMinLatitude = latitude;
 
-            if (mBottomLeftNode != null) {
-                mBottomLeftNode.findNeighboursWithinRectangle(neighbourSet, rangeAsRectangle);
-                end = false;
-            }
+        if (latitude > mMaxLatitude)
+            mMaxLatitude = latitude;
 
-            if (mTopRightNode != null) {
-                mTopRightNode.findNeighboursWithinRectangle(neighbourSet, rangeAsRectangle);
-                end = false;
-            }
+        if (longitude < mMinLongitude)
+            mMinLongitude = longitude;
+
+        if (longitude > mMaxLongitude)
+            mMaxLongitude = longitude;
+    }
 
-            if (mBottomRightNode != null) {
-                mBottomRightNode.findNeighboursWithinRectangle(neighbourSet, rangeAsRectangle);
-                end = false;
+    /**
+     * Grows the content bounds to hold the content bounds of the given child
+     */
+    private void includeInContentBounds(QuadTreeNode child) {
+        mMinLatitude = Math.min(mMinLatitude, child.mMinLatitude);
+        mMaxLatitude = Math.max(mMaxLatitude, child.mMaxLatitude);
+        mMinLongitude = Math.min(mMinLongitude, child.mMinLongitude);
+        mMaxLongitude = Math.max(mMaxLongitude, child.mMaxLongitude);
+    }
+
+    private void includeInAggregate(double latitude, double longitude) {
+        mCount++;
+        mLatitudeSum += latitude;
+        mLongitudeSum += longitude;
+    }
+
+    /**
+     * Recomputes the content bounds and the aggregate after a removal, from the neighbours of a node
+     * without children or from the children. The new bounds are computed apart and then assigned,
+     * each field only shrinks so a concurrent search never misses a neighbour.
+     */
+    private void updateContent() {
+        double minLatitude = Double.POSITIVE_INFINITY;
+        double maxLatitude = Double.NEGATIVE_INFINITY;
+        double minLongitude = Double.POSITIVE_INFINITY;
+        double maxLongitude = Double.NEGATIVE_INFINITY;
+        int count = 0;
+        double latitudeSum = 0;
+        double longitudeSum = 0;
+
+        if (getNeighboursCount() > 0) {
+            for (Neighbour neighbour : getNeighbours()) {
+                minLatitude = Math.min(minLatitude, neighbour.getLatitude());
+                maxLatitude = Math.max(maxLatitude, neighbour.getLatitude());
+                minLongitude = Math.min(minLongitude, neighbour.getLongitude());
+                maxLongitude = Math.max(maxLongitude, neighbour.getLongitude());
+                count++;
+                latitudeSum += neighbour.getLatitude();
+                longitudeSum += neighbour.getLongitude();
             }
+        }
 
-            if (end)
-                addNeighbors(false, neighbourSet, rangeAsRectangle);
+        for (int childIndex = 0; childIndex < mChildren.length(); childIndex++) {
+            QuadTreeNode child = mChildren.get(childIndex);
+            if (child == null)
+                continue;
+
+            minLatitude = Math.min(minLatitude, child.mMinLatitude);
+            maxLatitude = Math.max(maxLatitude, child.mMaxLatitude);
+            minLongitude = Math.min(minLongitude, child.mMinLongitude);
+            maxLongitude = Math.max(maxLongitude, child.mMaxLongitude);
+            count += child.mCount;
+            latitudeSum += child.mLatitudeSum;
+            longitudeSum += child.mLongitudeSum;
         }
+
+        mMinLatitude = minLatitude;
+        mMaxLatitude = maxLatitude;
+        mMinLongitude = minLongitude;
+        mMaxLongitude = maxLongitude;
+        mCount = count;
+        mLatitudeSum = latitudeSum;
+        mLongitudeSum = longitudeSum;
     }
 
     /**
      * Adds neighbours to the found set
-     * @param contains if the rangeAsRectangle is contained inside the node
+     * @param contains if every neighbour of this node is inside the rangeAsRectangle
      * @param neighborSet a set to be filled by this method
      * @param rangeAsRectangle the area of interest
+     * @param filter checked for each neighbour, null accepts all of them
      */
-    private void addNeighbors(boolean contains, Set<Neighbour> neighborSet, Rectangle2D.Double rangeAsRectangle) {
-        if (contains) {
+    protected void addNeighbors(boolean contains, Set<Neighbour> neighborSet, Rectangle2D.Double rangeAsRectangle, NeighbourFilter filter) {
+        if (!contains) {
+            findAll(neighborSet, rangeAsRectangle, filter);
+            return;
+        }
+
+        if (filter == null) {
             neighborSet.addAll(mNeighbours);
             return;
         }
 
-        findAll(neighborSet, rangeAsRectangle);
+        for (Neighbour neighbor : mNeighbours) {
+            if (filter.accept(neighbor))
+                neighborSet.add(neighbor);
+        }
     }
 
     /**
@@ -239,14 +571,87 @@ public class QuadTreeNode {
      * search for neighbours that are contained inside the rangeAsRectangle
      * @param neighborSet a set to be filled by this method
      * @param rangeAsRectangle the area of interest
+     * @param filter checked for each neighbour inside the area of interest, null accepts all of them
      */
-    private void findAll(Set<Neighbour> neighborSet, Rectangle2D.Double rangeAsRectangle) {
+    protected void findAll(Set<Neighbour> neighborSet, Rectangle2D.Double rangeAsRectangle, NeighbourFilter filter) {
         for (Neighbour neighbor : mNeighbours) {
-            if (rangeAsRectangle.contains(neighbor.getLongitude(), neighbor.getLatitude()))
+            if (rangeAsRectangle.contains(neighbor.getLongitude(), neighbor.getLatitude())
+                    && (filter == null || filter.accept(neighbor)))
                 neighborSet.add(neighbor);
         }
     }
 
+    /**
+     * Stores the neighbour in this node, called only on nodes without children.
+     * Implementations must include the stored coordinates in the content bounds
+     * @param neighbour
+     */
+    protected void addToLeaf(Neighbour neighbour) {
+        mNeighbours.add(neighbour);
+        includeInContentBounds(neighbour.getLatitude(), neighbour.getLongitude());
+    }
+
+    /**
+     * Removes the neighbour from the neighbours stored in this node
+     * @param id the neighbour's id
+     * @return the neighbour as it was stored, with its payload, or null if it was not stored in this node
+     */
+    protected Neighbour takeFromLeaf(long id) {
+        for (Neighbour neighbor : mNeighbours) {
+            if (id == neighbor.getId()) {
+                mNeighbours.remove(neighbor);
+                return neighbor;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Drops every neighbour stored in this node, called when the node is split.
+     * A new list is created, so searches still reading the old one are not disturbed
+     */
+    protected void clearLeaf() {
+        mNeighbours = new ArrayList<>();
+    }
+
+    /**
+     * Stores many neighbours in this node, called only on nodes without children
+     * @param neighbours
+     */
+    protected void addAllToLeaf(List<Neighbour> neighbours) {
+        mNeighbours.addAll(neighbours);
+        for (Neighbour neighbour : neighbours)
+            includeInContentBounds(neighbour.getLatitude(), neighbour.getLongitude());
+    }
+
+    /**
+     * Removes the neighbours with the given ids from the neighbours stored in this node
+     * @param ids the ids to be removed, the ids found are removed from this set
+     */
+    protected void removeAllFromLeaf(Set<Long> ids) {
+        mNeighbours.removeIf(neighbour -> ids.remove(neighbour.getId()));
+    }
+
+    /**
+     * Adds the memory used by this node and its neighbours, not by its children
+     */
+    protected void estimateFootprint(QuadTreeFootprint footprint) {
+        footprint.addNode(this, mBounds, mChildren);
+        footprint.addNeighbourList(mNeighbours);
+    }
+
+    /**
+     * @return the neighbours stored in this node, only nodes without children have neighbours
+     */
+    protected List<Neighbour> getNeighbours() {
+        return mNeighbours;
+    }
+
+    protected int getNeighboursCount() {
+        return mNeighbours.size();
+    }
+
     /**
      * This methods finds and returns in which of the 4 child nodes the latitude and longitude is located.
      * If the node does not exist, it is created.
@@ -256,20 +661,155 @@ public class QuadTreeNode {
      * @return the node that contains the desired latitude and longitude
      */
     protected QuadTreeNode locateAndCreateNodeForPoint(double latitude, double longitude) {
+        int index = childIndexFor(latitude, longitude);
+        QuadTreeNode child = mChildren.get(index);
+        if (child != null)
+            return child;
+
         double halfWidth = mBounds.width * .5f;
         double halfHeight = mBounds.height * .5f;
+        double childLatitude = index == TOP_LEFT || index == TOP_RIGHT ? mBounds.y : mBounds.y + halfHeight;
+        double childLongitude = index == TOP_LEFT || index == BOTTOM_LEFT ? mBounds.x : mBounds.x + halfWidth;
 
-        if (longitude < mBounds.x + halfWidth) {
-            if (latitude < mBounds.y + halfHeight)
-                return mTopLeftNode != null ? mTopLeftNode : (mTopLeftNode = new QuadTreeNode(mBounds.y, mBounds.x, halfHeight, halfWidth));
+        child = createChild(childLatitude, childLongitude, halfHeight, halfWidth);
+        mChildren.lazySet(index, child);
+        mVersion++;
+        return child;
+    }
+
+    /**
+     * Creates a child of this node, subclasses override it so the whole tree is made of the same kind of node
+     * @param latitude child's Y start point
+     * @param longitude child's X start point
+     * @param latitudeRange child's height
+     * @param longitudeRange child's width
+     */
+    protected QuadTreeNode createChild(double latitude, double longitude, double latitudeRange, double longitudeRange) {
+        return new QuadTreeNode(latitude, longitude, latitudeRange, longitudeRange);
+    }
 
-            return mBottomLeftNode != null ? mBottomLeftNode : (mBottomLeftNode = new QuadTreeNode(mBounds.y + halfHeight, mBounds.x, halfHeight, halfWidth));
+    /**
+     * Copies this subtree into new nodes, allocated one after the other while the subtree is walked
+     * along a Hilbert curve, so neighbouring cells also end up next to each other in the heap.
+     * Writers must be blocked during the copy, readers can keep using this subtree.
+     * @param hilbertState orientation of the curve inside this node, 0 for the root
+     */
+    QuadTreeNode copyInHilbertOrder(int hilbertState) {
+        QuadTreeNode copy = createChild(mBounds.y, mBounds.x, mBounds.height, mBounds.width);
+        copy.mMinLatitude = mMinLatitude;
+        copy.mMaxLatitude = mMaxLatitude;
+        copy.mMinLongitude = mMinLongitude;
+        copy.mMaxLongitude = mMaxLongitude;
+        copy.mCount = mCount;
+        copy.mLatitudeSum = mLatitudeSum;
+        copy.mLongitudeSum = mLongitudeSum;
+        copy.mVersion = mVersion + 1;
+
+        if (getNeighboursCount() > 0)
+            copyLeafTo(copy);
+
+        for (int i = 0; i < 4; i++) {
+            int index = HILBERT_ORDER[hilbertState][i];
+            QuadTreeNode child = mChildren.get(index);
+            if (child != null)
+                copy.mChildren.lazySet(index, child.copyInHilbertOrder(HILBERT_NEXT_STATE[hilbertState][i]));
         }
 
-        if (latitude < mBounds.y + halfHeight)
-            return mTopRightNode != null ? mTopRightNode : (mTopRightNode = new QuadTreeNode(mBounds.y, mBounds.x + halfWidth, halfHeight, halfWidth));
+        return copy;
+    }
+
+    /**
+     * @return the sum of the versions of the nodes of this subtree, it changes after any write below this node
+     */
+    long getSubtreeVersion() {
+        NodeStack stack = NodeStack.acquire();
+
+        try {
+            long version = 0;
+            stack.push(this);
+            while (!stack.isEmpty()) {
+                QuadTreeNode node = stack.pop();
+                version += node.mVersion;
+                stack.pushChildren(node);
+            }
 
-        return mBottomRightNode != null ? mBottomRightNode : (mBottomRightNode = new QuadTreeNode(mBounds.y + halfHeight, mBounds.x + halfWidth, halfHeight, halfWidth));
+            return version;
+        } finally {
+            stack.release();
+        }
+    }
+
+    /**
+     * Increments the version of every node of this subtree, called after it was replaced by a copy,
+     * so the cached searches that visited it are not used anymore
+     */
+    void retire() {
+        NodeStack stack = NodeStack.acquire();
+
+        try {
+            stack.push(this);
+            while (!stack.isEmpty()) {
+                QuadTreeNode node = stack.pop();
+                node.mVersion++;
+                stack.pushChildren(node);
+            }
+        } finally {
+            stack.release();
+        }
+    }
+
+    /**
+     * Stores a copy of the neighbours of this node in the copy of the node, see {@link #copyInHilbertOrder(int)}.
+     * The neighbours created by the tree are copied too, other implementations are shared
+     */
+    protected void copyLeafTo(QuadTreeNode copy) {
+        List<Neighbour> neighbours = new ArrayList<>(mNeighbours.size());
+        for (Neighbour neighbour : mNeighbours)
+            neighbours.add(copyOf(neighbour));
+
+        copy.mNeighbours = neighbours;
+    }
+
+    /**
+     * @return a neighbour with the same id and payload as the neighbour, at the already normalized position
+     */
+    static Neighbour movedTo(Neighbour neighbour, double latitude, double longitude) {
+        if (neighbour instanceof IntPayloadNeighbour)
+            return new IntPayloadNeighbourImpl(neighbour.getId(), latitude, longitude, ((IntPayloadNeighbour) neighbour).getIntPayload());
+
+        if (neighbour instanceof PayloadNeighbour)
+            return new PayloadNeighbourImpl<>(neighbour.getId(), latitude, longitude, ((PayloadNeighbour<?>) neighbour).getPayload());
+
+        return new NeighbourImpl(neighbour.getId(), latitude, longitude);
+    }
+
+    private static Neighbour copyOf(Neighbour neighbour) {
+        Class<?> type = neighbour.getClass();
+
+        if (type == NeighbourImpl.class)
+            return new NeighbourImpl(neighbour.getId(), neighbour.getLatitude(), neighbour.getLongitude());
+
+        if (type == IntPayloadNeighbourImpl.class) {
+            return new IntPayloadNeighbourImpl(neighbour.getId(), neighbour.getLatitude(), neighbour.getLongitude(),
+                    ((IntPayloadNeighbourImpl) neighbour).getIntPayload());
+        }
+
+        if (type == PayloadNeighbourImpl.class) {
+            return new PayloadNeighbourImpl<>(neighbour.getId(), neighbour.getLatitude(), neighbour.getLongitude(),
+                    ((PayloadNeighbourImpl<?>) neighbour).getPayload());
+        }
+
+        return neighbour;
+    }
+
+    /**
+     * @return the index in mChildren of the child where the latitude and longitude are located
+     */
+    int childIndexFor(double latitude, double longitude) {
+        double halfWidth = mBounds.width * .5f;
+        double halfHeight = mBounds.height * .5f;
+        int index = longitude < mBounds.x + halfWidth ? TOP_LEFT : TOP_RIGHT;
+        return latitude < mBounds.y + halfHeight ? index : index + 1;
     }
 
     protected double getLongitude() {
@@ -288,5 +828,12 @@ public class QuadTreeNode {
         return mBounds.height;
     }
 
+    /**
+     * Side used by the leaf rule, so bounds that are not square stop splitting only when both sides are small enough
+     */
+    double getLargestSide() {
+        return Math.max(mBounds.width, mBounds.height);
+    }
+
 
 }
@@ -0,0 +1,229 @@
+package src.quadtree.core;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Bounded cache in front of {@link QuadTree#findNeighbours(double, double, double)}.
+ *
+ * Queries are grouped by a quantized center and range. Each entry keeps the neighbours of
+ * a slightly bigger area, one that covers every query of the group, and each query filters
+ * them by its own area of interest. Results are exactly the ones the tree would return.
+ *
+ * An entry also keeps the version of every node visited to build it, it is used only while
+ * none of these versions changed. A leaf changes its version only when its own neighbours
+ * change and a node above the leaves only when a child is created under it, so writes to
+ * other leaves do not affect the entry, even when they pass through the same parents.
+ *
+ * Least recently used entries are dropped when the cache is full.
+ */
+
+public class QuadTreeQueryCache {
+
+    private final QuadTree mQuadTree;
+    private final double mQuantumInDegrees;
+    private final Map<CacheKey, CacheEntry> mEntries;
+
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * @param quadTree the tree to be searched
+     * @param maxEntries how many entries are kept at most
+     * @param quantumInKm size of the grid used to group centers and ranges, bigger groups
+     *                    share more entries but each entry holds more neighbours
+     */
+    public QuadTreeQueryCache(QuadTree quadTree, final int maxEntries, double quantumInKm) {
+        mQuadTree = quadTree;
+        mQuantumInDegrees = quadTree.getGeometry().kmToDegree(quantumInKm);
+        mEntries = new LinkedHashMap<CacheKey, CacheEntry>(16, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public Set<Neighbour> findNeighbours(double latitude, double longitude, double rangeInKm) {
+        QuadTreeGeometry geometry = mQuadTree.getGeometry();
+        double normalizedLatitude = geometry.normalizeLatitude(latitude);
+        double normalizedLongitude = geometry.normalizeLongitude(longitude);
+        double rangeInDegrees = geometry.kmToDegree(rangeInKm);
+        CacheKey key = new CacheKey((long) Math.floor(normalizedLatitude / mQuantumInDegrees),
+                (long) Math.floor(normalizedLongitude / mQuantumInDegrees),
+                (long) Math.ceil(rangeInDegrees / mQuantumInDegrees));
+
+        CacheEntry entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+        }
+
+        if (entry != null && entry.isValid()) {
+            synchronized (this) {
+                mHits++;
+            }
+        } else {
+            entry = createEntry(key);
+            synchronized (this) {
+                mMisses++;
+                mEntries.put(key, entry);
+            }
+        }
+
+        Rectangle2D.Double areaOfInterest = geometry.getRangeAsRectangle(normalizedLatitude, normalizedLongitude, rangeInDegrees);
+        Set<Neighbour> neighbourSet = new HashSet<>();
+        for (Neighbour neighbour : entry.mNeighbours) {
+            if (areaOfInterest.contains(neighbour.getLongitude(), neighbour.getLatitude()))
+                neighbourSet.add(neighbour);
+        }
+
+        return neighbourSet;
+    }
+
+    public Set<Long> findNeighboursIds(double latitude, double longitude, double rangeInKm) {
+        Set<Long> neighboursIds = new HashSet<>();
+
+        for (Neighbour neighbour : findNeighbours(latitude, longitude, rangeInKm))
+            neighboursIds.add(neighbour.getId());
+
+        return neighboursIds;
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Searches the area covered by every query of the key, recording the version of each visited node.
+     * The versions are read before the neighbours, so a write that happens during the search
+     * makes the entry invalid instead of being lost.
+     */
+    private CacheEntry createEntry(CacheKey key) {
+        double rangeInDegrees = key.mRange * mQuantumInDegrees;
+        Rectangle2D.Double coveredArea = new Rectangle2D.Double(
+                key.mLongitude * mQuantumInDegrees - rangeInDegrees,
+                key.mLatitude * mQuantumInDegrees - rangeInDegrees,
+                mQuantumInDegrees + rangeInDegrees * 2,
+                mQuantumInDegrees + rangeInDegrees * 2);
+
+        List<Neighbour> neighbours = new ArrayList<>();
+        List<QuadTreeNode> visitedNodes = new ArrayList<>();
+        List<Integer> versions = new ArrayList<>();
+        Deque<QuadTreeNode> pendingNodes = new ArrayDeque<>();
+        pendingNodes.push(mQuadTree.getRootNode());
+
+        while (!pendingNodes.isEmpty()) {
+            QuadTreeNode node = pendingNodes.pop();
+            if (!node.mBounds.intersects(coveredArea))
+                continue;
+
+            visitedNodes.add(node);
+            versions.add(node.mVersion);
+
+            for (Neighbour neighbour : node.getNeighbours()) {
+                if (coveredArea.contains(neighbour.getLongitude(), neighbour.getLatitude()))
+                    neighbours.add(neighbour);
+            }
+
+            for (int childIndex = 0; childIndex < node.mChildren.length(); childIndex++)
+                pushIfNotNull(pendingNodes, node.mChildren.get(childIndex));
+        }
+
+        int[] versionsArray = new int[versions.size()];
+        for (int i = 0; i < versionsArray.length; i++)
+            versionsArray[i] = versions.get(i);
+
+        return new CacheEntry(neighbours.toArray(new Neighbour[neighbours.size()]),
+                visitedNodes.toArray(new QuadTreeNode[visitedNodes.size()]), versionsArray);
+    }
+
+    private static void pushIfNotNull(Deque<QuadTreeNode> pendingNodes, QuadTreeNode node) {
+        if (node != null)
+            pendingNodes.push(node);
+    }
+
+    private static class CacheKey {
+
+        private final long mLatitude;
+        private final long mLongitude;
+        private final long mRange;
+
+        CacheKey(long latitude, long longitude, long range) {
+            mLatitude = latitude;
+            mLongitude = longitude;
+            mRange = range;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof CacheKey))
+                return false;
+
+            CacheKey key = (CacheKey) other;
+            return mLatitude == key.mLatitude && mLongitude == key.mLongitude && mRange == key.mRange;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = Long.hashCode(mLatitude);
+            hash = 31 * hash + Long.hashCode(mLongitude);
+            return 31 * hash + Long.hashCode(mRange);
+        }
+    }
+
+    private static class CacheEntry {
+
+        private final Neighbour[] mNeighbours;
+        private final QuadTreeNode[] mVisitedNodes;
+        private final int[] mVersions;
+
+        CacheEntry(Neighbour[] neighbours, QuadTreeNode[] visitedNodes, int[] versions) {
+            mNeighbours = neighbours;
+            mVisitedNodes = visitedNodes;
+            mVersions = versions;
+        }
+
+        boolean isValid() {
+            for (int i = 0; i < mVisitedNodes.length; i++) {
+                if (mVisitedNodes[i].mVersion != mVersions[i])
+                    return false;
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package src.quadtree.core;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Index that splits the world in a grid of independent {@link QuadTree}s, called shards.
+ *
+ * Each shard has its own read/write lock, so writes to different regions do not wait for
+ * each other. Queries only visit the shards their area of interest overlaps and the results
+ * are merged at the end.
+ *
+ * The grid follows the quadtree itself, with one level the shards are the four top level
+ * quadrants, with two levels each quadrant is split again and there are sixteen shards.
+ *
+ * The shard of each neighbour is kept in primitive maps split in stripes, each stripe with its own
+ * lock, so neighbours can be removed and moved by id without searching every shard. Writes for
+ * the same id must not run concurrently. A batch of writes is split between the shards and the
+ * shards are written in parallel, see {@link #applyWrites(List, Executor)}.
+ */
+
+public class ShardedQuadTree implements NeighbourIndex {
+
+    private static final int MAX_SHARD_LEVELS = 6;
+    private static final int SHARD_MAP_STRIPES = 64;
+
+    private final QuadTreeGeometry mGeometry;
+    private final int mShardsPerSide;
+    private final double mShardWidth;
+    private final double mShardHeight;
+    private final QuadTree[] mShards;
+    private final ReadWriteLock[] mLocks;
+    private final LongIntMap[] mShardOfNeighbour = new LongIntMap[SHARD_MAP_STRIPES];
+
+    /**
+     * @param shardLevels how many times the world is split in four, there will be 4^shardLevels shards
+     */
+    public ShardedQuadTree(int shardLevels) {
+        this(shardLevels, new QuadTree.Builder());
+    }
+
+    /**
+     * @param shardLevels how many times the area is split in four, there will be 4^shardLevels shards
+     * @param builder geometry of the whole index, every shard covers a part of its bounds
+     */
+    public ShardedQuadTree(int shardLevels, QuadTree.Builder builder) {
+        if (shardLevels < 0 || shardLevels > MAX_SHARD_LEVELS)
+            throw new IllegalArgumentException("Shard levels must be between 0 and " + MAX_SHARD_LEVELS + ", got " + shardLevels);
+
+        mGeometry = builder.buildGeometry();
+        mShardsPerSide = 1 << shardLevels;
+        mShardWidth = mGeometry.mLongitudeRange / mShardsPerSide;
+        mShardHeight = mGeometry.mLatitudeRange / mShardsPerSide;
+        mShards = new QuadTree[mShardsPerSide * mShardsPerSide];
+        mLocks = new ReadWriteLock[mShards.length];
+        for (int i = 0; i < SHARD_MAP_STRIPES; i++)
+            mShardOfNeighbour[i] = new LongIntMap();
+
+        for (int row = 0; row < mShardsPerSide; row++) {
+            for (int column = 0; column < mShardsPerSide; column++) {
+                int shard = row * mShardsPerSide + column;
+                mShards[shard] = new QuadTree(builder.createNode(row * mShardHeight, column * mShardWidth, mShardHeight, mShardWidth), mGeometry);
+                mLocks[shard] = new ReentrantReadWriteLock();
+            }
+        }
+    }
+
+    public int getShardsCount() {
+        return mShards.length;
+    }
+
+    /**
+     * Adds a neighbour, a neighbour with the same id in another shard is removed from it,
+     * so the id is not left behind in a shard the map no longer points to
+     */
+    @Override
+    public void addNeighbour(long id, double latitude, double longitude) {
+        int shard = shardOf(latitude, longitude);
+        mLocks[shard].writeLock().lock();
+        try {
+            mShards[shard].addNeighbour(id, latitude, longitude);
+        } finally {
+            mLocks[shard].writeLock().unlock();
+        }
+
+        int oldShard = putShardOfNeighbour(id, shard);
+        if (oldShard != LongIntMap.NO_VALUE && oldShard != shard)
+            removeFromShard(oldShard, id);
+    }
+
+    @Override
+    public boolean removeNeighbour(long id) {
+        int shard = removeShardOfNeighbour(id);
+        if (shard == LongIntMap.NO_VALUE)
+            return false;
+
+        return removeFromShard(shard, id);
+    }
+
+    @Override
+    public void moveNeighbour(long id, double latitude, double longitude) {
+        int shard = shardOf(latitude, longitude);
+        int oldShard = putShardOfNeighbour(id, shard);
+
+        if (oldShard == shard) {
+            mLocks[shard].writeLock().lock();
+            try {
+                mShards[shard].moveNeighbour(id, latitude, longitude);
+            } finally {
+                mLocks[shard].writeLock().unlock();
+            }
+            return;
+        }
+
+        if (oldShard != LongIntMap.NO_VALUE)
+            removeFromShard(oldShard, id);
+
+        mLocks[shard].writeLock().lock();
+        try {
+            mShards[shard].addNeighbour(id, latitude, longitude);
+        } finally {
+            mLocks[shard].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #applyWrites(List, Executor)} with the shards written in the common fork join pool
+     */
+    @Override
+    public boolean[] applyWrites(List<NeighbourWrite> writes) {
+        return applyWrites(writes, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Splits the writes between the shards, the writes of each shard are applied in their order under
+     * the lock of the shard and the shards are written in parallel. A move between two shards, or an
+     * addition of an id known in another shard, becomes a removal from the old shard and an addition to
+     * the new one, so the writes of an id end as if they were applied one by one. The calling thread writes one of the shards and waits for the others.
+     */
+    public boolean[] applyWrites(List<NeighbourWrite> writes, Executor executor) {
+        boolean[] applied = new boolean[writes.size()];
+        List<List<NeighbourWrite>> writesByShard = new ArrayList<>(mShards.length);
+        for (int shard = 0; shard < mShards.length; shard++)
+            writesByShard.add(null);
+
+        for (int i = 0; i < applied.length; i++) {
+            NeighbourWrite write = writes.get(i);
+            int shard = write.mType == NeighbourWrite.REMOVE ? LongIntMap.NO_VALUE : shardOf(write.mLatitude, write.mLongitude);
+
+            switch (write.mType) {
+                case NeighbourWrite.ADD:
+                    int previousShard = putShardOfNeighbour(write.mId, shard);
+                    if (previousShard != LongIntMap.NO_VALUE && previousShard != shard)
+                        addShardWrite(writesByShard, previousShard, new NeighbourWrite(NeighbourWrite.REMOVE, write.mId, 0, 0));
+                    addShardWrite(writesByShard, shard, write);
+                    applied[i] = true;
+                    break;
+                case NeighbourWrite.MOVE:
+                    int oldShard = putShardOfNeighbour(write.mId, shard);
+                    if (oldShard == shard) {
+                        addShardWrite(writesByShard, shard, write);
+                    } else {
+                        if (oldShard != LongIntMap.NO_VALUE)
+                            addShardWrite(writesByShard, oldShard, new NeighbourWrite(NeighbourWrite.REMOVE, write.mId, 0, 0));
+                        addShardWrite(writesByShard, shard, new NeighbourWrite(NeighbourWrite.ADD, write.mId, write.mLatitude, write.mLongitude));
+                    }
+                    applied[i] = true;
+                    break;
+                case NeighbourWrite.REMOVE:
+                    int removedShard = removeShardOfNeighbour(write.mId);
+                    if (removedShard != LongIntMap.NO_VALUE) {
+                        addShardWrite(writesByShard, removedShard, write);
+                        applied[i] = true;
+                    }
+                    break;
+            }
+        }
+
+        List<CompletableFuture<Void>> pendingShards = new ArrayList<>();
+        int callerShard = LongIntMap.NO_VALUE;
+        for (int shard = 0; shard < mShards.length; shard++) {
+            final List<NeighbourWrite> shardWrites = writesByShard.get(shard);
+            if (shardWrites == null)
+                continue;
+
+            if (callerShard == LongIntMap.NO_VALUE) {
+                callerShard = shard;
+                continue;
+            }
+
+            final int writtenShard = shard;
+            pendingShards.add(CompletableFuture.runAsync(() -> applyToShard(writtenShard, shardWrites), executor));
+        }
+
+        if (callerShard != LongIntMap.NO_VALUE)
+            applyToShard(callerShard, writesByShard.get(callerShard));
+        CompletableFuture.allOf(pendingShards.toArray(new CompletableFuture<?>[0])).join();
+
+        return applied;
+    }
+
+    @Override
+    public Set<Neighbour> findNeighbours(double latitude, double longitude, double rangeInKm) {
+        return findNeighbours(latitude, longitude, rangeInKm, null);
+    }
+
+    @Override
+    public Set<Neighbour> findNeighbours(double latitude, double longitude, double rangeInKm, NeighbourFilter filter) {
+        Rectangle2D.Double areaOfInterest = mGeometry.getRangeAsRectangle(mGeometry.normalizeLatitude(latitude),
+                mGeometry.normalizeLongitude(longitude), mGeometry.kmToDegree(rangeInKm));
+        Set<Neighbour> neighbourSet = new HashSet<>();
+
+        for (int shard : shardsOverlapping(areaOfInterest)) {
+            mLocks[shard].readLock().lock();
+            try {
+                mShards[shard].getRootNode().findNeighboursWithinRectangle(neighbourSet, areaOfInterest, filter);
+            } finally {
+                mLocks[shard].readLock().unlock();
+            }
+        }
+
+        return neighbourSet;
+    }
+
+    @Override
+    public Set<Long> findNeighboursIds(double latitude, double longitude, double rangeInKm) {
+        Set<Long> neighboursIds = new HashSet<>();
+
+        for (Neighbour neighbour : findNeighbours(latitude, longitude, rangeInKm))
+            neighboursIds.add(neighbour.getId());
+
+        return neighboursIds;
+    }
+
+    @Override
+    public Set<Neighbour> findNeighboursWithinRadius(double latitude, double longitude, double rangeInKm) {
+        Rectangle2D.Double areaOfInterest = mGeometry.getRangeAsRectangle(mGeometry.normalizeLatitude(latitude),
+                mGeometry.normalizeLongitude(longitude), mGeometry.kmToDegree(rangeInKm));
+        Set<Neighbour> neighbourSet = new HashSet<>();
+
+        for (int shard : shardsOverlapping(areaOfInterest)) {
+            mLocks[shard].readLock().lock();
+            try {
+                neighbourSet.addAll(mShards[shard].findNeighboursWithinRadius(latitude, longitude, rangeInKm));
+            } finally {
+                mLocks[shard].readLock().unlock();
+            }
+        }
+
+        return neighbourSet;
+    }
+
+    @Override
+    public Set<Neighbour> findNeighboursWithin(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+        Rectangle2D.Double areaOfInterest = new Rectangle2D.Double(mGeometry.normalizeLongitude(minLongitude),
+                mGeometry.normalizeLatitude(minLatitude), maxLongitude - minLongitude, maxLatitude - minLatitude);
+        Set<Neighbour> neighbourSet = new HashSet<>();
+
+        for (int shard : shardsOverlapping(areaOfInterest)) {
+            mLocks[shard].readLock().lock();
+            try {
+                mShards[shard].getRootNode().findNeighboursWithinRectangle(neighbourSet, areaOfInterest);
+            } finally {
+                mLocks[shard].readLock().unlock();
+            }
+        }
+
+        return neighbourSet;
+    }
+
+    /**
+     * Shards are visited from the closest to the farthest, a shard is skipped when it is
+     * farther than the last neighbour found
+     */
+    @Override
+    public List<Neighbour> findNearestNeighbours(double latitude, double longitude, int count) {
+        List<Neighbour> neighbours = new ArrayList<>();
+        if (count <= 0)
+            return neighbours;
+
+        final double normalizedLatitude = mGeometry.normalizeLatitude(latitude);
+        final double normalizedLongitude = mGeometry.normalizeLongitude(longitude);
+
+        Integer[] shards = new Integer[mShards.length];
+        final double[] shardDistances = new double[mShards.length];
+        for (int shard = 0; shard < mShards.length; shard++) {
+            shards[shard] = shard;
+            shardDistances[shard] = NearestNeighbourSearch.squaredDistanceToNode(mShards[shard].getRootNode(),
+                    normalizedLatitude, normalizedLongitude);
+        }
+        Arrays.sort(shards, Comparator.comparingDouble(shard -> shardDistances[shard]));
+
+        Comparator<Neighbour> byDistance = Comparator.comparingDouble(neighbour ->
+                squaredDistance(neighbour, normalizedLatitude, normalizedLongitude));
+
+        for (int shard : shards) {
+            if (neighbours.size() >= count && shardDistances[shard]
+                    > squaredDistance(neighbours.get(count - 1), normalizedLatitude, normalizedLongitude))
+                break;
+
+            mLocks[shard].readLock().lock();
+            try {
+                neighbours.addAll(mShards[shard].findNearestNeighbours(latitude, longitude, count));
+            } finally {
+                mLocks[shard].readLock().unlock();
+            }
+
+            neighbours.sort(byDistance);
+            if (neighbours.size() > count)
+                neighbours.subList(count, neighbours.size()).clear();
+        }
+
+        return neighbours;
+    }
+
+    @Override
+    public void forEachNeighbour(NeighbourVisitor visitor) {
+        for (int shard = 0; shard < mShards.length; shard++) {
+            mLocks[shard].readLock().lock();
+            try {
+                mShards[shard].forEachNeighbour(visitor);
+            } finally {
+                mLocks[shard].readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Freezes every shard, see {@link QuadTree#freeze()}. Each shard is copied under its own lock,
+     * so the copies only match a single state of the index when nothing is written meanwhile.
+     */
+    public FrozenQuadTree[] freeze() {
+        FrozenQuadTree[] frozenShards = new FrozenQuadTree[mShards.length];
+        for (int shard = 0; shard < mShards.length; shard++) {
+            mLocks[shard].readLock().lock();
+            try {
+                frozenShards[shard] = mShards[shard].freeze();
+            } finally {
+                mLocks[shard].readLock().unlock();
+            }
+        }
+
+        return frozenShards;
+    }
+
+    private boolean removeFromShard(int shard, long id) {
+        mLocks[shard].writeLock().lock();
+        try {
+            return mShards[shard].removeNeighbour(id);
+        } finally {
+            mLocks[shard].writeLock().unlock();
+        }
+    }
+
+    private void applyToShard(int shard, List<NeighbourWrite> writes) {
+        mLocks[shard].writeLock().lock();
+        try {
+            mShards[shard].applyWrites(writes);
+        } finally {
+            mLocks[shard].writeLock().unlock();
+        }
+    }
+
+    private static void addShardWrite(List<List<NeighbourWrite>> writesByShard, int shard, NeighbourWrite write) {
+        List<NeighbourWrite> shardWrites = writesByShard.get(shard);
+        if (shardWrites == null)
+            writesByShard.set(shard, shardWrites = new ArrayList<>());
+        shardWrites.add(write);
+    }
+
+    /**
+     * @return the previous shard of the neighbour or {@link LongIntMap#NO_VALUE}
+     */
+    private int putShardOfNeighbour(long id, int shard) {
+        LongIntMap stripe = stripeOf(id);
+        synchronized (stripe) {
+            return stripe.put(id, shard);
+        }
+    }
+
+    /**
+     * @return the shard the neighbour was in or {@link LongIntMap#NO_VALUE}
+     */
+    private int removeShardOfNeighbour(long id) {
+        LongIntMap stripe = stripeOf(id);
+        synchronized (stripe) {
+            return stripe.remove(id);
+        }
+    }
+
+    private LongIntMap stripeOf(long id) {
+        return mShardOfNeighbour[(int) (id ^ (id >>> 32)) & (SHARD_MAP_STRIPES - 1)];
+    }
+
+    private int shardOf(double latitude, double longitude) {
+        int column = clamp((int) (mGeometry.normalizeLongitude(longitude) / mShardWidth));
+        int row = clamp((int) (mGeometry.normalizeLatitude(latitude) / mShardHeight));
+        return row * mShardsPerSide + column;
+    }
+
+    private List<Integer> shardsOverlapping(Rectangle2D.Double areaOfInterest) {
+        int firstColumn = clamp((int) (areaOfInterest.x / mShardWidth));
+        int lastColumn = clamp((int) ((areaOfInterest.x + areaOfInterest.width) / mShardWidth));
+        int firstRow = clamp((int) (areaOfInterest.y / mShardHeight));
+        int lastRow = clamp((int) ((areaOfInterest.y + areaOfInterest.height) / mShardHeight));
+        List<Integer> shards = new ArrayList<>((lastColumn - firstColumn + 1) * (lastRow - firstRow + 1));
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++)
+                shards.add(row * mShardsPerSide + column);
+        }
+
+        return shards;
+    }
+
+    private int clamp(int index) {
+        return Math.max(0, Math.min(mShardsPerSide - 1, index));
+    }
+
+    private static double squaredDistance(Neighbour neighbour, double latitude, double longitude) {
+        double latitudeDistance = neighbour.getLatitude() - latitude;
+        double longitudeDistance = neighbour.getLongitude() - longitude;
+        return latitudeDistance * latitudeDistance + longitudeDistance * longitudeDistance;
+    }
+}
@@ -0,0 +1,379 @@
+package src.quadtree.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * History of positions, answers who was near a point during a time range.
+ *
+ * Positions are kept in one {@link QuadTree} per time bucket. Only the newest bucket is
+ * open for writes, when a position of a later bucket arrives, or {@link #advanceTo(long)}
+ * passes its end, the bucket is closed and replaced by a {@link FrozenQuadTree}. Positions
+ * older than the open bucket, or of a bucket already closed, are rejected.
+ *
+ * Every position keeps its time as an int payload, the milliseconds since the start of its
+ * bucket. Queries skip the buckets outside the time range, buckets fully inside the range
+ * are searched without looking at the times.
+ *
+ * Closed buckets can be evicted after a retention period, or rolled up into larger windows
+ * where only the latest position of each id in the window is kept, along with the first and
+ * last times the id was seen in the window. A time range cutting a rolled up window finds the
+ * ids seen between those times at their latest position, the positions in between are lost.
+ */
+
+public class SpatioTemporalQuadTree {
+
+    private static final Segment[] NO_SEGMENTS = new Segment[0];
+
+    private final QuadTree.Builder mBuilder;
+    private final long mBucketMillis;
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    private QuadTree mOpenTree;
+    private long mOpenStart;
+
+    /**
+     * End of the last closed bucket, positions before it are rejected
+     */
+    private long mClosedEnd = Long.MIN_VALUE;
+    private long mRetentionMillis;
+    private long mRollUpAfterMillis;
+    private long mRollUpWindowMillis;
+
+    /**
+     * Closed buckets ordered by time, replaced as a whole so readers can use it without the lock
+     */
+    private volatile Segment[] mSegments = NO_SEGMENTS;
+
+    public SpatioTemporalQuadTree(long bucketMillis) {
+        this(bucketMillis, new QuadTree.Builder());
+    }
+
+    /**
+     * @param bucketMillis time covered by each bucket, at most {@link Integer#MAX_VALUE}
+     * @param builder geometry of the tree of each bucket, it can not be compressed as compressed
+     *                trees do not keep the payload holding the time
+     */
+    public SpatioTemporalQuadTree(long bucketMillis, QuadTree.Builder builder) {
+        if (bucketMillis <= 0 || bucketMillis > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The bucket must be between 1 and " + Integer.MAX_VALUE + " ms, got " + bucketMillis);
+
+        if (builder.isCompressed())
+            throw new IllegalArgumentException("Compressed trees do not keep the time of the positions");
+
+        builder.buildGeometry();
+        mBuilder = builder;
+        mBucketMillis = bucketMillis;
+    }
+
+    /**
+     * Closed buckets that ended this long before the newest time are dropped, 0 keeps them forever
+     */
+    public void setRetention(long retentionMillis) {
+        if (retentionMillis < 0)
+            throw new IllegalArgumentException("The retention can not be negative, got " + retentionMillis);
+
+        mLock.writeLock().lock();
+        try {
+            mRetentionMillis = retentionMillis;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closed buckets of a window that ended this long before the newest time are merged into one,
+     * keeping only the latest position of each id in the window and the first and last times it was seen
+     * @param windowMillis multiple of the bucket time, at most {@link Integer#MAX_VALUE}, 0 disables the roll up
+     */
+    public void setRollUp(long afterMillis, long windowMillis) {
+        if (afterMillis < 0 || windowMillis < 0 || windowMillis > Integer.MAX_VALUE || windowMillis % mBucketMillis != 0)
+            throw new IllegalArgumentException("The roll up window must be a multiple of the bucket up to "
+                    + Integer.MAX_VALUE + " ms, got " + windowMillis);
+
+        mLock.writeLock().lock();
+        try {
+            mRollUpAfterMillis = afterMillis;
+            mRollUpWindowMillis = windowMillis;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return false if the position is older than the open bucket, or than the end of the last closed
+     * bucket, and was not added
+     */
+    public boolean addPosition(long id, double latitude, double longitude, long timestampMillis) {
+        long start = bucketStart(timestampMillis);
+
+        mLock.writeLock().lock();
+        try {
+            if (start < mClosedEnd || (mOpenTree != null && start < mOpenStart))
+                return false;
+
+            if (mOpenTree == null || start > mOpenStart) {
+                closeOpenBucket(timestampMillis);
+                mOpenTree = mBuilder.build();
+                mOpenStart = start;
+            }
+
+            mOpenTree.addNeighbour(id, latitude, longitude, (int) (timestampMillis - start));
+            return true;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the open bucket if the time is past its end and applies the retention and the roll up,
+     * for when time moves on without new positions
+     */
+    public void advanceTo(long nowMillis) {
+        mLock.writeLock().lock();
+        try {
+            if (mOpenTree != null && nowMillis >= mOpenStart + mBucketMillis)
+                closeOpenBucket(nowMillis);
+            else
+                compact(nowMillis);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param fromMillis start of the time range, inclusive
+     * @param toMillis end of the time range, exclusive
+     * @return the ids with at least one position in the area of interest during the time range
+     */
+    public Set<Long> findNeighboursIds(double latitude, double longitude, double rangeInKm, long fromMillis, long toMillis) {
+        Set<Long> neighboursIds = new HashSet<>();
+        Segment[] segments;
+
+        // The segments are read under the lock, so a bucket closed meanwhile is not missed
+        mLock.readLock().lock();
+        try {
+            segments = mSegments;
+            if (mOpenTree != null && overlaps(mOpenStart, mOpenStart + mBucketMillis, fromMillis, toMillis)) {
+                neighboursIds.addAll(mOpenTree.findNeighboursIds(latitude, longitude, rangeInKm,
+                        timeFilter(mOpenStart, mOpenStart + mBucketMillis, fromMillis, toMillis)));
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        for (Segment segment : segments) {
+            if (segment.mStart >= toMillis)
+                break;
+
+            if (overlaps(segment.mStart, segment.mEnd, fromMillis, toMillis)) {
+                NeighbourFilter filter = segment.mRolledUp
+                        ? spanFilter(segment.mStart, segment.mEnd, fromMillis, toMillis)
+                        : timeFilter(segment.mStart, segment.mEnd, fromMillis, toMillis);
+                neighboursIds.addAll(segment.mTree.findNeighboursIds(latitude, longitude, rangeInKm, filter));
+            }
+        }
+
+        return neighboursIds;
+    }
+
+    /**
+     * @return how many closed buckets, or rolled up windows, are kept
+     */
+    public int getSegmentsCount() {
+        return mSegments.length;
+    }
+
+    private long bucketStart(long timestampMillis) {
+        return Math.floorDiv(timestampMillis, mBucketMillis) * mBucketMillis;
+    }
+
+    private void closeOpenBucket(long nowMillis) {
+        if (mOpenTree != null) {
+            Segment[] segments = Arrays.copyOf(mSegments, mSegments.length + 1);
+            segments[segments.length - 1] = new Segment(mOpenStart, mOpenStart + mBucketMillis, mOpenTree.freeze(), false);
+            mSegments = segments;
+            mOpenTree = null;
+            mClosedEnd = mOpenStart + mBucketMillis;
+        }
+
+        compact(nowMillis);
+    }
+
+    /**
+     * Evicts and rolls up the closed buckets, a new array is published only if something changed
+     */
+    private void compact(long nowMillis) {
+        List<Segment> segments = new ArrayList<>(Arrays.asList(mSegments));
+        boolean changed = false;
+
+        if (mRetentionMillis > 0) {
+            while (!segments.isEmpty() && segments.get(0).mEnd <= nowMillis - mRetentionMillis) {
+                segments.remove(0);
+                changed = true;
+            }
+        }
+
+        if (mRollUpWindowMillis > 0) {
+            long rollUpEnd = nowMillis - mRollUpAfterMillis;
+            int i = 0;
+
+            while (i < segments.size()) {
+                Segment first = segments.get(i);
+                long windowStart = Math.floorDiv(first.mStart, mRollUpWindowMillis) * mRollUpWindowMillis;
+                long windowEnd = windowStart + mRollUpWindowMillis;
+
+                if (windowEnd > rollUpEnd)
+                    break;
+
+                int end = i;
+                while (end < segments.size() && segments.get(end).mStart < windowEnd)
+                    end++;
+
+                if (end - i > 1 || !first.mRolledUp) {
+                    List<Segment> window = segments.subList(i, end);
+                    Segment rolledUp = rollUp(window, windowStart, windowEnd);
+                    window.clear();
+                    segments.add(i, rolledUp);
+                    changed = true;
+                }
+
+                i++;
+            }
+        }
+
+        if (changed)
+            mSegments = segments.toArray(NO_SEGMENTS);
+    }
+
+    private Segment rollUp(List<Segment> window, long windowStart, long windowEnd) {
+        Map<Long, Neighbour> latest = new HashMap<>();
+        Map<Long, TimeSpan> spans = new HashMap<>();
+
+        for (Segment segment : window) {
+            FrozenQuadTree tree = segment.mTree;
+            for (int i = 0; i < tree.size(); i++) {
+                Neighbour neighbour = tree.getNeighbour(i);
+                TimeSpan span = TimeSpan.of(neighbour, segment.mStart - windowStart);
+                TimeSpan previous = spans.get(neighbour.getId());
+
+                if (previous == null || span.mLast >= previous.mLast)
+                    latest.put(neighbour.getId(), neighbour);
+
+                spans.put(neighbour.getId(), previous == null ? span : previous.union(span));
+            }
+        }
+
+        List<Neighbour> neighbours = new ArrayList<>(latest.size());
+        for (Neighbour neighbour : latest.values()) {
+            neighbours.add(new PayloadNeighbourImpl<>(neighbour.getId(), neighbour.getLatitude(),
+                    neighbour.getLongitude(), spans.get(neighbour.getId())));
+        }
+
+        QuadTree tree = mBuilder.build();
+        tree.applyBatch(new ArrayList<>(), new HashSet<>(), neighbours);
+        return new Segment(windowStart, windowEnd, tree.freeze(), true);
+    }
+
+    private static boolean overlaps(long start, long end, long fromMillis, long toMillis) {
+        return start < toMillis && end > fromMillis;
+    }
+
+    /**
+     * @return null when the whole segment is inside the time range
+     */
+    private static NeighbourFilter timeFilter(long start, long end, long fromMillis, long toMillis) {
+        if (fromMillis <= start && end <= toMillis)
+            return null;
+
+        final long from = fromMillis - start;
+        final long to = toMillis - start;
+        return NeighbourFilter.intPayload(offset -> offset >= from && offset < to);
+    }
+
+    /**
+     * @return null when the whole rolled up segment is inside the time range, otherwise a filter
+     * accepting the ids seen at some time between their first and last times in the range
+     */
+    private static NeighbourFilter spanFilter(long start, long end, long fromMillis, long toMillis) {
+        if (fromMillis <= start && end <= toMillis)
+            return null;
+
+        final long from = fromMillis - start;
+        final long to = toMillis - start;
+        return NeighbourFilter.<TimeSpan>payload(span -> span.mFirst < to && span.mLast >= from);
+    }
+
+    /**
+     * First and last times an id was seen in a rolled up window, in milliseconds since its start
+     */
+    private static final class TimeSpan {
+
+        final int mFirst;
+        final int mLast;
+
+        TimeSpan(int first, int last) {
+            mFirst = first;
+            mLast = last;
+        }
+
+        /**
+         * @param offset start of the segment holding the neighbour, since the start of the window
+         */
+        static TimeSpan of(Neighbour neighbour, long offset) {
+            if (neighbour instanceof IntPayloadNeighbour) {
+                int time = (int) (offset + ((IntPayloadNeighbour) neighbour).getIntPayload());
+                return new TimeSpan(time, time);
+            }
+
+            @SuppressWarnings("unchecked")
+            TimeSpan span = ((PayloadNeighbour<TimeSpan>) neighbour).getPayload();
+            return new TimeSpan((int) (offset + span.mFirst), (int) (offset + span.mLast));
+        }
+
+        TimeSpan union(TimeSpan other) {
+            return new TimeSpan(Math.min(mFirst, other.mFirst), Math.max(mLast, other.mLast));
+        }
+    }
+
+    private static final class Segment {
+
+        final long mStart;
+        final long mEnd;
+        final FrozenQuadTree mTree;
+        final boolean mRolledUp;
+
+        Segment(long start, long end, FrozenQuadTree tree, boolean rolledUp) {
+            mStart = start;
+            mEnd = end;
+            mTree = tree;
+            mRolledUp = rolledUp;
+        }
+    }
+}
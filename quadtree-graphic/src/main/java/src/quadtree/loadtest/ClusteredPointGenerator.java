@@ -0,0 +1,102 @@
+package src.quadtree.loadtest;
+
+import src.quadtree.core.QuadTreeConstants;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Points grouped around cities, the way users and pictures are spread in the real world.
+ *
+ * The cities are picked from the seed, so the same seed always gives the same cities.
+ * City sizes follow Zipf's law, the n-th biggest city receives 1/n of the points of the
+ * biggest one, and the points of a city follow a gaussian around its center.
+ */
+
+public class ClusteredPointGenerator implements PointGenerator {
+
+    /**
+     * Cities are kept away from the poles, where almost nobody lives
+     */
+    private static final double MAX_CITY_LATITUDE = 70;
+
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+    private final double[] mSpreadsInDegrees;
+
+    /**
+     * Cumulative weights of the cities, from 0 to 1
+     */
+    private final double[] mCumulativeWeights;
+
+    /**
+     * @param seed picks the cities
+     * @param cityCount how many cities
+     * @param maxSpreadInKm standard deviation of the biggest city, smaller cities are tighter
+     */
+    public ClusteredPointGenerator(long seed, int cityCount, double maxSpreadInKm) {
+        if (cityCount <= 0)
+            throw new IllegalArgumentException("At least one city is needed");
+
+        Random random = new Random(seed);
+        mLatitudes = new double[cityCount];
+        mLongitudes = new double[cityCount];
+        mSpreadsInDegrees = new double[cityCount];
+        mCumulativeWeights = new double[cityCount];
+
+        double totalWeight = 0;
+        for (int i = 0; i < cityCount; i++) {
+            mLatitudes[i] = (random.nextDouble() * 2 - 1) * MAX_CITY_LATITUDE;
+            mLongitudes[i] = random.nextDouble() * 360 - 180;
+            mSpreadsInDegrees[i] = QuadTreeConstants.kmToDegree(maxSpreadInKm / Math.sqrt(i + 1));
+            totalWeight += 1.0 / (i + 1);
+            mCumulativeWeights[i] = totalWeight;
+        }
+
+        for (int i = 0; i < cityCount; i++)
+            mCumulativeWeights[i] /= totalWeight;
+    }
+
+    @Override
+    public void next(Random random, double[] point) {
+        int city = Arrays.binarySearch(mCumulativeWeights, random.nextDouble());
+        if (city < 0)
+            city = Math.min(-city - 1, mCumulativeWeights.length - 1);
+
+        point[0] = clampLatitude(mLatitudes[city] + random.nextGaussian() * mSpreadsInDegrees[city]);
+        point[1] = wrapLongitude(mLongitudes[city] + random.nextGaussian() * mSpreadsInDegrees[city]);
+    }
+
+    static double clampLatitude(double latitude) {
+        return Math.max(-90, Math.min(Math.nextDown(90.0), latitude));
+    }
+
+    static double wrapLongitude(double longitude) {
+        if (longitude < -180)
+            return longitude + 360;
+
+        if (longitude >= 180)
+            return longitude - 360;
+
+        return longitude;
+    }
+}
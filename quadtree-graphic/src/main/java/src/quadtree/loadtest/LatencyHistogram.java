@@ -0,0 +1,109 @@
+package src.quadtree.loadtest;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Histogram of latencies in nanoseconds with a fixed memory cost.
+ *
+ * Values below 64 have their own bucket, bigger values share buckets that grow with
+ * the value, each power of two is split in 32 buckets, so a percentile is never off by
+ * more than about 3%. Not thread safe, each thread records into its own histogram and
+ * the histograms are merged at the end.
+ */
+
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int EXACT_BUCKETS = SUB_BUCKETS * 2;
+    private static final int BUCKET_COUNT = EXACT_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mTotalCount;
+    private long mTotalValue;
+    private long mMaxValue;
+
+    void record(long valueInNanos) {
+        long value = Math.max(0, valueInNanos);
+        mCounts[indexOf(value)]++;
+        mTotalCount++;
+        mTotalValue += value;
+        mMaxValue = Math.max(mMaxValue, value);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            mCounts[i] += other.mCounts[i];
+
+        mTotalCount += other.mTotalCount;
+        mTotalValue += other.mTotalValue;
+        mMaxValue = Math.max(mMaxValue, other.mMaxValue);
+    }
+
+    long getCount() {
+        return mTotalCount;
+    }
+
+    long getMax() {
+        return mMaxValue;
+    }
+
+    double getMean() {
+        return mTotalCount == 0 ? 0 : (double) mTotalValue / mTotalCount;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the highest value of the bucket holding the percentile, never above the max recorded
+     */
+    long getPercentile(double percentile) {
+        if (mTotalCount == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+        long count = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts[i];
+            if (count >= rank)
+                return Math.min(highestValueOf(i), mMaxValue);
+        }
+
+        return mMaxValue;
+    }
+
+    private static int indexOf(long value) {
+        if (value < EXACT_BUCKETS)
+            return (int) value;
+
+        // The value is shifted until only its SUB_BUCKET_BITS + 1 highest bits are left
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return EXACT_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < EXACT_BUCKETS)
+            return index;
+
+        int shift = (index - EXACT_BUCKETS) / SUB_BUCKETS + 1;
+        long highBits = (index - EXACT_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((highBits + 1) << shift) - 1;
+    }
+}
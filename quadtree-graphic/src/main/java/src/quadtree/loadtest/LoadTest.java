@@ -0,0 +1,474 @@
+package src.quadtree.loadtest;
+
+import src.quadtree.core.NeighbourIndex;
+import src.quadtree.core.QuadTree;
+import src.quadtree.core.ShardedQuadTree;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Headless load test for a {@link NeighbourIndex}.
+ *
+ * The index is loaded with points from a seeded {@link PointGenerator}, then several threads
+ * run a mix of searches, inserts, moves and removes at a target rate. Runs with the same
+ * options and seed do the same operations, so they can be compared between versions.
+ *
+ * The load is open loop: every operation has an intended start time, set by the rate. When
+ * the index stalls the operations are not skipped, they start late and the delay counts in
+ * their latency, so a stall shows in the percentiles instead of being hidden by the threads
+ * slowing down (coordinated omission). The service time, measured from the actual start,
+ * is reported as well. With a rate of 0 each thread runs as fast as it can.
+ *
+ * Indexes that are not thread safe are guarded by a read write lock, the same way
+ * {@link src.quadtree.server.QuadTreeServer} guards them.
+ *
+ * Usage: LoadTest [--option value]..., see {@link #printUsage(PrintStream)}
+ */
+
+public class LoadTest {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private enum Operation {
+        SEARCH, INSERT, MOVE, REMOVE
+    }
+
+    private final NeighbourIndex mIndex;
+
+    /**
+     * Searches take the read lock and writes the write lock, null if the index is thread safe
+     */
+    private final ReadWriteLock mLock;
+    private final PointGenerator mGenerator;
+    private final long mSeed;
+    private final int mThreads;
+    private final double mRate;
+    private final double mRangeInKm;
+    private final long mWarmupNanos;
+    private final long mDurationNanos;
+
+    /**
+     * Cumulative share of each operation, from 0 to 1, in the order of {@link Operation}
+     */
+    private final double[] mCumulativeMix;
+
+    /**
+     * Next id for inserts, ids below it may exist in the index
+     */
+    private final AtomicLong mNextId = new AtomicLong();
+
+    private final LatencyHistogram[] mLatencies = new LatencyHistogram[Operation.values().length];
+    private final LatencyHistogram[] mServiceTimes = new LatencyHistogram[Operation.values().length];
+    private long mNeighboursFound;
+    private long mNotStarted;
+    private long mMeasuredNanos;
+
+    public LoadTest(NeighbourIndex index, ReadWriteLock lock, PointGenerator generator, long seed, int threads,
+                    double rate, double[] mix, double rangeInKm, double warmupSeconds, double durationSeconds) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("At least one thread is needed");
+
+        if (mix.length != Operation.values().length)
+            throw new IllegalArgumentException("The mix needs a share for each operation");
+
+        mIndex = index;
+        mLock = lock;
+        mGenerator = generator;
+        mSeed = seed;
+        mThreads = threads;
+        mRate = rate;
+        mRangeInKm = rangeInKm;
+        mWarmupNanos = (long) (warmupSeconds * 1e9);
+        mDurationNanos = (long) (durationSeconds * 1e9);
+
+        double total = 0;
+        for (double share : mix)
+            total += share;
+
+        if (total <= 0)
+            throw new IllegalArgumentException("The mix has no operations");
+
+        mCumulativeMix = new double[mix.length];
+        double cumulative = 0;
+        for (int i = 0; i < mix.length; i++) {
+            cumulative += mix[i] / total;
+            mCumulativeMix[i] = cumulative;
+        }
+
+        for (int i = 0; i < mLatencies.length; i++) {
+            mLatencies[i] = new LatencyHistogram();
+            mServiceTimes[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Adds the initial points, with the ids from 0 to count - 1
+     */
+    public void load(int count) {
+        Random random = new Random(mSeed);
+        double[] point = new double[2];
+
+        for (int i = 0; i < count; i++) {
+            mGenerator.next(random, point);
+            mIndex.addNeighbour(i, point[0], point[1]);
+        }
+
+        mNextId.set(count);
+    }
+
+    /**
+     * Runs the warmup and the measured period, blocking until both are over
+     */
+    public void run() throws InterruptedException {
+        long start = System.nanoTime();
+        long measureStart = start + mWarmupNanos;
+        long end = measureStart + mDurationNanos;
+
+        Worker[] workers = new Worker[mThreads];
+        Thread[] threads = new Thread[mThreads];
+        CountDownLatch done = new CountDownLatch(mThreads);
+
+        for (int i = 0; i < mThreads; i++) {
+            workers[i] = new Worker(i, start, measureStart, end, done);
+            threads[i] = new Thread(workers[i], "load-test-" + i);
+            threads[i].start();
+        }
+
+        done.await();
+        mMeasuredNanos = Math.max(1, System.nanoTime() - measureStart);
+
+        for (Worker worker : workers) {
+            for (int i = 0; i < mLatencies.length; i++) {
+                mLatencies[i].add(worker.mLatencies[i]);
+                mServiceTimes[i].add(worker.mServiceTimes[i]);
+            }
+            mNeighboursFound += worker.mNeighboursFound;
+            mNotStarted += worker.mNotStarted;
+        }
+
+        if (mNotStarted > 0)
+            System.err.println("Target rate not reached, " + mNotStarted + " operations were not started");
+    }
+
+    public void printCsv(PrintStream out) {
+        out.println("operation,kind,count,throughput,mean_us,p50_us,p90_us,p99_us,p999_us,max_us");
+
+        for (Map.Entry<String, LatencyHistogram[]> row : rows().entrySet()) {
+            printCsvRow(out, row.getKey(), "latency", row.getValue()[0]);
+            printCsvRow(out, row.getKey(), "service", row.getValue()[1]);
+        }
+    }
+
+    public void printJson(PrintStream out) {
+        out.println("{");
+        out.println(String.format(Locale.ROOT, "  \"threads\": %d, \"targetRate\": %.1f, \"seconds\": %.3f, \"neighboursFound\": %d, \"notStarted\": %d,",
+                mThreads, mRate, mMeasuredNanos / 1e9, mNeighboursFound, mNotStarted));
+        out.println("  \"operations\": {");
+
+        Map<String, LatencyHistogram[]> rows = rows();
+        int remaining = rows.size();
+        for (Map.Entry<String, LatencyHistogram[]> row : rows.entrySet()) {
+            out.println("    \"" + row.getKey() + "\": {");
+            out.println("      \"latency\": " + toJson(row.getValue()[0]) + ",");
+            out.println("      \"service\": " + toJson(row.getValue()[1]));
+            out.println(--remaining > 0 ? "    }," : "    }");
+        }
+
+        out.println("  }");
+        out.println("}");
+    }
+
+    /**
+     * @return the histograms of each operation that ran, plus all of them together
+     */
+    private Map<String, LatencyHistogram[]> rows() {
+        Map<String, LatencyHistogram[]> rows = new LinkedHashMap<>();
+        LatencyHistogram allLatencies = new LatencyHistogram();
+        LatencyHistogram allServiceTimes = new LatencyHistogram();
+
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram latencies = mLatencies[operation.ordinal()];
+            if (latencies.getCount() == 0)
+                continue;
+
+            rows.put(operation.name().toLowerCase(Locale.ROOT), new LatencyHistogram[]{latencies, mServiceTimes[operation.ordinal()]});
+            allLatencies.add(latencies);
+            allServiceTimes.add(mServiceTimes[operation.ordinal()]);
+        }
+
+        rows.put("all", new LatencyHistogram[]{allLatencies, allServiceTimes});
+        return rows;
+    }
+
+    private void printCsvRow(PrintStream out, String operation, String kind, LatencyHistogram histogram) {
+        StringBuilder row = new StringBuilder()
+                .append(operation).append(',')
+                .append(kind).append(',')
+                .append(histogram.getCount()).append(',')
+                .append(String.format(Locale.ROOT, "%.1f", histogram.getCount() * 1e9 / mMeasuredNanos)).append(',')
+                .append(micros(histogram.getMean()));
+
+        for (double percentile : PERCENTILES)
+            row.append(',').append(micros(histogram.getPercentile(percentile)));
+
+        out.println(row.append(',').append(micros(histogram.getMax())));
+    }
+
+    private String toJson(LatencyHistogram histogram) {
+        StringBuilder json = new StringBuilder("{")
+                .append("\"count\": ").append(histogram.getCount())
+                .append(", \"throughput\": ").append(String.format(Locale.ROOT, "%.1f", histogram.getCount() * 1e9 / mMeasuredNanos))
+                .append(", \"meanUs\": ").append(micros(histogram.getMean()));
+
+        for (double percentile : PERCENTILES) {
+            json.append(", \"p").append(String.valueOf(percentile).replace(".0", "").replace(".", ""))
+                    .append("Us\": ").append(micros(histogram.getPercentile(percentile)));
+        }
+
+        return json.append(", \"maxUs\": ").append(micros(histogram.getMax())).append('}').toString();
+    }
+
+    private static String micros(double nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000);
+    }
+
+    private Operation pickOperation(Random random) {
+        double value = random.nextDouble();
+        for (int i = 0; i < mCumulativeMix.length; i++) {
+            if (value < mCumulativeMix[i])
+                return Operation.values()[i];
+        }
+
+        return Operation.values()[mCumulativeMix.length - 1];
+    }
+
+    private class Worker implements Runnable {
+
+        private final Random mRandom;
+        private final long mFirstStart;
+        private final long mMeasureStart;
+        private final long mEnd;
+        private final CountDownLatch mDone;
+        private final double[] mPoint = new double[2];
+        private final LatencyHistogram[] mLatencies = new LatencyHistogram[Operation.values().length];
+        private final LatencyHistogram[] mServiceTimes = new LatencyHistogram[Operation.values().length];
+        private long mNeighboursFound;
+
+        /**
+         * Operations that were due before the end but never started, the index could not keep the rate
+         */
+        private long mNotStarted;
+
+        Worker(int index, long start, long measureStart, long end, CountDownLatch done) {
+            // Each thread has its own sequence, derived from the seed
+            mRandom = new Random(mSeed * 31 + index + 1);
+            mMeasureStart = measureStart;
+            mEnd = end;
+            mDone = done;
+
+            // The threads are spread over the interval, so they do not start in bursts
+            mFirstStart = mRate > 0 ? start + (long) (index * 1e9 / mRate) : start;
+
+            for (int i = 0; i < mLatencies.length; i++) {
+                mLatencies[i] = new LatencyHistogram();
+                mServiceTimes[i] = new LatencyHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                long interval = mRate > 0 ? (long) (mThreads * 1e9 / mRate) : 0;
+                long intendedStart = mFirstStart;
+
+                while (intendedStart < mEnd) {
+                    long now = System.nanoTime();
+                    if (interval == 0) {
+                        intendedStart = now;
+                    } else if (now < intendedStart) {
+                        LockSupport.parkNanos(intendedStart - now);
+                        continue;
+                    }
+
+                    if (now >= mEnd)
+                        break;
+
+                    Operation operation = pickOperation(mRandom);
+                    long actualStart = System.nanoTime();
+                    execute(operation);
+                    long finish = System.nanoTime();
+
+                    // Operations delayed by the warmup still count, they are late because of it
+                    if (actualStart >= mMeasureStart) {
+                        mLatencies[operation.ordinal()].record(finish - intendedStart);
+                        mServiceTimes[operation.ordinal()].record(finish - actualStart);
+                    }
+
+                    intendedStart += interval;
+                }
+
+                if (interval > 0 && intendedStart < mEnd)
+                    mNotStarted = (mEnd - intendedStart + interval - 1) / interval;
+            } finally {
+                mDone.countDown();
+            }
+        }
+
+        private void execute(Operation operation) {
+            mGenerator.next(mRandom, mPoint);
+
+            if (mLock == null) {
+                executeUnlocked(operation);
+                return;
+            }
+
+            Lock lock = operation == Operation.SEARCH ? mLock.readLock() : mLock.writeLock();
+            lock.lock();
+            try {
+                executeUnlocked(operation);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void executeUnlocked(Operation operation) {
+            switch (operation) {
+                case SEARCH:
+                    mNeighboursFound += mIndex.findNeighbours(mPoint[0], mPoint[1], mRangeInKm).size();
+                    break;
+                case INSERT:
+                    mIndex.addNeighbour(mNextId.getAndIncrement(), mPoint[0], mPoint[1]);
+                    break;
+                case MOVE:
+                    mIndex.moveNeighbour(randomExistingId(), mPoint[0], mPoint[1]);
+                    break;
+                case REMOVE:
+                    mIndex.removeNeighbour(randomExistingId());
+                    break;
+            }
+        }
+
+        private long randomExistingId() {
+            long bound = Math.max(1, mNextId.get());
+            return (long) (mRandom.nextDouble() * bound);
+        }
+    }
+
+    public static void main(String args[]) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                printUsage(System.err);
+                System.exit(1);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        if (args.length % 2 != 0) {
+            printUsage(System.err);
+            System.exit(1);
+        }
+
+        long seed = Long.parseLong(option(options, "seed", "42"));
+        String[] mix = option(options, "mix", "90,5,4,1").split(",");
+        double[] shares = new double[mix.length];
+        for (int i = 0; i < mix.length; i++)
+            shares[i] = Double.parseDouble(mix[i]);
+
+        String indexName = option(options, "index", "plain");
+        LoadTest loadTest = new LoadTest(createIndex(indexName),
+                "sharded".equals(indexName) ? null : new ReentrantReadWriteLock(),
+                createGenerator(option(options, "generator", "cities"), seed),
+                seed,
+                Integer.parseInt(option(options, "threads", String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Double.parseDouble(option(options, "rate", "10000")),
+                shares,
+                Double.parseDouble(option(options, "range", "50")),
+                Double.parseDouble(option(options, "warmup", "5")),
+                Double.parseDouble(option(options, "duration", "30")));
+
+        loadTest.load(Integer.parseInt(option(options, "points", "1000000")));
+        loadTest.run();
+
+        if ("json".equals(option(options, "format", "csv")))
+            loadTest.printJson(System.out);
+        else
+            loadTest.printCsv(System.out);
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private static NeighbourIndex createIndex(String name) {
+        switch (name) {
+            case "plain":
+                return new QuadTree();
+            case "compressed":
+                return QuadTree.compressed(32);
+            case "sharded":
+                return new ShardedQuadTree(2);
+            default:
+                throw new IllegalArgumentException("Unknown index " + name);
+        }
+    }
+
+    private static PointGenerator createGenerator(String name, long seed) {
+        switch (name) {
+            case "uniform":
+                return new UniformPointGenerator();
+            case "cities":
+                return new ClusteredPointGenerator(seed, 1000, 30);
+            case "roads":
+                return new RoadPointGenerator(seed, 5000, 300, 0.05);
+            default:
+                throw new IllegalArgumentException("Unknown generator " + name);
+        }
+    }
+
+    private static void printUsage(PrintStream out) {
+        out.println("Usage: LoadTest [--option value]...");
+        out.println("  --index plain|compressed|sharded   index under test, default plain");
+        out.println("  --generator uniform|cities|roads   point distribution, default cities");
+        out.println("  --points N                         points loaded before the test, default 1000000");
+        out.println("  --threads N                        threads running operations, default one per core");
+        out.println("  --rate N                           operations per second of all threads, 0 runs as fast as possible, default 10000");
+        out.println("  --mix S,I,M,R                      shares of search, insert, move and remove, default 90,5,4,1");
+        out.println("  --range KM                         search range, default 50");
+        out.println("  --warmup S                         seconds not measured, default 5");
+        out.println("  --duration S                       seconds measured, default 30");
+        out.println("  --seed N                           seed of the points and of the operations, default 42");
+        out.println("  --format csv|json                  report format, default csv");
+    }
+}
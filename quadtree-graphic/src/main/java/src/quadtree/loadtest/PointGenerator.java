@@ -0,0 +1,34 @@
+package src.quadtree.loadtest;
+
+import java.util.Random;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public interface PointGenerator {
+
+    /**
+     * Generates the next point, the generator itself is immutable so it can be shared
+     * between threads, each thread brings its own seeded random
+     * @param random source of randomness of the calling thread
+     * @param point filled with the latitude at 0 and the longitude at 1
+     */
+    public void next(Random random, double[] point);
+
+}
@@ -0,0 +1,81 @@
+package src.quadtree.loadtest;
+
+import src.quadtree.core.QuadTreeConstants;
+
+import java.util.Random;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Points along straight roads, like vehicles reporting their positions.
+ *
+ * The roads are picked from the seed, each one is a segment with a random direction.
+ * A point is placed at a random position of a random road and moved a little to the
+ * side, so the points form long and thin lines that cross many nodes of the tree.
+ */
+
+public class RoadPointGenerator implements PointGenerator {
+
+    private final double[] mStartLatitudes;
+    private final double[] mStartLongitudes;
+    private final double[] mLatitudeLengths;
+    private final double[] mLongitudeLengths;
+    private final double mWidthInDegrees;
+
+    /**
+     * @param seed picks the roads
+     * @param roadCount how many roads
+     * @param maxLengthInKm length of the longest road
+     * @param widthInKm standard deviation of the points from the center of the road
+     */
+    public RoadPointGenerator(long seed, int roadCount, double maxLengthInKm, double widthInKm) {
+        if (roadCount <= 0)
+            throw new IllegalArgumentException("At least one road is needed");
+
+        Random random = new Random(seed);
+        mStartLatitudes = new double[roadCount];
+        mStartLongitudes = new double[roadCount];
+        mLatitudeLengths = new double[roadCount];
+        mLongitudeLengths = new double[roadCount];
+        mWidthInDegrees = QuadTreeConstants.kmToDegree(widthInKm);
+
+        for (int i = 0; i < roadCount; i++) {
+            double length = QuadTreeConstants.kmToDegree(maxLengthInKm * (0.1 + random.nextDouble() * 0.9));
+            double angle = random.nextDouble() * Math.PI * 2;
+
+            mStartLatitudes[i] = random.nextDouble() * 140 - 70;
+            mStartLongitudes[i] = random.nextDouble() * 360 - 180;
+            mLatitudeLengths[i] = Math.sin(angle) * length;
+            mLongitudeLengths[i] = Math.cos(angle) * length;
+        }
+    }
+
+    @Override
+    public void next(Random random, double[] point) {
+        int road = random.nextInt(mStartLatitudes.length);
+        double position = random.nextDouble();
+
+        double latitude = mStartLatitudes[road] + mLatitudeLengths[road] * position;
+        double longitude = mStartLongitudes[road] + mLongitudeLengths[road] * position;
+
+        point[0] = ClusteredPointGenerator.clampLatitude(latitude + random.nextGaussian() * mWidthInDegrees);
+        point[1] = ClusteredPointGenerator.wrapLongitude(longitude + random.nextGaussian() * mWidthInDegrees);
+    }
+}
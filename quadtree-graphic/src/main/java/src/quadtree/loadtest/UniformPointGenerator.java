@@ -0,0 +1,36 @@
+package src.quadtree.loadtest;
+
+import java.util.Random;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Points spread evenly over the whole world, the same distribution used by the
+ * random loader of the graphic example.
+ */
+
+public class UniformPointGenerator implements PointGenerator {
+
+    @Override
+    public void next(Random random, double[] point) {
+        point[0] = random.nextDouble() * 180 - 90;
+        point[1] = random.nextDouble() * 360 - 180;
+    }
+}
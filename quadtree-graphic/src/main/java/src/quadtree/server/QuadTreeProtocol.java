@@ -0,0 +1,104 @@
+package src.quadtree.server;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Binary protocol of the {@link QuadTreeServer}, every number is big-endian.
+ *
+ * Request:  [int length][byte operation][long request id][body]
+ * Response: [int length][byte status][long request id][body]
+ *
+ * The length counts every byte after itself. Request bodies:
+ *
+ * INSERT  [long id][double latitude][double longitude]
+ * REMOVE  [long id]
+ * MOVE    [long id][double latitude][double longitude]
+ * RANGE   [double min latitude][double min longitude][double max latitude][double max longitude]
+ * RADIUS  [double latitude][double longitude][double range in km]
+ * NEAREST [double latitude][double longitude][int count]
+ * FOLLOW  [long leader id][long last applied sequence]
+ *
+ * Writes are answered with an empty body, queries with [int count][long id]...
+ * A NEAREST count above {@link #MAX_NEAREST_COUNT} is answered with STATUS_BAD_REQUEST, a query
+ * that fails on the server with STATUS_ERROR and an empty body. A query that arrives while too
+ * many others are waiting for a thread is answered with STATUS_BUSY and can be sent again later.
+ *
+ * The server stops reading from a client while too many response bytes are waiting to be sent to it,
+ * so a client that does not read its responses only slows down itself.
+ *
+ * FOLLOW turns the connection into a replication stream, see {@link QuadTreeServer#enableReplication(int)}.
+ * The leader sends frames with the shape of requests, with the sequence of each write in place of
+ * the request id and nothing is answered. INSERT, MOVE and REMOVE carry the writes in order, when
+ * the writes after the last applied sequence are no longer in the log the follower gets a snapshot:
+ *
+ * SNAPSHOT     [int count]([long id][double latitude][double longitude])...
+ * SNAPSHOT_END [long leader id]
+ *
+ * Followers reject writes with STATUS_READ_ONLY.
+ */
+
+public final class QuadTreeProtocol {
+
+    public static final byte INSERT = 1;
+    public static final byte REMOVE = 2;
+    public static final byte MOVE = 3;
+    public static final byte RANGE = 4;
+    public static final byte RADIUS = 5;
+    public static final byte NEAREST = 6;
+    public static final byte FOLLOW = 7;
+    public static final byte SNAPSHOT = 8;
+    public static final byte SNAPSHOT_END = 9;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_NOT_FOUND = 1;
+    public static final byte STATUS_BAD_REQUEST = 2;
+    public static final byte STATUS_READ_ONLY = 3;
+    public static final byte STATUS_ERROR = 4;
+    public static final byte STATUS_BUSY = 5;
+
+    /**
+     * Operation and request id, the part of a frame that comes right after the length
+     */
+    public static final int FRAME_HEADER_SIZE = 1 + 8;
+
+    /**
+     * The biggest request body is RANGE with four doubles
+     */
+    public static final int MAX_REQUEST_SIZE = FRAME_HEADER_SIZE + 4 * 8;
+
+    /**
+     * Biggest count accepted by NEAREST, so a single request can not make the server sort the whole index
+     */
+    public static final int MAX_NEAREST_COUNT = 10000;
+
+    /**
+     * Neighbours sent in each SNAPSHOT frame
+     */
+    public static final int SNAPSHOT_BATCH_SIZE = 512;
+
+    /**
+     * The biggest replication frame is a full SNAPSHOT
+     */
+    public static final int MAX_REPLICATION_FRAME_SIZE = FRAME_HEADER_SIZE + 4 + SNAPSHOT_BATCH_SIZE * 24;
+
+    private QuadTreeProtocol() {
+    }
+
+}
@@ -0,0 +1,1088 @@
+package src.quadtree.server;
+
+import src.quadtree.core.FrozenQuadTree;
+import src.quadtree.core.Neighbour;
+import src.quadtree.core.NeighbourIndex;
+import src.quadtree.core.NeighbourVisitor;
+import src.quadtree.core.NeighbourWrite;
+import src.quadtree.core.QuadTree;
+import src.quadtree.core.ShardedQuadTree;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Headless server that exposes a {@link NeighbourIndex} over TCP, see {@link QuadTreeProtocol}.
+ *
+ * A single event loop thread accepts connections and reads requests for every client,
+ * there is no thread per connection. Writes received in one turn of the loop are applied
+ * together under one lock, before the queries of that turn are answered. Queries run in a
+ * small pool of threads sharing a read lock, so they never see a write half applied.
+ *
+ * A server can be a replication leader, see {@link #enableReplication(int)}, or a read only
+ * follower of a leader, see {@link #followLeader(InetSocketAddress, Supplier)}. The leader numbers
+ * the writes in the order they are applied and streams them to its followers, which apply them
+ * in the same order, in the same event loop as everything else.
+ */
+
+public class QuadTreeServer implements Runnable {
+
+    private static final int DEFAULT_PORT = 7070;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    /**
+     * Response bytes a client can have waiting to be sent, or queries it can have running, before the
+     * server stops reading its requests. It reads again once the responses are sent.
+     */
+    private static final long MAX_CLIENT_BACKLOG_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_CLIENT_QUERIES = 64;
+
+    /**
+     * Queries waiting for a query thread, the ones beyond are answered with STATUS_BUSY
+     */
+    private static final int MAX_WAITING_QUERIES = 4096;
+
+    /**
+     * Replication frames a follower can have waiting to be sent before it is dropped,
+     * a dropped follower reconnects and catches up from the log or a snapshot
+     */
+    private static final long MAX_FOLLOWER_BACKLOG_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * Snapshot frames sent to a follower are limited to this many bytes waiting in its socket
+     * plus the frames encoded ahead, the encoder waits for the follower when both are full
+     */
+    private static final long MAX_SNAPSHOT_BACKLOG_BYTES = 1024 * 1024;
+    private static final int SNAPSHOT_FRAMES_AHEAD = 16;
+
+    /**
+     * Replaced by followers when they load a snapshot, always under the write lock
+     */
+    private NeighbourIndex mIndex;
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final Selector mSelector;
+    private final ServerSocketChannel mServerChannel;
+    private final ExecutorService mQueryExecutor;
+
+    /**
+     * Query responses ready to be sent, filled by the query threads and drained by the event loop
+     */
+    private final Queue<Response> mQueryResponses = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Writes received in the current turn of the event loop
+     */
+    private final List<Request> mPendingWrites = new ArrayList<>();
+
+    /**
+     * Queries received in the current turn of the event loop, they start after the writes are applied
+     */
+    private final List<QueryTask> mPendingQueries = new ArrayList<>();
+
+    private volatile boolean mIsRunning;
+
+    /**
+     * Sequence of the last write applied, with replication enabled or following a leader
+     */
+    private volatile long mSequence;
+
+    /*
+        Leader
+     */
+    private ReplicationLog mReplicationLog;
+    private long mLeaderId;
+    private final List<Connection> mFollowers = new ArrayList<>();
+
+    /**
+     * Followers receiving a snapshot, they join the others once it is sent
+     */
+    private final List<SnapshotStream> mSnapshotStreams = new ArrayList<>();
+    private ExecutorService mSnapshotExecutor;
+
+    /*
+        Follower
+     */
+    private InetSocketAddress mLeaderAddress;
+    private Supplier<NeighbourIndex> mIndexFactory;
+    private SelectionKey mLeaderKey;
+    private long mNextConnectTime;
+    private long mFollowedLeaderId;
+    private long mReceivedSequence;
+    private NeighbourIndex mSnapshotIndex;
+
+    public QuadTreeServer(NeighbourIndex index, int port, int queryThreads) throws IOException {
+        mIndex = index;
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.configureBlocking(false);
+        mServerChannel.bind(new InetSocketAddress(port));
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        mQueryExecutor = new ThreadPoolExecutor(queryThreads, queryThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_WAITING_QUERIES), runnable -> {
+            Thread thread = new Thread(runnable, "quadtree-server-query");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the port the server is listening to, useful when created with port 0
+     */
+    public int getPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Makes this server a leader, its writes are numbered and streamed to the servers following it.
+     * Must be called before {@link #run()}.
+     * @param logCapacity how many of the latest writes are kept for followers that reconnect
+     */
+    public void enableReplication(int logCapacity) {
+        if (mLeaderAddress != null)
+            throw new IllegalStateException("A follower can not be a leader");
+
+        mReplicationLog = new ReplicationLog(logCapacity);
+        mSnapshotExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "quadtree-server-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        do {
+            mLeaderId = ThreadLocalRandom.current().nextLong();
+        } while (mLeaderId == 0);
+    }
+
+    /**
+     * Makes this server a read only copy of a leader, writes from clients are rejected.
+     * Must be called before {@link #run()}.
+     * @param indexFactory creates an empty index when a snapshot is loaded
+     */
+    public void followLeader(InetSocketAddress leaderAddress, Supplier<NeighbourIndex> indexFactory) {
+        if (mReplicationLog != null)
+            throw new IllegalStateException("A leader can not be a follower");
+
+        mLeaderAddress = leaderAddress;
+        mIndexFactory = indexFactory;
+    }
+
+    /**
+     * @return the sequence of the last write applied, on a leader or on a follower
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public void stop() {
+        mIsRunning = false;
+        mSelector.wakeup();
+    }
+
+    /*
+        Runnable
+     */
+
+    @Override
+    public void run() {
+        mIsRunning = true;
+
+        try {
+            while (mIsRunning) {
+                boolean isDisconnected = mLeaderAddress != null && mLeaderKey == null;
+                if (isDisconnected && System.currentTimeMillis() >= mNextConnectTime)
+                    connectToLeader();
+
+                mSelector.select(isDisconnected ? RECONNECT_DELAY_MILLIS : 0);
+                sendQueryResponses();
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    try {
+                        if (!key.isValid())
+                            continue;
+
+                        if (key.isAcceptable())
+                            accept();
+
+                        if (key.isConnectable())
+                            finishConnect(key);
+
+                        if (key.isValid() && key.isReadable())
+                            read(key);
+
+                        if (key.isValid() && key.isWritable())
+                            write(key);
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+
+                applyWrites();
+                startQueries();
+                streamSnapshots();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServerChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+            key.attach(new Connection(key));
+        }
+    }
+
+    private void connectToLeader() {
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            boolean isConnected = channel.connect(mLeaderAddress);
+
+            mLeaderKey = channel.register(mSelector, isConnected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+            Connection connection = new Connection(mLeaderKey);
+            connection.mIsLeader = true;
+            mLeaderKey.attach(connection);
+
+            if (isConnected)
+                sendFollow(connection);
+        } catch (IOException e) {
+            mNextConnectTime = System.currentTimeMillis() + RECONNECT_DELAY_MILLIS;
+        }
+    }
+
+    private void finishConnect(SelectionKey key) throws IOException {
+        if (!((SocketChannel) key.channel()).finishConnect())
+            return;
+
+        key.interestOps(SelectionKey.OP_READ);
+        sendFollow((Connection) key.attachment());
+    }
+
+    /**
+     * Asks the leader for the writes after the last one applied, on a new connection
+     */
+    private void sendFollow(Connection connection) {
+        mReceivedSequence = mSequence;
+
+        ByteBuffer request = ByteBuffer.allocate(4 + QuadTreeProtocol.FRAME_HEADER_SIZE + 16);
+        request.putInt(request.capacity() - 4);
+        request.put(QuadTreeProtocol.FOLLOW);
+        request.putLong(0);
+        request.putLong(mFollowedLeaderId);
+        request.putLong(mSequence);
+        request.flip();
+        send(connection, request);
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        if (channel.read(connection.mInput) < 0) {
+            close(key);
+            return;
+        }
+
+        handleInput(connection);
+    }
+
+    /**
+     * Handles every complete frame read so far, the frames of a paused client are left for later
+     */
+    private void handleInput(Connection connection) {
+        SelectionKey key = connection.mKey;
+        ByteBuffer input = connection.mInput;
+        input.flip();
+
+        int maxLength = connection.mIsLeader ? QuadTreeProtocol.MAX_REPLICATION_FRAME_SIZE : QuadTreeProtocol.MAX_REQUEST_SIZE;
+        while (input.remaining() >= 4 && !isPaused(connection)) {
+            int length = input.getInt(input.position());
+            if (length < QuadTreeProtocol.FRAME_HEADER_SIZE || length > maxLength) {
+                close(key);
+                return;
+            }
+
+            if (input.remaining() < 4 + length)
+                break;
+
+            input.getInt();
+            int frameEnd = input.position() + length;
+
+            if (connection.mIsLeader) {
+                if (!handleReplication(input, length)) {
+                    close(key);
+                    return;
+                }
+            } else {
+                handleRequest(connection, input, length);
+            }
+
+            input.position(frameEnd);
+        }
+
+        input.compact();
+    }
+
+    private void handleRequest(Connection connection, ByteBuffer input, int length) {
+        byte operation = input.get();
+        long requestId = input.getLong();
+        int bodySize = length - QuadTreeProtocol.FRAME_HEADER_SIZE;
+
+        if (mLeaderAddress != null && (operation == QuadTreeProtocol.INSERT || operation == QuadTreeProtocol.MOVE
+                || operation == QuadTreeProtocol.REMOVE)) {
+            send(connection, emptyResponse(QuadTreeProtocol.STATUS_READ_ONLY, requestId));
+            return;
+        }
+
+        switch (operation) {
+            case QuadTreeProtocol.INSERT:
+            case QuadTreeProtocol.MOVE:
+                if (bodySize < 24)
+                    break;
+                mPendingWrites.add(new Request(connection, operation, requestId, input.getLong(), input.getDouble(), input.getDouble()));
+                return;
+            case QuadTreeProtocol.REMOVE:
+                if (bodySize < 8)
+                    break;
+                mPendingWrites.add(new Request(connection, operation, requestId, input.getLong(), 0, 0));
+                return;
+            case QuadTreeProtocol.RANGE:
+                if (bodySize < 32)
+                    break;
+                final double minLatitude = input.getDouble();
+                final double minLongitude = input.getDouble();
+                final double maxLatitude = input.getDouble();
+                final double maxLongitude = input.getDouble();
+                query(connection, requestId, () -> mIndex.findNeighboursWithin(minLatitude, minLongitude, maxLatitude, maxLongitude));
+                return;
+            case QuadTreeProtocol.RADIUS:
+                if (bodySize < 24)
+                    break;
+                final double latitude = input.getDouble();
+                final double longitude = input.getDouble();
+                final double rangeInKm = input.getDouble();
+                query(connection, requestId, () -> mIndex.findNeighboursWithinRadius(latitude, longitude, rangeInKm));
+                return;
+            case QuadTreeProtocol.NEAREST:
+                if (bodySize < 20)
+                    break;
+                final double nearestLatitude = input.getDouble();
+                final double nearestLongitude = input.getDouble();
+                final int count = input.getInt();
+                if (count < 0 || count > QuadTreeProtocol.MAX_NEAREST_COUNT)
+                    break;
+                query(connection, requestId, () -> mIndex.findNearestNeighbours(nearestLatitude, nearestLongitude, count));
+                return;
+            case QuadTreeProtocol.FOLLOW:
+                if (bodySize < 16 || mReplicationLog == null || connection.mIsFollower)
+                    break;
+                follow(connection, input.getLong(), input.getLong());
+                return;
+        }
+
+        send(connection, emptyResponse(QuadTreeProtocol.STATUS_BAD_REQUEST, requestId));
+    }
+
+    /**
+     * Starts streaming the writes to a follower, from the log when it still has every write
+     * the follower is missing and from a snapshot otherwise.
+     * The writes received in this turn of the loop are not applied yet, they are streamed with the next ones.
+     */
+    private void follow(Connection connection, long leaderId, long sequence) {
+        connection.mIsFollower = true;
+
+        if (leaderId == mLeaderId && mReplicationLog.canReplayAfter(sequence)) {
+            replay(connection, sequence);
+            return;
+        }
+
+        // The index is copied by the snapshot thread, the event loop goes on with the other clients
+        SnapshotStream stream = new SnapshotStream(connection);
+        connection.mSnapshot = stream;
+        mSnapshotStreams.add(stream);
+        stream.mTask = mSnapshotExecutor.submit(stream);
+    }
+
+    /**
+     * Sends the writes after the sequence from the log, the next ones are streamed as they are applied
+     */
+    private void replay(Connection connection, long sequence) {
+        long lastSequence = mReplicationLog.getLastSequence();
+        if (sequence < lastSequence)
+            send(connection, mReplicationLog.encode(sequence, lastSequence));
+
+        mFollowers.add(connection);
+    }
+
+    /**
+     * Sends the snapshot frames encoded so far to each follower with room in its backlog.
+     * A finished snapshot is followed by the writes applied while it was sent, a follower whose
+     * writes already left the log is dropped and reconnects for a new snapshot.
+     */
+    private void streamSnapshots() {
+        Iterator<SnapshotStream> streams = mSnapshotStreams.iterator();
+        while (streams.hasNext()) {
+            SnapshotStream stream = streams.next();
+            Connection connection = stream.mConnection;
+
+            ByteBuffer frame;
+            while (connection.mQueuedBytes < MAX_SNAPSHOT_BACKLOG_BYTES && (frame = stream.mFrames.poll()) != null)
+                send(connection, frame);
+
+            // Every frame is queued before the stream is done
+            if (!stream.mIsDone || !stream.mFrames.isEmpty())
+                continue;
+
+            streams.remove();
+            connection.mSnapshot = null;
+
+            if (stream.mError != null) {
+                stream.mError.printStackTrace();
+                close(connection.mKey);
+                continue;
+            }
+
+            send(connection, snapshotEnd(stream.mSequence, mLeaderId));
+            if (mReplicationLog.canReplayAfter(stream.mSequence))
+                replay(connection, stream.mSequence);
+            else
+                close(connection.mKey);
+        }
+    }
+
+    /**
+     * Handles a frame sent by the leader, writes are applied with the others at the end of the turn
+     * @return false if the stream is broken and the follower has to reconnect
+     */
+    private boolean handleReplication(ByteBuffer input, int length) {
+        byte operation = input.get();
+        long sequence = input.getLong();
+        int bodySize = length - QuadTreeProtocol.FRAME_HEADER_SIZE;
+
+        switch (operation) {
+            case QuadTreeProtocol.INSERT:
+            case QuadTreeProtocol.MOVE:
+                if (bodySize < 24 || sequence != mReceivedSequence + 1)
+                    return false;
+                mPendingWrites.add(new Request(null, operation, sequence, input.getLong(), input.getDouble(), input.getDouble()));
+                mReceivedSequence = sequence;
+                return true;
+            case QuadTreeProtocol.REMOVE:
+                if (bodySize < 8 || sequence != mReceivedSequence + 1)
+                    return false;
+                mPendingWrites.add(new Request(null, operation, sequence, input.getLong(), 0, 0));
+                mReceivedSequence = sequence;
+                return true;
+            case QuadTreeProtocol.SNAPSHOT:
+                if (bodySize < 4)
+                    return false;
+                int count = input.getInt();
+                if (count < 0 || bodySize < 4 + count * 24)
+                    return false;
+
+                // Nobody reads the new index until the snapshot ends, it needs no lock
+                if (mSnapshotIndex == null)
+                    mSnapshotIndex = mIndexFactory.get();
+                for (int i = 0; i < count; i++)
+                    mSnapshotIndex.addNeighbour(input.getLong(), input.getDouble(), input.getDouble());
+                return true;
+            case QuadTreeProtocol.SNAPSHOT_END:
+                if (bodySize < 8)
+                    return false;
+                loadSnapshot(input.getLong(), sequence);
+                return true;
+        }
+
+        return false;
+    }
+
+    private void loadSnapshot(long leaderId, long sequence) {
+        NeighbourIndex index = mSnapshotIndex != null ? mSnapshotIndex : mIndexFactory.get();
+        mSnapshotIndex = null;
+
+        // Writes received before the snapshot belong to the old index
+        applyWrites();
+
+        mLock.writeLock().lock();
+        try {
+            mIndex = index;
+            mFollowedLeaderId = leaderId;
+            mReceivedSequence = sequence;
+            mSequence = sequence;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private void query(Connection connection, long requestId, Query query) {
+        connection.mRunningQueries++;
+        mPendingQueries.add(new QueryTask(connection, requestId, query));
+    }
+
+    /**
+     * Applies every write received in this turn of the loop with a single lock, see {@link NeighbourIndex#applyWrites(List)}.
+     * A {@link ShardedQuadTree} writes its shards in parallel, each one under its own lock.
+     */
+    private void applyWrites() {
+        if (mPendingWrites.isEmpty())
+            return;
+
+        List<NeighbourWrite> writes = new ArrayList<>(mPendingWrites.size());
+        for (Request request : mPendingWrites)
+            writes.add(new NeighbourWrite(writeType(request.mOperation), request.mId, request.mLatitude, request.mLongitude));
+
+        List<ByteBuffer> responses = new ArrayList<>(mPendingWrites.size());
+        long lastSequence = mSequence;
+
+        // Queries wait for the whole turn, so they never see a move half applied between two shards
+        mLock.writeLock().lock();
+        try {
+            boolean[] applied = mIndex.applyWrites(writes);
+
+            for (int i = 0; i < applied.length; i++) {
+                Request request = mPendingWrites.get(i);
+                byte status = applied[i] ? QuadTreeProtocol.STATUS_OK : QuadTreeProtocol.STATUS_NOT_FOUND;
+
+                // Writes from the leader carry their sequence and are not answered
+                if (request.mConnection == null) {
+                    lastSequence = request.mRequestId;
+                    responses.add(null);
+                    continue;
+                }
+
+                if (mReplicationLog != null && status == QuadTreeProtocol.STATUS_OK)
+                    lastSequence = mReplicationLog.append(request.mOperation, request.mId, request.mLatitude, request.mLongitude);
+
+                responses.add(emptyResponse(status, request.mRequestId));
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+
+        for (int i = 0; i < responses.size(); i++) {
+            if (responses.get(i) != null)
+                send(mPendingWrites.get(i).mConnection, responses.get(i));
+        }
+
+        mPendingWrites.clear();
+        publishWrites(mSequence, lastSequence);
+        mSequence = lastSequence;
+    }
+
+    /**
+     * Streams the writes applied in this turn to every follower, followers too far behind are dropped
+     */
+    private void publishWrites(long afterSequence, long lastSequence) {
+        if (mReplicationLog == null || lastSequence == afterSequence || mFollowers.isEmpty())
+            return;
+
+        // The turn applied more writes than the log holds, the followers catch up from a snapshot
+        if (!mReplicationLog.canReplayAfter(afterSequence)) {
+            for (Connection follower : new ArrayList<>(mFollowers))
+                close(follower.mKey);
+            return;
+        }
+
+        ByteBuffer writes = mReplicationLog.encode(afterSequence, lastSequence);
+        List<Connection> laggingFollowers = new ArrayList<>();
+
+        for (Connection follower : mFollowers) {
+            if (follower.mQueuedBytes > MAX_FOLLOWER_BACKLOG_BYTES)
+                laggingFollowers.add(follower);
+            else
+                send(follower, writes.duplicate());
+        }
+
+        for (Connection follower : laggingFollowers)
+            close(follower.mKey);
+    }
+
+    private void startQueries() {
+        for (QueryTask query : mPendingQueries) {
+            try {
+                mQueryExecutor.execute(query);
+            } catch (RejectedExecutionException e) {
+                query.mConnection.mRunningQueries--;
+                send(query.mConnection, emptyResponse(QuadTreeProtocol.STATUS_BUSY, query.mRequestId));
+            }
+        }
+
+        mPendingQueries.clear();
+    }
+
+    private void sendQueryResponses() {
+        Response response;
+        while ((response = mQueryResponses.poll()) != null) {
+            response.mConnection.mRunningQueries--;
+            send(response.mConnection, response.mBuffer);
+            resume(response.mConnection);
+        }
+    }
+
+    private void send(Connection connection, ByteBuffer buffer) {
+        if (!connection.mKey.isValid())
+            return;
+
+        connection.mOutput.add(buffer);
+        connection.mQueuedBytes += buffer.remaining();
+        connection.mKey.interestOps(interestOps(connection));
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        while (!connection.mOutput.isEmpty()) {
+            ByteBuffer buffer = connection.mOutput.peek();
+            connection.mQueuedBytes -= channel.write(buffer);
+
+            // The socket is full, wait for the next turn
+            if (buffer.hasRemaining())
+                return;
+
+            connection.mOutput.poll();
+        }
+
+        key.interestOps(interestOps(connection));
+        resume(connection);
+    }
+
+    /**
+     * Handles the frames a paused client sent before it was paused, once it can be read again
+     */
+    private void resume(Connection connection) {
+        if (connection.mKey.isValid() && connection.mInput.position() > 0 && !isPaused(connection)) {
+            handleInput(connection);
+            if (connection.mKey.isValid())
+                connection.mKey.interestOps(interestOps(connection));
+        }
+    }
+
+    /**
+     * A client is paused while too many responses are waiting for it or too many of its queries are running.
+     * Followers and the leader are never paused, so a closed connection is noticed.
+     */
+    private static boolean isPaused(Connection connection) {
+        return !connection.mIsFollower && !connection.mIsLeader && (connection.mQueuedBytes >= MAX_CLIENT_BACKLOG_BYTES
+                || connection.mRunningQueries >= MAX_CLIENT_QUERIES);
+    }
+
+    /**
+     * Writes while there is output, reads unless the client is paused
+     */
+    private static int interestOps(Connection connection) {
+        int interestOps = connection.mOutput.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+        if (!isPaused(connection))
+            interestOps |= SelectionKey.OP_READ;
+
+        return interestOps;
+    }
+
+    private void close(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        if (connection != null) {
+            mFollowers.remove(connection);
+
+            if (connection.mSnapshot != null) {
+                connection.mSnapshot.mTask.cancel(true);
+                mSnapshotStreams.remove(connection.mSnapshot);
+                connection.mSnapshot = null;
+            }
+        }
+
+        if (key == mLeaderKey) {
+            mLeaderKey = null;
+            mSnapshotIndex = null;
+            mNextConnectTime = System.currentTimeMillis() + RECONNECT_DELAY_MILLIS;
+        }
+
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void shutdown() {
+        mQueryExecutor.shutdown();
+        if (mSnapshotExecutor != null)
+            mSnapshotExecutor.shutdownNow();
+        for (SelectionKey key : mSelector.keys())
+            close(key);
+
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Copies the index so a snapshot can be encoded while the writes go on. A {@link QuadTree} or a
+     * {@link ShardedQuadTree} is frozen, any other index is copied to plain arrays.
+     */
+    private static Consumer<NeighbourVisitor> freeze(NeighbourIndex index) {
+        if (index instanceof QuadTree)
+            return ((QuadTree) index).freeze()::forEachNeighbour;
+
+        if (index instanceof ShardedQuadTree) {
+            final FrozenQuadTree[] shards = ((ShardedQuadTree) index).freeze();
+            return visitor -> {
+                for (FrozenQuadTree shard : shards)
+                    shard.forEachNeighbour(visitor);
+            };
+        }
+
+        NeighbourArrays copy = new NeighbourArrays();
+        index.forEachNeighbour(copy);
+        return copy::forEachNeighbour;
+    }
+
+    private static byte writeType(byte operation) {
+        switch (operation) {
+            case QuadTreeProtocol.INSERT:
+                return NeighbourWrite.ADD;
+            case QuadTreeProtocol.MOVE:
+                return NeighbourWrite.MOVE;
+            default:
+                return NeighbourWrite.REMOVE;
+        }
+    }
+
+    private static ByteBuffer snapshotEnd(long sequence, long leaderId) {
+        ByteBuffer end = ByteBuffer.allocate(4 + QuadTreeProtocol.FRAME_HEADER_SIZE + 8);
+        end.putInt(end.capacity() - 4);
+        end.put(QuadTreeProtocol.SNAPSHOT_END);
+        end.putLong(sequence);
+        end.putLong(leaderId);
+        end.flip();
+        return end;
+    }
+
+    private static ByteBuffer emptyResponse(byte status, long requestId) {
+        ByteBuffer response = ByteBuffer.allocate(4 + QuadTreeProtocol.FRAME_HEADER_SIZE);
+        response.putInt(QuadTreeProtocol.FRAME_HEADER_SIZE);
+        response.put(status);
+        response.putLong(requestId);
+        response.flip();
+        return response;
+    }
+
+    /**
+     * Usage: QuadTreeServer [port] [shard levels] [--replicate log capacity] [--follow host:port],
+     * without shard levels a single {@link QuadTree} is used
+     */
+    public static void main(String args[]) throws IOException {
+        List<String> positional = new ArrayList<>();
+        int logCapacity = 0;
+        String leader = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--replicate") && i + 1 < args.length)
+                logCapacity = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--follow") && i + 1 < args.length)
+                leader = args[++i];
+            else
+                positional.add(args[i]);
+        }
+
+        int port = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : DEFAULT_PORT;
+        final int shardLevels = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : -1;
+        Supplier<NeighbourIndex> indexFactory = () -> shardLevels >= 0 ? new ShardedQuadTree(shardLevels) : new QuadTree();
+
+        QuadTreeServer server = new QuadTreeServer(indexFactory.get(), port, Runtime.getRuntime().availableProcessors());
+        if (logCapacity > 0)
+            server.enableReplication(logCapacity);
+
+        if (leader != null) {
+            int separator = leader.lastIndexOf(':');
+            server.followLeader(new InetSocketAddress(leader.substring(0, separator),
+                    Integer.parseInt(leader.substring(separator + 1))), indexFactory);
+        }
+
+        System.out.println("QuadTree server listening on port " + server.getPort()
+                + (logCapacity > 0 ? ", replicating" : "") + (leader != null ? ", following " + leader : ""));
+        server.run();
+    }
+
+    private interface Query {
+        Collection<Neighbour> run();
+    }
+
+    private static class Connection {
+
+        private final SelectionKey mKey;
+        private final ByteBuffer mInput = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Queue<ByteBuffer> mOutput = new ArrayDeque<>();
+        private long mQueuedBytes;
+        private int mRunningQueries;
+
+        /**
+         * The connection of a follower to this server, or of this server to its leader
+         */
+        private boolean mIsFollower;
+        private boolean mIsLeader;
+
+        /**
+         * Snapshot being sent to this follower, it is not streamed the new writes until it ends
+         */
+        private SnapshotStream mSnapshot;
+
+        Connection(SelectionKey key) {
+            mKey = key;
+        }
+    }
+
+    /**
+     * Query run by a query thread, its response is handed to the event loop
+     */
+    private class QueryTask implements Runnable {
+
+        private final Connection mConnection;
+        private final long mRequestId;
+        private final Query mQuery;
+
+        QueryTask(Connection connection, long requestId, Query query) {
+            mConnection = connection;
+            mRequestId = requestId;
+            mQuery = query;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer response;
+            try {
+                Collection<Neighbour> neighbours;
+                mLock.readLock().lock();
+                try {
+                    neighbours = mQuery.run();
+                } finally {
+                    mLock.readLock().unlock();
+                }
+
+                response = ByteBuffer.allocate(4 + QuadTreeProtocol.FRAME_HEADER_SIZE + 4 + neighbours.size() * 8);
+                response.putInt(response.capacity() - 4);
+                response.put(QuadTreeProtocol.STATUS_OK);
+                response.putLong(mRequestId);
+                response.putInt(neighbours.size());
+                for (Neighbour neighbour : neighbours)
+                    response.putLong(neighbour.getId());
+                response.flip();
+            } catch (Throwable t) {
+                // The client is still answered, otherwise it would wait for this request forever
+                t.printStackTrace();
+                response = emptyResponse(QuadTreeProtocol.STATUS_ERROR, mRequestId);
+            }
+
+            mQueryResponses.add(new Response(mConnection, response));
+            mSelector.wakeup();
+        }
+    }
+
+    private static class Request {
+
+        private final Connection mConnection;
+        private final byte mOperation;
+        private final long mRequestId;
+        private final long mId;
+        private final double mLatitude;
+        private final double mLongitude;
+
+        Request(Connection connection, byte operation, long requestId, long id, double latitude, double longitude) {
+            mConnection = connection;
+            mOperation = operation;
+            mRequestId = requestId;
+            mId = id;
+            mLatitude = latitude;
+            mLongitude = longitude;
+        }
+    }
+
+    /**
+     * Copies the index and encodes the copy in SNAPSHOT frames in a background thread,
+     * handing them to the event loop through a bounded queue
+     */
+    private class SnapshotStream implements NeighbourVisitor, Runnable {
+
+        private final Connection mConnection;
+        private final BlockingQueue<ByteBuffer> mFrames = new ArrayBlockingQueue<>(SNAPSHOT_FRAMES_AHEAD);
+        private Future<?> mTask;
+        private ByteBuffer mFrame;
+        private int mCount;
+
+        /**
+         * Sequence of the last write in the copy and the error that stopped the task, if any,
+         * read by the event loop once the stream is done
+         */
+        private long mSequence;
+        private Throwable mError;
+
+        /**
+         * Set before the event loop is woken up for the last time, the future of the task
+         * may not be done yet when the loop wakes up
+         */
+        private volatile boolean mIsDone;
+
+        SnapshotStream(Connection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Consumer<NeighbourVisitor> source;
+
+                // Writes are applied and logged under the write lock, so the copy is the index as of the last
+                // sequence in the log. The event loop only waits for the copy when it has writes to apply.
+                mLock.readLock().lock();
+                try {
+                    mSequence = mReplicationLog.getLastSequence();
+                    source = freeze(mIndex);
+                } finally {
+                    mLock.readLock().unlock();
+                }
+
+                source.accept(this);
+                if (mFrame != null)
+                    finishFrame();
+            } catch (Throwable t) {
+                mError = t;
+            } finally {
+                mIsDone = true;
+                mSelector.wakeup();
+            }
+        }
+
+        @Override
+        public void visit(long id, double latitude, double longitude) {
+            if (mFrame == null) {
+                mFrame = ByteBuffer.allocate(4 + QuadTreeProtocol.MAX_REPLICATION_FRAME_SIZE);
+                mFrame.position(4 + QuadTreeProtocol.FRAME_HEADER_SIZE + 4);
+            }
+
+            mFrame.putLong(id);
+            mFrame.putDouble(latitude);
+            mFrame.putDouble(longitude);
+
+            if (++mCount == QuadTreeProtocol.SNAPSHOT_BATCH_SIZE)
+                finishFrame();
+        }
+
+        private void finishFrame() {
+            mFrame.flip();
+            mFrame.putInt(0, mFrame.limit() - 4);
+            mFrame.put(4, QuadTreeProtocol.SNAPSHOT);
+            mFrame.putLong(5, mSequence);
+            mFrame.putInt(4 + QuadTreeProtocol.FRAME_HEADER_SIZE, mCount);
+
+            try {
+                mFrames.put(mFrame);
+            } catch (InterruptedException e) {
+                throw new CancellationException("The follower disconnected");
+            }
+
+            mSelector.wakeup();
+            mFrame = null;
+            mCount = 0;
+        }
+    }
+
+    /**
+     * Copy of the neighbours of an index that can not be frozen
+     */
+    private static class NeighbourArrays implements NeighbourVisitor {
+
+        private long[] mIds = new long[1024];
+        private double[] mLatitudes = new double[1024];
+        private double[] mLongitudes = new double[1024];
+        private int mSize;
+
+        @Override
+        public void visit(long id, double latitude, double longitude) {
+            if (mSize == mIds.length) {
+                int capacity = mSize + (mSize >> 1);
+                mIds = Arrays.copyOf(mIds, capacity);
+                mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+                mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+            }
+
+            mIds[mSize] = id;
+            mLatitudes[mSize] = latitude;
+            mLongitudes[mSize] = longitude;
+            mSize++;
+        }
+
+        void forEachNeighbour(NeighbourVisitor visitor) {
+            for (int i = 0; i < mSize; i++)
+                visitor.visit(mIds[i], mLatitudes[i], mLongitudes[i]);
+        }
+    }
+
+    private static class Response {
+
+        private final Connection mConnection;
+        private final ByteBuffer mBuffer;
+
+        Response(Connection connection, ByteBuffer buffer) {
+            mConnection = connection;
+            mBuffer = buffer;
+        }
+    }
+}
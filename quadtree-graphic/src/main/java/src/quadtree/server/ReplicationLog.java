@@ -0,0 +1,116 @@
+package src.quadtree.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * The latest writes applied by a leader, numbered from 1 in the order they were applied.
+ *
+ * The log is a ring with a fixed capacity, the oldest writes are overwritten. A follower
+ * that asks for writes that were already overwritten has to catch up from a snapshot.
+ * Only the event loop of the {@link QuadTreeServer} uses it, so it is not thread safe.
+ */
+
+final class ReplicationLog {
+
+    private static final int REMOVE_FRAME_SIZE = 4 + QuadTreeProtocol.FRAME_HEADER_SIZE + 8;
+    private static final int WRITE_FRAME_SIZE = 4 + QuadTreeProtocol.FRAME_HEADER_SIZE + 24;
+
+    private final byte[] mOperations;
+    private final long[] mIds;
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+
+    private long mLastSequence;
+    private int mSize;
+
+    ReplicationLog(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("The log capacity must be positive, got " + capacity);
+
+        mOperations = new byte[capacity];
+        mIds = new long[capacity];
+        mLatitudes = new double[capacity];
+        mLongitudes = new double[capacity];
+    }
+
+    /**
+     * @return the sequence of the write
+     */
+    long append(byte operation, long id, double latitude, double longitude) {
+        int index = indexOf(++mLastSequence);
+        mOperations[index] = operation;
+        mIds[index] = id;
+        mLatitudes[index] = latitude;
+        mLongitudes[index] = longitude;
+
+        if (mSize < mOperations.length)
+            mSize++;
+
+        return mLastSequence;
+    }
+
+    /**
+     * @return the sequence of the latest write, 0 if nothing was written
+     */
+    long getLastSequence() {
+        return mLastSequence;
+    }
+
+    /**
+     * @return if every write after the sequence is still in the log
+     */
+    boolean canReplayAfter(long sequence) {
+        return sequence >= mLastSequence - mSize && sequence <= mLastSequence;
+    }
+
+    /**
+     * Encodes the writes after the first sequence up to the last, both must be in the log
+     */
+    ByteBuffer encode(long afterSequence, long lastSequence) {
+        int size = 0;
+        for (long sequence = afterSequence + 1; sequence <= lastSequence; sequence++)
+            size += mOperations[indexOf(sequence)] == QuadTreeProtocol.REMOVE ? REMOVE_FRAME_SIZE : WRITE_FRAME_SIZE;
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (long sequence = afterSequence + 1; sequence <= lastSequence; sequence++) {
+            int index = indexOf(sequence);
+            boolean isRemove = mOperations[index] == QuadTreeProtocol.REMOVE;
+
+            buffer.putInt((isRemove ? REMOVE_FRAME_SIZE : WRITE_FRAME_SIZE) - 4);
+            buffer.put(mOperations[index]);
+            buffer.putLong(sequence);
+            buffer.putLong(mIds[index]);
+
+            if (!isRemove) {
+                buffer.putDouble(mLatitudes[index]);
+                buffer.putDouble(mLongitudes[index]);
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private int indexOf(long sequence) {
+        return (int) ((sequence - 1) % mOperations.length);
+    }
+}
@@ -0,0 +1,142 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks the bounds of {@link QuadTree#estimateCount(double, double, double, double)} against the
+ * exact count, and the uniformity of {@link QuadTree#sampleNeighbours(double, double, double, double, int)}
+ * with a chi-square test over repeated samples.
+ */
+
+public class ApproximateSearchTest {
+
+    private static final int POINTS_COUNT = 50000;
+
+    @Test
+    public void estimatesAreWithinTheirBounds() {
+        Random random = new Random(1);
+        QuadTree quadTree = createQuadTree(random);
+
+        for (int i = 0; i < 200; i++) {
+            double minLatitude = random.nextDouble() * 160 - 80;
+            double minLongitude = random.nextDouble() * 340 - 170;
+            double maxLatitude = Math.min(minLatitude + random.nextDouble() * 40, 89);
+            double maxLongitude = Math.min(minLongitude + random.nextDouble() * 80, 179);
+            int exact = quadTree.findNeighboursWithin(minLatitude, minLongitude, maxLatitude, maxLongitude).size();
+
+            CountEstimate estimate = quadTree.estimateCount(minLatitude, minLongitude, maxLatitude, maxLongitude);
+            assertTrue(estimate + " for " + exact, estimate.getMinimum() <= exact && exact <= estimate.getMaximum());
+            assertTrue(estimate.toString(), estimate.getMinimum() <= estimate.getEstimate() && estimate.getEstimate() <= estimate.getMaximum());
+
+            CountEstimate unlimited = quadTree.estimateCount(minLatitude, minLongitude, maxLatitude, maxLongitude, Integer.MAX_VALUE);
+            assertTrue(unlimited.isExact());
+            assertEquals(exact, unlimited.getEstimate());
+        }
+    }
+
+    @Test
+    public void samplesAreUniform() {
+        Random random = new Random(2);
+        QuadTree quadTree = createQuadTree(random);
+
+        // The bounds cut through the dense city and the sparse points around it
+        double minLatitude = 40.5;
+        double minLongitude = -70.3;
+        double maxLatitude = 41.0;
+        double maxLongitude = -69.1;
+        Set<Long> inside = new HashSet<>();
+        for (Neighbour neighbour : quadTree.findNeighboursWithin(minLatitude, minLongitude, maxLatitude, maxLongitude))
+            inside.add(neighbour.getId());
+        assertTrue("Only " + inside.size() + " neighbours inside", inside.size() > 100 && inside.size() < 1000);
+
+        int sampleSize = 10;
+        int trials = 200 * inside.size() / sampleSize;
+        Map<Long, Integer> picks = new HashMap<>();
+        for (int trial = 0; trial < trials; trial++) {
+            List<Neighbour> sample = quadTree.sampleNeighbours(minLatitude, minLongitude, maxLatitude, maxLongitude, sampleSize, random);
+            assertEquals(sampleSize, sample.size());
+
+            Set<Long> sampledIds = new HashSet<>();
+            for (Neighbour neighbour : sample) {
+                assertTrue(inside.contains(neighbour.getId()));
+                assertTrue("Picked twice in a sample", sampledIds.add(neighbour.getId()));
+                picks.merge(neighbour.getId(), 1, Integer::sum);
+            }
+        }
+
+        double expected = (double) trials * sampleSize / inside.size();
+        double chiSquare = 0;
+        for (long id : inside) {
+            double difference = picks.getOrDefault(id, 0) - expected;
+            chiSquare += difference * difference / expected;
+        }
+
+        int degreesOfFreedom = inside.size() - 1;
+        assertTrue("Chi-square " + chiSquare + " for " + degreesOfFreedom + " degrees of freedom",
+                chiSquare < chiSquareCriticalValue(degreesOfFreedom));
+    }
+
+    @Test
+    public void smallResultsAreReturnedWhole() {
+        QuadTree quadTree = createQuadTree(new Random(3));
+        int inside = quadTree.findNeighboursWithin(10, 10, 20, 30).size();
+        assertTrue(inside > 0);
+
+        List<Neighbour> sample = quadTree.sampleNeighbours(10, 10, 20, 30, inside + 5, new Random(4));
+        assertEquals(inside, sample.size());
+        assertTrue(quadTree.sampleNeighbours(10, 10, 20, 30, 0).isEmpty());
+    }
+
+    /**
+     * Half of the points in a single city, the rest spread over the world
+     */
+    private static QuadTree createQuadTree(Random random) {
+        QuadTree quadTree = new QuadTree();
+        for (int id = 0; id < POINTS_COUNT; id++) {
+            if (id % 2 == 0)
+                quadTree.addNeighbour(id, 40 + random.nextGaussian() * 2, -70 + random.nextGaussian() * 2);
+            else
+                quadTree.addNeighbour(id, random.nextDouble() * 170 - 85, random.nextDouble() * 350 - 175);
+        }
+
+        return quadTree;
+    }
+
+    /**
+     * Value exceeded with a probability of 0.001, from the Wilson-Hilferty approximation
+     */
+    private static double chiSquareCriticalValue(int degreesOfFreedom) {
+        double z = 3.090;
+        double term = 2.0 / (9 * degreesOfFreedom);
+        return degreesOfFreedom * Math.pow(1 - term + z * Math.sqrt(term), 3);
+    }
+}
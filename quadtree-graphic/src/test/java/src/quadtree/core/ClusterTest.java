@@ -0,0 +1,155 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks the counts, centroids and bounds of the {@link Cluster}s of
+ * {@link QuadTree#clusters(double, double, double, double, int)} against the neighbours they group,
+ * also after removals and moves.
+ */
+
+public class ClusterTest {
+
+    private static final int POINTS_COUNT = 10000;
+    private static final double EPSILON = 1e-9;
+
+    @Test
+    public void clustersGroupEveryNeighbourOnce() {
+        Random random = new Random(1);
+        QuadTree quadTree = new QuadTree();
+        double[][] points = new double[POINTS_COUNT][];
+        for (int id = 0; id < POINTS_COUNT; id++) {
+            points[id] = randomPoint(random);
+            quadTree.addNeighbour(id, points[id][0], points[id][1]);
+        }
+
+        for (int zoom = 0; zoom <= 6; zoom++)
+            assertClusters(quadTree, points, zoom);
+    }
+
+    @Test
+    public void clustersFollowRemovalsAndMoves() {
+        Random random = new Random(2);
+        QuadTree quadTree = new QuadTree();
+        double[][] points = new double[POINTS_COUNT][];
+        for (int id = 0; id < POINTS_COUNT; id++) {
+            points[id] = randomPoint(random);
+            quadTree.addNeighbour(id, points[id][0], points[id][1]);
+        }
+
+        for (int id = 0; id < POINTS_COUNT; id += 50) {
+            if (id % 100 == 0) {
+                quadTree.removeNeighbour(id);
+                points[id] = null;
+            } else {
+                points[id] = randomPoint(random);
+                quadTree.moveNeighbour(id, points[id][0], points[id][1]);
+            }
+        }
+
+        for (int zoom = 0; zoom <= 6; zoom += 2)
+            assertClusters(quadTree, points, zoom);
+    }
+
+    @Test
+    public void viewportKeepsTheClustersTouchingIt() {
+        Random random = new Random(3);
+        QuadTree quadTree = new QuadTree();
+        int inside = 0;
+        for (int id = 0; id < POINTS_COUNT; id++) {
+            double[] point = randomPoint(random);
+            quadTree.addNeighbour(id, point[0], point[1]);
+            if (point[0] >= 10 && point[0] < 30 && point[1] >= -20 && point[1] < 40)
+                inside++;
+        }
+
+        List<Cluster> clusters = quadTree.clusters(10, -20, 30, 40, 6);
+        int count = 0;
+        for (Cluster cluster : clusters) {
+            assertTrue(cluster.getMaxLatitude() >= 10 - EPSILON && cluster.getMinLatitude() <= 30 + EPSILON);
+            assertTrue(cluster.getMaxLongitude() >= -20 - EPSILON && cluster.getMinLongitude() <= 40 + EPSILON);
+            count += cluster.getCount();
+        }
+
+        // The clusters on the edges also hold some neighbours outside of the viewport
+        assertTrue(count >= inside);
+        assertTrue(count < inside * 2);
+        assertTrue(quadTree.clusters(10, -20, 30, 40, 0).size() == 1);
+    }
+
+    /**
+     * Each neighbour must fall inside the bounds of exactly one cluster, whose count and centroid
+     * are then recomputed from the neighbours found in it
+     */
+    private static void assertClusters(QuadTree quadTree, double[][] points, int zoom) {
+        List<Cluster> clusters = quadTree.clusters(-90, -180, 90, 180, zoom);
+        int[] counts = new int[clusters.size()];
+        double[] latitudeSums = new double[clusters.size()];
+        double[] longitudeSums = new double[clusters.size()];
+        double cellWidth = Math.scalb(quadTree.getRootNode().mBounds.width, -zoom);
+
+        for (double[] point : points) {
+            if (point == null)
+                continue;
+
+            int found = -1;
+            for (int i = 0; i < clusters.size(); i++) {
+                Cluster cluster = clusters.get(i);
+                if (point[0] >= cluster.getMinLatitude() - EPSILON && point[0] <= cluster.getMaxLatitude() + EPSILON
+                        && point[1] >= cluster.getMinLongitude() - EPSILON && point[1] <= cluster.getMaxLongitude() + EPSILON) {
+                    assertEquals("Zoom " + zoom + " has overlapping clusters", -1, found);
+                    found = i;
+                }
+            }
+
+            assertTrue("Zoom " + zoom + " misses a neighbour", found >= 0);
+            counts[found]++;
+            latitudeSums[found] += point[0];
+            longitudeSums[found] += point[1];
+        }
+
+        for (int i = 0; i < clusters.size(); i++) {
+            Cluster cluster = clusters.get(i);
+            assertEquals(counts[i], cluster.getCount());
+            assertEquals(latitudeSums[i] / counts[i], cluster.getLatitude(), 1e-6);
+            assertEquals(longitudeSums[i] / counts[i], cluster.getLongitude(), 1e-6);
+            assertTrue(cluster.getMaxLongitude() - cluster.getMinLongitude() <= cellWidth);
+            assertTrue(cluster.getMaxLatitude() - cluster.getMinLatitude() <= cellWidth);
+        }
+    }
+
+    /**
+     * Half of the points around a single city, so some nodes are much deeper than others
+     */
+    private static double[] randomPoint(Random random) {
+        if (random.nextBoolean())
+            return new double[]{40 + random.nextGaussian(), -70 + random.nextGaussian()};
+
+        return new double[]{random.nextDouble() * 170 - 85, random.nextDouble() * 350 - 175};
+    }
+}
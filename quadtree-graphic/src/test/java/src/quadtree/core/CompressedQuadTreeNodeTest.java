@@ -0,0 +1,171 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks the encoding of a {@link CompressedQuadTreeNode} leaf: the varint ids, the error of the
+ * fixed-point coordinates and the splicing of the arrays when neighbours are added and removed.
+ */
+
+public class CompressedQuadTreeNodeTest {
+
+    private static final double LEAF_SIZE = 1;
+
+    @Test
+    public void idsRoundTrip() {
+        Random random = new Random(1);
+        List<Long> ids = new ArrayList<>();
+        Collections.addAll(ids, 0L, 1L, 127L, 128L, 16384L, -1L, -128L, Long.MAX_VALUE, Long.MIN_VALUE);
+        for (int i = 0; i < 500; i++)
+            ids.add(random.nextInt(3) == 0 ? random.nextLong() : random.nextInt(100000));
+        Collections.shuffle(ids, random);
+
+        CompressedQuadTreeNode node = createLeaf(CompressedQuadTreeNode.PRECISION_32_BITS);
+        Map<Long, Neighbour> expected = new TreeMap<>();
+        for (long id : new HashSet<>(ids)) {
+            Neighbour neighbour = randomNeighbour(random, id);
+            node.addToLeaf(neighbour);
+            expected.put(id, neighbour);
+        }
+
+        assertLeaf(expected, node, maxError(CompressedQuadTreeNode.PRECISION_32_BITS));
+    }
+
+    @Test
+    public void coordinatesStayWithinTheErrorOfTheirPrecision() {
+        for (int precisionBits : new int[]{CompressedQuadTreeNode.PRECISION_16_BITS, CompressedQuadTreeNode.PRECISION_32_BITS}) {
+            Random random = new Random(precisionBits);
+            CompressedQuadTreeNode node = createLeaf(precisionBits);
+            Map<Long, Neighbour> expected = new TreeMap<>();
+            for (long id = 0; id < 2000; id++) {
+                Neighbour neighbour = randomNeighbour(random, id);
+                node.addToLeaf(neighbour);
+                expected.put(id, neighbour);
+            }
+
+            // The corners of the leaf are encoded exactly
+            expected.put(2000L, new NeighbourImpl(2000, 0, 0));
+            expected.put(2001L, new NeighbourImpl(2001, LEAF_SIZE, LEAF_SIZE));
+            node.addToLeaf(expected.get(2000L));
+            node.addToLeaf(expected.get(2001L));
+
+            assertLeaf(expected, node, maxError(precisionBits));
+        }
+    }
+
+    @Test
+    public void removalsAndAdditionsSpliceTheArrays() {
+        for (int precisionBits : new int[]{CompressedQuadTreeNode.PRECISION_16_BITS, CompressedQuadTreeNode.PRECISION_32_BITS}) {
+            Random random = new Random(precisionBits);
+            CompressedQuadTreeNode node = createLeaf(precisionBits);
+            TreeMap<Long, Neighbour> expected = new TreeMap<>();
+
+            for (int i = 0; i < 5000; i++) {
+                // Ids far apart take longer varints, so the bytes after a splice move both ways
+                long id = random.nextBoolean() ? random.nextInt(300) : random.nextInt(300) * 100000L;
+                if (expected.containsKey(id)) {
+                    Neighbour removed = node.takeFromLeaf(id);
+                    assertNotNull(removed);
+                    assertEquals(id, removed.getId());
+                    expected.remove(id);
+                    assertNull(node.takeFromLeaf(id));
+                } else {
+                    Neighbour neighbour = randomNeighbour(random, id);
+                    node.addToLeaf(neighbour);
+                    expected.put(id, neighbour);
+                }
+            }
+            assertLeaf(expected, node, maxError(precisionBits));
+
+            // The last id is removed and a smaller one is appended after the new last id
+            long lastId = expected.lastKey();
+            node.takeFromLeaf(lastId);
+            expected.remove(lastId);
+            Neighbour appended = randomNeighbour(random, expected.lastKey() + 1);
+            node.addToLeaf(appended);
+            expected.put(appended.getId(), appended);
+            assertLeaf(expected, node, maxError(precisionBits));
+
+            Set<Long> removedIds = new HashSet<>();
+            for (long id : expected.keySet()) {
+                if (random.nextBoolean())
+                    removedIds.add(id);
+            }
+            expected.keySet().removeAll(removedIds);
+            node.removeAllFromLeaf(removedIds);
+            assertLeaf(expected, node, maxError(precisionBits));
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void compressedTreesRejectPayloads() {
+        QuadTree.compressed(16).addNeighbour(1, 10, 20, "payload");
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void compressedTreesRejectIntPayloads() {
+        QuadTree.compressed(32).addNeighbour(1, 10, 20, 42);
+    }
+
+    private static CompressedQuadTreeNode createLeaf(int precisionBits) {
+        return new CompressedQuadTreeNode(0, 0, LEAF_SIZE, LEAF_SIZE, precisionBits);
+    }
+
+    private static Neighbour randomNeighbour(Random random, long id) {
+        return new NeighbourImpl(id, random.nextDouble() * LEAF_SIZE, random.nextDouble() * LEAF_SIZE);
+    }
+
+    /**
+     * Half of a step of the fixed-point offsets, plus room for the rounding of the doubles
+     */
+    private static double maxError(int precisionBits) {
+        double steps = precisionBits == CompressedQuadTreeNode.PRECISION_16_BITS ? 0xFFFF : 0xFFFFFFFFL;
+        return LEAF_SIZE / steps / 2 + 1e-12;
+    }
+
+    private static void assertLeaf(Map<Long, Neighbour> expected, CompressedQuadTreeNode node, double maxError) {
+        List<Neighbour> neighbours = node.getNeighbours();
+        assertEquals(expected.size(), node.getNeighboursCount());
+        assertEquals(expected.size(), neighbours.size());
+
+        int i = 0;
+        for (Neighbour expectedNeighbour : expected.values()) {
+            Neighbour neighbour = neighbours.get(i++);
+            assertEquals(expectedNeighbour.getId(), neighbour.getId());
+            assertEquals(expectedNeighbour.getLatitude(), neighbour.getLatitude(), maxError);
+            assertEquals(expectedNeighbour.getLongitude(), neighbour.getLongitude(), maxError);
+        }
+    }
+}
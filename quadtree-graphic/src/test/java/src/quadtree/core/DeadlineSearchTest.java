@@ -0,0 +1,106 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks the results of {@link QuadTree#findNeighboursAsync(double, double, double, NeighbourFilter, long, TimeUnit, java.util.concurrent.Executor)}
+ * that end before, at and after their deadline.
+ */
+
+public class DeadlineSearchTest {
+
+    private static final double LATITUDE = 10;
+    private static final double LONGITUDE = 20;
+    private static final double RANGE_IN_KM = 2000;
+
+    @Test
+    public void timedOutSearchReturnsTheNeighboursFoundSoFar() throws Exception {
+        QuadTree quadTree = createQuadTree();
+
+        // Runs in the calling thread, so the search starts right away, and each neighbour takes a while
+        NeighbourSearchResult result = quadTree.findNeighboursAsync(LATITUDE, LONGITUDE, RANGE_IN_KM, neighbour -> {
+            sleep(1);
+            return true;
+        }, 50, TimeUnit.MILLISECONDS, Runnable::run).get(5, TimeUnit.SECONDS);
+
+        Set<Neighbour> allNeighbours = quadTree.findNeighbours(LATITUDE, LONGITUDE, RANGE_IN_KM);
+        assertFalse(result.isComplete());
+        assertFalse(result.getNeighbours().isEmpty());
+        assertTrue(result.getNeighbours().size() < allNeighbours.size());
+        assertTrue(allNeighbours.containsAll(result.getNeighbours()));
+    }
+
+    @Test
+    public void searchNotStartedBeforeTheDeadlineIsEmpty() throws Exception {
+        QuadTree quadTree = createQuadTree();
+        List<Runnable> pendingSearches = new ArrayList<>();
+
+        NeighbourSearchResult result = quadTree.findNeighboursAsync(LATITUDE, LONGITUDE, RANGE_IN_KM, null,
+                10, TimeUnit.MILLISECONDS, pendingSearches::add).get(5, TimeUnit.SECONDS);
+
+        assertFalse(result.isComplete());
+        assertTrue(result.getNeighbours().isEmpty());
+
+        // The search gets a thread too late and gives up without touching the result
+        assertEquals(1, pendingSearches.size());
+        pendingSearches.get(0).run();
+        assertTrue(result.getNeighbours().isEmpty());
+    }
+
+    @Test
+    public void searchBeforeTheDeadlineIsComplete() throws Exception {
+        QuadTree quadTree = createQuadTree();
+
+        NeighbourSearchResult result = quadTree.findNeighboursAsync(LATITUDE, LONGITUDE, RANGE_IN_KM,
+                10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS);
+
+        assertTrue(result.isComplete());
+        assertEquals(quadTree.findNeighbours(LATITUDE, LONGITUDE, RANGE_IN_KM), result.getNeighbours());
+    }
+
+    private static QuadTree createQuadTree() {
+        QuadTree quadTree = new QuadTree();
+        Random random = new Random(1);
+        for (int id = 0; id < 20000; id++)
+            quadTree.addNeighbour(id, LATITUDE + random.nextGaussian() * 10, LONGITUDE + random.nextGaussian() * 10);
+
+        return quadTree;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
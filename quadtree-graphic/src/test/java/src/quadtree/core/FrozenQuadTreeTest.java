@@ -0,0 +1,161 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks that a {@link FrozenQuadTree} answers like the tree it was frozen from, and keeps doing so
+ * while the tree changes, and the publishing of new copies by {@link FrozenQuadTreePublisher}.
+ */
+
+public class FrozenQuadTreeTest {
+
+    private static final int POINTS_COUNT = 20000;
+    private static final int QUERIES_COUNT = 300;
+
+    @Test
+    public void frozenTreeAnswersLikeTheTree() {
+        Random random = new Random(1);
+        QuadTree quadTree = new QuadTree();
+        load(quadTree, random);
+
+        FrozenQuadTree frozenQuadTree = quadTree.freeze();
+        assertEquals(POINTS_COUNT, frozenQuadTree.size());
+        assertEquals(neighboursOf(quadTree), neighboursOf(frozenQuadTree));
+        assertSameResults(quadTree, frozenQuadTree, random);
+    }
+
+    @Test
+    public void frozenTreeIgnoresLaterWrites() {
+        Random random = new Random(2);
+        QuadTree quadTree = new QuadTree();
+        load(quadTree, random);
+
+        FrozenQuadTree frozenQuadTree = quadTree.freeze();
+        QuadTree copy = new QuadTree();
+        quadTree.forEachNeighbour(copy::addNeighbour);
+
+        for (long id = 0; id < POINTS_COUNT; id += 97)
+            quadTree.removeNeighbour(id);
+        for (long id = 1; id < POINTS_COUNT; id += 97)
+            quadTree.moveNeighbour(id, random.nextDouble() * 170 - 85, random.nextDouble() * 350 - 175);
+
+        assertEquals(neighboursOf(copy), neighboursOf(frozenQuadTree));
+        for (int i = 0; i < QUERIES_COUNT; i++) {
+            double latitude = random.nextDouble() * 170 - 85;
+            double longitude = random.nextDouble() * 350 - 175;
+            double rangeInKm = random.nextDouble() * 2000;
+            assertEquals(copy.findNeighboursIds(latitude, longitude, rangeInKm),
+                    frozenQuadTree.findNeighboursIds(latitude, longitude, rangeInKm));
+        }
+    }
+
+    @Test
+    public void publisherReplacesTheCopy() throws Exception {
+        QuadTree quadTree = new QuadTree();
+        quadTree.addNeighbour(1, 10, 20);
+
+        FrozenQuadTreePublisher publisher = new FrozenQuadTreePublisher(quadTree);
+        FrozenQuadTree first = publisher.get();
+        assertEquals(1, first.size());
+
+        quadTree.addNeighbour(2, 10, 20);
+        assertSame(first, publisher.get());
+
+        FrozenQuadTree second = publisher.publish();
+        assertNotSame(first, second);
+        assertSame(second, publisher.get());
+        assertEquals(2, second.size());
+        assertEquals(1, first.size());
+
+        // The background publisher picks up the next write
+        quadTree.addNeighbour(3, 10, 20);
+        publisher.start(10);
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (publisher.get().size() != 3 && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+        } finally {
+            publisher.stop();
+        }
+        assertEquals(3, publisher.get().size());
+    }
+
+    /**
+     * Mixes the three kinds of neighbours, some of them at the same position
+     */
+    private static void load(QuadTree quadTree, Random random) {
+        for (int id = 0; id < POINTS_COUNT; id++) {
+            double latitude = id % 10 == 0 ? 40 : random.nextDouble() * 170 - 85;
+            double longitude = id % 10 == 0 ? -70 : random.nextDouble() * 350 - 175;
+
+            if (id % 3 == 0)
+                quadTree.addNeighbour(id, latitude, longitude);
+            else if (id % 3 == 1)
+                quadTree.addNeighbour(id, latitude, longitude, id % 7);
+            else
+                quadTree.addNeighbour(id, latitude, longitude, "payload " + id % 5);
+        }
+    }
+
+    private static void assertSameResults(QuadTree quadTree, FrozenQuadTree frozenQuadTree, Random random) {
+        NeighbourFilter intFilter = NeighbourFilter.intPayload(payload -> payload < 3);
+        NeighbourFilter payloadFilter = NeighbourFilter.<String>payload("payload 1"::equals);
+
+        for (int i = 0; i < QUERIES_COUNT; i++) {
+            double latitude = random.nextDouble() * 170 - 85;
+            double longitude = random.nextDouble() * 350 - 175;
+            // Large ranges cover whole nodes, small ones cut through the leaves
+            double rangeInKm = i % 2 == 0 ? random.nextDouble() * 5000 : random.nextDouble() * 200;
+
+            assertEquals(quadTree.findNeighboursIds(latitude, longitude, rangeInKm),
+                    frozenQuadTree.findNeighboursIds(latitude, longitude, rangeInKm));
+            assertEquals(quadTree.findNeighboursIds(latitude, longitude, rangeInKm, intFilter),
+                    frozenQuadTree.findNeighboursIds(latitude, longitude, rangeInKm, intFilter));
+            assertEquals(quadTree.findNeighbours(latitude, longitude, rangeInKm, payloadFilter).size(),
+                    frozenQuadTree.findNeighbours(latitude, longitude, rangeInKm, payloadFilter).size());
+        }
+
+        assertTrue(frozenQuadTree.findNeighboursIds(40, -70, 1).size() >= POINTS_COUNT / 10);
+    }
+
+    private static Map<Long, String> neighboursOf(QuadTree quadTree) {
+        final Map<Long, String> neighbours = new HashMap<>();
+        quadTree.forEachNeighbour((id, latitude, longitude) -> neighbours.put(id, latitude + "," + longitude));
+        return neighbours;
+    }
+
+    private static Map<Long, String> neighboursOf(FrozenQuadTree frozenQuadTree) {
+        final Map<Long, String> neighbours = new HashMap<>();
+        frozenQuadTree.forEachNeighbour((id, latitude, longitude) ->
+                assertEquals("Neighbour " + id + " is copied twice", null, neighbours.put(id, latitude + "," + longitude)));
+        return neighbours;
+    }
+}
@@ -0,0 +1,179 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks that the events published to an {@link IngestionPipeline} by several producers end in the
+ * tree, and that the producers stop when the applier fails.
+ */
+
+public class IngestionPipelineTest {
+
+    private static final int PRODUCERS_COUNT = 4;
+    private static final int IDS_PER_PRODUCER = 500;
+    private static final int EVENTS_PER_PRODUCER = 20000;
+
+    @Test
+    public void eventsOfEveryProducerAreApplied() throws Exception {
+        // Some neighbours are in the tree before the pipeline is created
+        QuadTree quadTree = new QuadTree();
+        final Map<Long, double[]> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (long id = 0; id < PRODUCERS_COUNT * IDS_PER_PRODUCER; id += 2) {
+            double[] position = randomPosition(random);
+            quadTree.addNeighbour(id, position[0], position[1]);
+            expected.put(id, position);
+        }
+
+        // A small ring buffer, so the producers also wait for the applier
+        final IngestionPipeline pipeline = new IngestionPipeline(quadTree, 64, 16);
+        List<Thread> producers = new ArrayList<>();
+        final List<Map<Long, double[]>> positions = new ArrayList<>();
+        for (int producer = 0; producer < PRODUCERS_COUNT; producer++) {
+            final Map<Long, double[]> producerPositions = new HashMap<>();
+            for (long id = producer * IDS_PER_PRODUCER; id < (producer + 1) * IDS_PER_PRODUCER; id++) {
+                if (expected.containsKey(id))
+                    producerPositions.put(id, expected.get(id));
+            }
+            positions.add(producerPositions);
+
+            final int firstId = producer * IDS_PER_PRODUCER;
+            final Random producerRandom = new Random(producer);
+            Thread thread = new Thread(() -> publishRandomEvents(pipeline, producerRandom, firstId, producerPositions));
+            producers.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : producers)
+            thread.join();
+        pipeline.flush();
+        assertEquals(0, pipeline.getPendingCount());
+        pipeline.close();
+
+        QuadTree expectedTree = new QuadTree();
+        for (Map<Long, double[]> producerPositions : positions) {
+            for (Map.Entry<Long, double[]> entry : producerPositions.entrySet())
+                expectedTree.addNeighbour(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        }
+
+        assertEquals(neighboursOf(expectedTree), neighboursOf(quadTree));
+    }
+
+    @Test
+    public void stoppedPipelineRejectsEvents() throws Exception {
+        IngestionPipeline pipeline = new IngestionPipeline(new QuadTree(), 16, 4);
+        pipeline.addNeighbour(1, 10, 20);
+        pipeline.close();
+
+        assertFalse(pipeline.offerAddNeighbour(2, 10, 20));
+        try {
+            pipeline.addNeighbour(2, 10, 20);
+            fail();
+        } catch (IllegalStateException e) {
+            // Closed
+        }
+    }
+
+    @Test
+    public void applierFailureStopsTheProducers() throws Exception {
+        final RuntimeException failure = new RuntimeException("Broken tree");
+        QuadTree brokenTree = new QuadTree() {
+            @Override
+            synchronized void applyBatch(List<Neighbour> removedNeighbours, Set<Long> removedIds, List<Neighbour> addedNeighbours) {
+                throw failure;
+            }
+        };
+
+        // The ring buffer fills up once the applier is gone, the producer waiting for a slot has to give up
+        IngestionPipeline pipeline = new IngestionPipeline(brokenTree, 4, 1);
+        try {
+            for (int id = 0; id < 100; id++)
+                pipeline.addNeighbour(id, 10, 20);
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(failure, e.getCause());
+        }
+
+        assertFalse(pipeline.offerMoveNeighbour(1, 10, 20));
+        try {
+            pipeline.flush();
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(failure, e.getCause());
+        }
+
+        try {
+            pipeline.close();
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    /**
+     * Adds the ids of the producer that are not in the tree, moves or removes the others
+     */
+    private static void publishRandomEvents(IngestionPipeline pipeline, Random random, int firstId, Map<Long, double[]> positions) {
+        for (int i = 0; i < EVENTS_PER_PRODUCER; i++) {
+            long id = firstId + random.nextInt(IDS_PER_PRODUCER);
+            double[] position = randomPosition(random);
+
+            if (!positions.containsKey(id)) {
+                pipeline.addNeighbour(id, position[0], position[1]);
+                positions.put(id, position);
+            } else if (random.nextInt(4) == 0) {
+                pipeline.removeNeighbour(id);
+                positions.remove(id);
+            } else if (random.nextBoolean()) {
+                pipeline.moveNeighbour(id, position[0], position[1]);
+                positions.put(id, position);
+            } else {
+                while (!pipeline.offerMoveNeighbour(id, position[0], position[1]))
+                    Thread.yield();
+                positions.put(id, position);
+            }
+        }
+    }
+
+    private static double[] randomPosition(Random random) {
+        return new double[]{random.nextDouble() * 170 - 85, random.nextDouble() * 350 - 175};
+    }
+
+    private static Map<Long, String> neighboursOf(QuadTree quadTree) {
+        final Map<Long, String> neighbours = new HashMap<>();
+        quadTree.forEachNeighbour((id, latitude, longitude) ->
+                assertEquals("Neighbour " + id + " is stored twice", null, neighbours.put(id, latitude + "," + longitude)));
+        return neighbours;
+    }
+}
@@ -0,0 +1,132 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks that the lazy searches of {@link QuadTree#streamNeighbours(double, double, double)} and
+ * {@link QuadTree#iterateNeighbours(double, double, double)} find the same neighbours as
+ * {@link QuadTree#findNeighbours(double, double, double)}, split without losing any and stop early.
+ */
+
+public class NeighbourSpliteratorTest {
+
+    private static final int POINTS_COUNT = 20000;
+    private static final int QUERIES_COUNT = 200;
+
+    @Test
+    public void streamsFindTheSameNeighbours() {
+        Random random = new Random(1);
+        QuadTree quadTree = createQuadTree(random);
+        NeighbourFilter filter = NeighbourFilter.intPayload(payload -> payload % 2 == 0);
+
+        for (int i = 0; i < QUERIES_COUNT; i++) {
+            double latitude = random.nextDouble() * 170 - 85;
+            double longitude = random.nextDouble() * 350 - 175;
+            double rangeInKm = random.nextDouble() * 3000;
+            Set<Long> expected = quadTree.findNeighboursIds(latitude, longitude, rangeInKm);
+
+            List<Long> streamed = quadTree.streamNeighbours(latitude, longitude, rangeInKm)
+                    .map(Neighbour::getId).collect(Collectors.toList());
+            assertEquals("Every neighbour is streamed once", expected.size(), streamed.size());
+            assertEquals(expected, new HashSet<>(streamed));
+
+            List<Long> parallel = quadTree.streamNeighbours(latitude, longitude, rangeInKm).parallel()
+                    .map(Neighbour::getId).collect(Collectors.toList());
+            assertEquals(expected.size(), parallel.size());
+            assertEquals(expected, new HashSet<>(parallel));
+
+            Set<Long> iterated = new HashSet<>();
+            Iterator<Neighbour> iterator = quadTree.iterateNeighbours(latitude, longitude, rangeInKm);
+            while (iterator.hasNext())
+                iterated.add(iterator.next().getId());
+            assertEquals(expected, iterated);
+
+            assertEquals(quadTree.findNeighboursIds(latitude, longitude, rangeInKm, filter),
+                    quadTree.streamNeighbours(latitude, longitude, rangeInKm, filter)
+                            .map(Neighbour::getId).collect(Collectors.toSet()));
+        }
+    }
+
+    @Test
+    public void splitsShareTheNeighboursWithoutOverlap() {
+        QuadTree quadTree = createQuadTree(new Random(2));
+        Set<Long> expected = quadTree.findNeighboursIds(0, 0, 20000);
+        assertEquals(POINTS_COUNT, expected.size());
+
+        // Keeps splitting every part until none can be split, then drains them all
+        List<Spliterator<Neighbour>> parts = new ArrayList<>();
+        parts.add(quadTree.streamNeighbours(0, 0, 20000).spliterator());
+        for (int i = 0; i < parts.size() && parts.size() < 64; i++) {
+            Spliterator<Neighbour> split = parts.get(i).trySplit();
+            if (split != null) {
+                parts.add(split);
+                i--;
+            }
+        }
+        assertTrue(parts.size() > 4);
+
+        final List<Long> ids = new ArrayList<>();
+        for (Spliterator<Neighbour> part : parts)
+            part.forEachRemaining(neighbour -> ids.add(neighbour.getId()));
+        assertEquals(POINTS_COUNT, ids.size());
+        assertEquals(expected, new HashSet<>(ids));
+    }
+
+    @Test
+    public void limitedStreamStopsTheSearch() {
+        QuadTree quadTree = createQuadTree(new Random(3));
+        final AtomicInteger visited = new AtomicInteger();
+        NeighbourFilter countingFilter = neighbour -> {
+            visited.incrementAndGet();
+            return true;
+        };
+
+        assertEquals(10, quadTree.streamNeighbours(0, 0, 20000, countingFilter).limit(10).count());
+        assertTrue("Visited " + visited.get(), visited.get() < POINTS_COUNT / 10);
+
+        visited.set(0);
+        Iterator<Neighbour> iterator = quadTree.iterateNeighbours(0, 0, 20000, countingFilter);
+        iterator.next();
+        assertTrue("Visited " + visited.get(), visited.get() < POINTS_COUNT / 10);
+    }
+
+    private static QuadTree createQuadTree(Random random) {
+        QuadTree quadTree = new QuadTree();
+        for (int id = 0; id < POINTS_COUNT; id++)
+            quadTree.addNeighbour(id, random.nextDouble() * 170 - 85, random.nextDouble() * 350 - 175, id % 5);
+
+        return quadTree;
+    }
+}
@@ -0,0 +1,140 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks an {@link OffHeapQuadTree} against a {@link QuadTree} after the same random writes, and the
+ * reuse of the freed nodes and blocks by the next writes.
+ */
+
+public class OffHeapQuadTreeTest {
+
+    private static final int IDS_COUNT = 2000;
+    private static final int WRITES_COUNT = 8000;
+    private static final int QUERIES_COUNT = 200;
+
+    @Test
+    public void writesMatchAQuadTree() {
+        Random random = new Random(1);
+        OffHeapQuadTree offHeap = new OffHeapQuadTree();
+        QuadTree quadTree = new QuadTree();
+        boolean[] exists = new boolean[IDS_COUNT];
+        int size = 0;
+
+        for (int i = 0; i < WRITES_COUNT; i++) {
+            int id = random.nextInt(IDS_COUNT);
+            double latitude = random.nextDouble() * 170 - 85;
+            double longitude = random.nextDouble() * 350 - 175;
+
+            if (!exists[id]) {
+                exists[id] = true;
+                size++;
+                offHeap.addNeighbour(id, latitude, longitude);
+                quadTree.addNeighbour(id, latitude, longitude);
+            } else if (random.nextInt(4) == 0) {
+                exists[id] = false;
+                size--;
+                assertTrue(offHeap.removeNeighbour(id));
+                assertFalse(offHeap.removeNeighbour(id));
+                quadTree.removeNeighbour(id);
+            } else {
+                offHeap.moveNeighbour(id, latitude, longitude);
+                quadTree.moveNeighbour(id, latitude, longitude);
+            }
+        }
+
+        assertEquals(size, offHeap.size());
+        assertEquals(neighboursOf(quadTree), neighboursOf(offHeap));
+
+        for (int i = 0; i < QUERIES_COUNT; i++) {
+            double latitude = random.nextDouble() * 170 - 85;
+            double longitude = random.nextDouble() * 350 - 175;
+            double rangeInKm = random.nextDouble() * 3000;
+
+            assertEquals(quadTree.findNeighboursIds(latitude, longitude, rangeInKm),
+                    offHeap.findNeighboursIds(latitude, longitude, rangeInKm));
+            assertEquals(ids(quadTree.findNeighboursWithinRadius(latitude, longitude, rangeInKm)),
+                    ids(offHeap.findNeighboursWithinRadius(latitude, longitude, rangeInKm)));
+            assertEquals(ids(quadTree.findNeighboursWithin(latitude, longitude, latitude + 5, longitude + 10)),
+                    ids(offHeap.findNeighboursWithin(latitude, longitude, latitude + 5, longitude + 10)));
+            assertEquals(orderedIds(quadTree.findNearestNeighbours(latitude, longitude, 10)),
+                    orderedIds(offHeap.findNearestNeighbours(latitude, longitude, 10)));
+        }
+    }
+
+    @Test
+    public void freedMemoryIsReused() {
+        Random random = new Random(2);
+        OffHeapQuadTree offHeap = new OffHeapQuadTree();
+        double[][] points = new double[IDS_COUNT][];
+        for (int id = 0; id < IDS_COUNT; id++) {
+            points[id] = new double[]{random.nextDouble() * 170 - 85, random.nextDouble() * 350 - 175};
+            offHeap.addNeighbour(id, points[id][0], points[id][1]);
+        }
+        long reservedBytes = offHeap.getOffHeapBytes();
+
+        for (int round = 0; round < 3; round++) {
+            for (int id = 0; id < IDS_COUNT; id++)
+                assertTrue(offHeap.removeNeighbour(id));
+            assertEquals(0, offHeap.size());
+            assertTrue(offHeap.findNeighboursIds(0, 0, 20000).isEmpty());
+
+            for (int id = 0; id < IDS_COUNT; id++)
+                offHeap.addNeighbour(id, points[id][0], points[id][1]);
+            assertEquals(IDS_COUNT, offHeap.size());
+            assertEquals(reservedBytes, offHeap.getOffHeapBytes());
+        }
+    }
+
+    private static Map<Long, String> neighboursOf(NeighbourIndex index) {
+        final Map<Long, String> neighbours = new HashMap<>();
+        index.forEachNeighbour((id, latitude, longitude) ->
+                assertEquals("Neighbour " + id + " is stored twice", null, neighbours.put(id, latitude + "," + longitude)));
+        return neighbours;
+    }
+
+    private static Set<Long> ids(Set<Neighbour> neighbours) {
+        Set<Long> ids = new HashSet<>();
+        for (Neighbour neighbour : neighbours)
+            ids.add(neighbour.getId());
+        return ids;
+    }
+
+    private static List<Long> orderedIds(List<Neighbour> neighbours) {
+        List<Long> ids = new ArrayList<>();
+        for (Neighbour neighbour : neighbours)
+            ids.add(neighbour.getId());
+        return ids;
+    }
+}
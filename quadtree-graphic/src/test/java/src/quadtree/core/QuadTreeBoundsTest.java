@@ -0,0 +1,92 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks that neighbours added outside of the bounds of a tree, see {@link QuadTree.Builder#setBounds(double, double, double, double)},
+ * are moved onto its edges and found by the searches covering them.
+ */
+
+public class QuadTreeBoundsTest {
+
+    private static final Set<Long> ALL_IDS = new HashSet<>(Arrays.asList(1L, 2L, 3L, 4L));
+
+    @Test
+    public void neighboursOutsideOfTheBoundsAreMovedOntoTheEdges() {
+        QuadTree quadTree = createBuilder().build();
+        add(quadTree);
+
+        assertEquals(ALL_IDS, quadTree.findNeighboursIds(5, 5, 10000));
+        assertEquals(ALL_IDS, ids(quadTree.findNeighboursWithin(0, 0, 10, 10)));
+        assertEquals(4, quadTree.findNearestNeighbours(5, 5, 10).size());
+        assertEquals(new HashSet<>(Arrays.asList(1L, 4L)), quadTree.findNeighboursIds(10, 10, 50));
+        assertEquals(new HashSet<>(Arrays.asList(2L)), quadTree.findNeighboursIds(0, 0, 50));
+
+        quadTree.forEachNeighbour((id, latitude, longitude) -> {
+            assertTrue(latitude >= 0 && latitude < 10);
+            assertTrue(longitude >= 0 && longitude < 10);
+        });
+    }
+
+    @Test
+    public void movedNeighboursOutsideOfTheBoundsAreMovedOntoTheEdges() {
+        QuadTree quadTree = createBuilder().build();
+        quadTree.addNeighbour(1, 5, 5);
+        quadTree.moveNeighbour(1, 50, -50);
+
+        assertEquals(new HashSet<>(Arrays.asList(1L)), quadTree.findNeighboursIds(10, 0, 50));
+    }
+
+    @Test
+    public void offHeapNeighboursOutsideOfTheBoundsAreMovedOntoTheEdges() {
+        OffHeapQuadTree quadTree = createBuilder().buildOffHeap();
+        add(quadTree);
+
+        assertEquals(ALL_IDS, quadTree.findNeighboursIds(5, 5, 10000));
+        assertEquals(new HashSet<>(Arrays.asList(1L, 4L)), quadTree.findNeighboursIds(10, 10, 50));
+    }
+
+    private static QuadTree.Builder createBuilder() {
+        return new QuadTree.Builder().setBounds(0, 0, 10, 10).setMinimumCellSizeInKm(10);
+    }
+
+    private static void add(NeighbourIndex index) {
+        index.addNeighbour(1, 10, 10);
+        index.addNeighbour(2, -5, -20);
+        index.addNeighbour(3, 5, 5);
+        index.addNeighbour(4, 30, 9.9);
+    }
+
+    private static Set<Long> ids(Set<Neighbour> neighbours) {
+        Set<Long> ids = new HashSet<>();
+        for (Neighbour neighbour : neighbours)
+            ids.add(neighbour.getId());
+        return ids;
+    }
+}
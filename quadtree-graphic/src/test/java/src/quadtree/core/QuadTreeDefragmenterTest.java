@@ -0,0 +1,170 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks that a {@link QuadTreeDefragmenter} pass keeps the tree answering the same, rebuilds only
+ * the subtrees written since the previous pass, loses no write made while it runs and does not
+ * disturb the searches of the subtrees it replaces.
+ */
+
+public class QuadTreeDefragmenterTest {
+
+    private static final int POINTS_COUNT = 20000;
+    private static final int QUERIES_COUNT = 200;
+
+    @Test
+    public void passKeepsTheSameNeighbours() {
+        Random random = new Random(1);
+        QuadTree quadTree = createQuadTree(random);
+        QuadTree reference = createQuadTree(new Random(1));
+
+        QuadTreeDefragmenter defragmenter = new QuadTreeDefragmenter(quadTree, 2);
+        assertTrue(defragmenter.defragment() > 0);
+        assertSameNeighbours(reference, quadTree, random);
+        assertEquals(reference.clusters(-90, -180, 90, 180, 5).size(), quadTree.clusters(-90, -180, 90, 180, 5).size());
+
+        // Nothing changed since the pass
+        assertEquals(0, defragmenter.defragment());
+
+        // Only the subtree holding the write is rebuilt
+        quadTree.addNeighbour(-1, 40, -70);
+        reference.addNeighbour(-1, 40, -70);
+        assertEquals(1, defragmenter.defragment());
+        assertEquals(0, defragmenter.defragment());
+        assertSameNeighbours(reference, quadTree, random);
+
+        quadTree.removeNeighbour(-1);
+        reference.removeNeighbour(-1);
+        assertEquals(1, defragmenter.defragment());
+        assertSameNeighbours(reference, quadTree, random);
+    }
+
+    @Test
+    public void writesAndSearchesDuringPassesAreNotLost() throws Exception {
+        final QuadTree quadTree = createQuadTree(new Random(2));
+        final QuadTree reference = createQuadTree(new Random(2));
+        final AtomicBoolean isWriting = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // The writes only move the neighbours of the western half, the searches only read the eastern half
+        final Random random = new Random(3);
+        final double[][] queries = new double[50][];
+        final List<Set<Long>> expected = new ArrayList<>();
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = new double[]{random.nextDouble() * 140 - 70, random.nextDouble() * 140 + 20, random.nextDouble() * 1000};
+            expected.add(quadTree.findNeighboursIds(queries[i][0], queries[i][1], queries[i][2]));
+        }
+
+        // A new defragmenter rebuilds every subtree, including the ones being searched
+        Thread defragmenterThread = new Thread(() -> {
+            try {
+                while (isWriting.get()) {
+                    new QuadTreeDefragmenter(quadTree, 3).defragment();
+                    Thread.sleep(1);
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+
+        Thread searchThread = new Thread(() -> {
+            try {
+                while (isWriting.get()) {
+                    for (int i = 0; i < queries.length; i++) {
+                        assertEquals(expected.get(i), quadTree.findNeighboursIds(queries[i][0], queries[i][1], queries[i][2]));
+                    }
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+
+        defragmenterThread.start();
+        searchThread.start();
+
+        List<Long> westernIds = new ArrayList<>();
+        reference.forEachNeighbour((id, latitude, longitude) -> {
+            if (longitude < -10)
+                westernIds.add(id);
+        });
+
+        for (int i = 0; i < 200; i++) {
+            long id = westernIds.get(random.nextInt(westernIds.size()));
+            List<NeighbourWrite> writes = Collections.singletonList(new NeighbourWrite(NeighbourWrite.MOVE, id,
+                    random.nextDouble() * 170 - 85, random.nextDouble() * 160 - 175));
+            quadTree.applyWrites(writes);
+            reference.applyWrites(writes);
+        }
+
+        isWriting.set(false);
+        defragmenterThread.join();
+        searchThread.join();
+        assertNull(failure.get());
+
+        new QuadTreeDefragmenter(quadTree, 3).defragment();
+        assertSameNeighbours(reference, quadTree, random);
+    }
+
+    private static QuadTree createQuadTree(Random random) {
+        QuadTree quadTree = new QuadTree();
+        for (int id = 0; id < POINTS_COUNT; id++)
+            quadTree.addNeighbour(id, random.nextDouble() * 170 - 85, random.nextDouble() * 350 - 175, id % 3);
+
+        return quadTree;
+    }
+
+    private static void assertSameNeighbours(QuadTree reference, QuadTree quadTree, Random random) {
+        assertEquals(neighboursOf(reference), neighboursOf(quadTree));
+
+        for (int i = 0; i < QUERIES_COUNT; i++) {
+            double latitude = random.nextDouble() * 170 - 85;
+            double longitude = random.nextDouble() * 350 - 175;
+            double rangeInKm = random.nextDouble() * 3000;
+            assertEquals(reference.findNeighboursIds(latitude, longitude, rangeInKm),
+                    quadTree.findNeighboursIds(latitude, longitude, rangeInKm));
+            assertEquals(reference.findNeighboursIds(latitude, longitude, rangeInKm, NeighbourFilter.intPayload(payload -> payload == 1)),
+                    quadTree.findNeighboursIds(latitude, longitude, rangeInKm, NeighbourFilter.intPayload(payload -> payload == 1)));
+        }
+    }
+
+    private static Map<Long, String> neighboursOf(QuadTree quadTree) {
+        final Map<Long, String> neighbours = new HashMap<>();
+        quadTree.forEachNeighbour((id, latitude, longitude) ->
+                assertEquals("Neighbour " + id + " is stored twice", null, neighbours.put(id, latitude + "," + longitude)));
+        return neighbours;
+    }
+}
@@ -0,0 +1,150 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks {@link QuadTree#estimateFootprint()} against the sizes of the objects of a small tree,
+ * and loosely against the heap retained by a bigger tree of each storage mode.
+ */
+
+public class QuadTreeFootprintTest {
+
+    /**
+     * Largest difference allowed between the estimate and the measured heap, as a fraction of the measured heap.
+     * The estimate is usually within 1%, the rest is room for whatever else the JVM allocates meanwhile.
+     */
+    private static final double HEAP_TOLERANCE = .1;
+
+    private static final int POINTS_COUNT = 200000;
+    private static final int CITIES_COUNT = 100;
+    private static final double CITY_RADIUS_IN_DEGREES = .5;
+
+    /**
+     * Header, long id and two doubles, aligned to 8 bytes. The payload kinds add a reference or an int
+     * that fits in the same padding.
+     */
+    private static final int NEIGHBOUR_SIZE = 40;
+
+    /**
+     * Header and four doubles of a Rectangle2D.Double, aligned to 8 bytes
+     */
+    private static final int BOUNDS_SIZE = 48;
+
+    /**
+     * Header, size, modCount and the reference to the backing array of an ArrayList
+     */
+    private static final int ARRAY_LIST_SIZE = 24;
+
+    @Test
+    public void estimateAddsTheSizeOfEveryObject() {
+        // A single node, its list grows 10, 15, 22, 33, 49
+        QuadTree quadTree = new QuadTree.Builder().setLeafCapacity(100).build();
+        for (int id = 0; id < 45; id++) {
+            if (id % 3 == 0)
+                quadTree.addNeighbour(id, 10, 20);
+            else if (id % 3 == 1)
+                quadTree.addNeighbour(id, 10, 20, id);
+            else
+                quadTree.addNeighbour(id, 10, 20, "payload");
+        }
+
+        QuadTreeFootprint footprint = quadTree.estimateFootprint();
+        assertEquals(1, footprint.getNodeCount());
+        assertEquals(45, footprint.getNeighbourCount());
+        assertEquals(45 * NEIGHBOUR_SIZE, footprint.getNeighbourBytes());
+        assertEquals(BOUNDS_SIZE, footprint.getBoundsBytes());
+        assertEquals(ARRAY_LIST_SIZE + QuadTreeFootprint.arraySize(49, 4), footprint.getListBytes());
+        assertEquals((49 - 45) * 4, footprint.getListSlackBytes());
+        assertEquals(0, footprint.getLeafArrayBytes());
+        assertEquals(footprint.getNodeBytes() + footprint.getBoundsBytes() + footprint.getListBytes()
+                + footprint.getNeighbourBytes(), footprint.getTotalBytes());
+    }
+
+    @Test
+    public void compressedLeavesAreCountedByTheirArrays() {
+        QuadTree quadTree = QuadTree.compressed(CompressedQuadTreeNode.PRECISION_16_BITS);
+        load(quadTree, 10000, true);
+
+        QuadTreeFootprint footprint = quadTree.estimateFootprint();
+        assertEquals(10000, footprint.getNeighbourCount());
+        assertEquals(0, footprint.getNeighbourBytes());
+        assertEquals(0, footprint.getListBytes());
+        assertEquals(footprint.getNodeCount() * BOUNDS_SIZE, footprint.getBoundsBytes());
+
+        // At least one int of coordinates and one byte of id per neighbour
+        assertTrue(footprint.getLeafArrayBytes() >= 10000 * 5);
+    }
+
+    @Test
+    public void estimateMatchesRetainedHeap() {
+        for (int precisionBits : new int[]{0, CompressedQuadTreeNode.PRECISION_16_BITS, CompressedQuadTreeNode.PRECISION_32_BITS}) {
+            assertMatchesRetainedHeap(precisionBits, false);
+            assertMatchesRetainedHeap(precisionBits, true);
+        }
+    }
+
+    private static void assertMatchesRetainedHeap(int precisionBits, boolean clustered) {
+        long usedBefore = usedHeap();
+        QuadTree quadTree = precisionBits == 0 ? new QuadTree() : QuadTree.compressed(precisionBits);
+        load(quadTree, POINTS_COUNT, clustered);
+        long retained = usedHeap() - usedBefore;
+
+        assertEquals((precisionBits == 0 ? "Plain" : precisionBits + " bits") + (clustered ? " clustered" : " uniform"),
+                retained, quadTree.estimateFootprint().getTotalBytes(), retained * HEAP_TOLERANCE);
+    }
+
+    /**
+     * Spreads the points over the whole world, or around a fixed set of cities
+     */
+    private static void load(QuadTree quadTree, int pointsCount, boolean clustered) {
+        Random random = new Random(pointsCount);
+        double[] cityLatitudes = new double[CITIES_COUNT];
+        double[] cityLongitudes = new double[CITIES_COUNT];
+        for (int city = 0; city < CITIES_COUNT; city++) {
+            cityLatitudes[city] = random.nextDouble() * 140 - 60;
+            cityLongitudes[city] = random.nextDouble() * 340 - 170;
+        }
+
+        for (int id = 0; id < pointsCount; id++) {
+            if (clustered) {
+                int city = random.nextInt(CITIES_COUNT);
+                quadTree.addNeighbour(id, cityLatitudes[city] + random.nextGaussian() * CITY_RADIUS_IN_DEGREES,
+                        cityLongitudes[city] + random.nextGaussian() * CITY_RADIUS_IN_DEGREES);
+            } else {
+                quadTree.addNeighbour(id, random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++)
+            System.gc();
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,134 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks the pairs found by {@link QuadTree#join(QuadTree, double, NeighbourPairListener)} and its
+ * parallel version against comparing every neighbour of one tree with every neighbour of the other.
+ */
+
+public class QuadTreeJoinTest {
+
+    private static final int POINTS_COUNT = 3000;
+    private static final double RANGE_IN_KM = 50;
+
+    @Test
+    public void joinFindsEveryPairWithinTheRange() {
+        Random random = new Random(1);
+        QuadTree quadTreeA = new QuadTree();
+        QuadTree quadTreeB = new QuadTree();
+        load(quadTreeA, random, 0);
+        load(quadTreeB, random, POINTS_COUNT);
+
+        Set<String> expected = bruteForcePairs(quadTreeA, quadTreeB, RANGE_IN_KM);
+        assertTrue(expected.size() > POINTS_COUNT);
+
+        final List<String> pairs = new ArrayList<>();
+        quadTreeA.join(quadTreeB, RANGE_IN_KM, (idA, idB) -> pairs.add(idA + "-" + idB));
+        assertEquals("Every pair is reported once", pairs.size(), new HashSet<>(pairs).size());
+        assertEquals(expected, new HashSet<>(pairs));
+
+        final List<String> parallelPairs = Collections.synchronizedList(new ArrayList<>());
+        quadTreeA.joinParallel(quadTreeB, RANGE_IN_KM, (idA, idB) -> parallelPairs.add(idA + "-" + idB));
+        assertEquals(pairs.size(), parallelPairs.size());
+        assertEquals(expected, new HashSet<>(parallelPairs));
+    }
+
+    @Test
+    public void joinWithAnEmptyTreeFindsNothing() {
+        QuadTree quadTree = new QuadTree();
+        load(quadTree, new Random(2), 0);
+
+        quadTree.join(new QuadTree(), RANGE_IN_KM, (idA, idB) -> {
+            throw new AssertionError();
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void treesWithDifferentGeometriesAreNotJoined() {
+        QuadTree quadTree = new QuadTree.Builder().setBounds(0, 0, 10, 10).build();
+        new QuadTree().join(quadTree, RANGE_IN_KM, (idA, idB) -> {
+        });
+    }
+
+    /**
+     * Half of the points around a few cities, so the leaves are split deep and hold many pairs
+     */
+    private static void load(QuadTree quadTree, Random random, int firstId) {
+        for (int i = 0; i < POINTS_COUNT; i++) {
+            if (i % 2 == 0)
+                quadTree.addNeighbour(firstId + i, random.nextDouble() * 170 - 85, random.nextDouble() * 350 - 175);
+            else
+                quadTree.addNeighbour(firstId + i, 40 + random.nextGaussian(), -70 * (i % 3) + random.nextGaussian());
+        }
+    }
+
+    /**
+     * Compares the stored coordinates with the same range in degrees used by the join
+     */
+    private static Set<String> bruteForcePairs(QuadTree quadTreeA, QuadTree quadTreeB, double rangeInKm) {
+        double rangeInDegrees = quadTreeA.getGeometry().kmToDegree(rangeInKm);
+        List<Neighbour> neighboursB = neighboursOf(quadTreeB);
+        Set<String> pairs = new HashSet<>();
+
+        for (Neighbour neighbourA : neighboursOf(quadTreeA)) {
+            for (Neighbour neighbourB : neighboursB) {
+                if (Math.abs(neighbourA.getLatitude() - neighbourB.getLatitude()) <= rangeInDegrees
+                        && Math.abs(neighbourA.getLongitude() - neighbourB.getLongitude()) <= rangeInDegrees)
+                    pairs.add(neighbourA.getId() + "-" + neighbourB.getId());
+            }
+        }
+
+        return pairs;
+    }
+
+    private static List<Neighbour> neighboursOf(QuadTree quadTree) {
+        List<Neighbour> neighbours = new ArrayList<>();
+        Deque<QuadTreeNode> pendingNodes = new ArrayDeque<>();
+        pendingNodes.push(quadTree.getRootNode());
+
+        while (!pendingNodes.isEmpty()) {
+            QuadTreeNode node = pendingNodes.pop();
+            if (node.getNeighboursCount() > 0)
+                neighbours.addAll(node.getNeighbours());
+
+            for (int childIndex = 0; childIndex < node.mChildren.length(); childIndex++) {
+                if (node.mChildren.get(childIndex) != null)
+                    pendingNodes.push(node.mChildren.get(childIndex));
+            }
+        }
+
+        return neighbours;
+    }
+}
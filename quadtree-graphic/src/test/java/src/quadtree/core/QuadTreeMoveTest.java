@@ -0,0 +1,79 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks that {@link QuadTree#moveNeighbour(long, double, double)} keeps the payload of the neighbour.
+ */
+
+public class QuadTreeMoveTest {
+
+    @Test
+    public void moveKeepsThePayload() {
+        QuadTree quadTree = new QuadTree();
+        quadTree.addNeighbour(1, 10, 20, "first");
+        quadTree.addNeighbour(2, 10, 20, 42);
+
+        quadTree.moveNeighbour(1, -30, 100);
+        quadTree.moveNeighbour(2, -30, 100);
+
+        Set<Neighbour> moved = quadTree.findNeighbours(-30, 100, 1);
+        assertEquals(2, moved.size());
+        for (Neighbour neighbour : moved) {
+            if (neighbour.getId() == 1)
+                assertEquals("first", ((PayloadNeighbour<?>) neighbour).getPayload());
+            else
+                assertEquals(42, ((IntPayloadNeighbour) neighbour).getIntPayload());
+        }
+
+        assertTrue(quadTree.findNeighbours(10, 20, 1).isEmpty());
+        assertEquals(1, quadTree.findNeighbours(-30, 100, 1, NeighbourFilter.intPayload(payload -> payload == 42)).size());
+    }
+
+    @Test
+    public void moveOfAnUnknownNeighbourAddsIt() {
+        QuadTree quadTree = new QuadTree();
+        quadTree.moveNeighbour(1, 10, 20);
+
+        Set<Neighbour> added = quadTree.findNeighbours(10, 20, 1);
+        assertEquals(1, added.size());
+        Neighbour neighbour = added.iterator().next();
+        assertEquals(1, neighbour.getId());
+        assertFalse(neighbour instanceof PayloadNeighbour || neighbour instanceof IntPayloadNeighbour);
+    }
+
+    @Test
+    public void moveWithinACompressedTree() {
+        QuadTree quadTree = QuadTree.compressed(32);
+        quadTree.addNeighbour(1, 10, 20);
+        quadTree.moveNeighbour(1, -30, 100);
+
+        assertTrue(quadTree.findNeighboursIds(10, 20, 1).isEmpty());
+        assertEquals(1, quadTree.findNeighboursIds(-30, 100, 1).size());
+    }
+}
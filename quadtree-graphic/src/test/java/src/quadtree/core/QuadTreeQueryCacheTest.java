@@ -0,0 +1,133 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks that a {@link QuadTreeQueryCache} always answers like its tree, that writes invalidate only
+ * the entries built from the leaves they change, and that the least recently used entries are dropped.
+ */
+
+public class QuadTreeQueryCacheTest {
+
+    private static final int POINTS_COUNT = 20000;
+    private static final double QUANTUM_IN_KM = 10;
+    private static final double RANGE_IN_KM = 50;
+
+    @Test
+    public void cachedResultsMatchTheTreeAfterWrites() {
+        Random random = new Random(1);
+        QuadTree quadTree = createQuadTree(random);
+        QuadTreeQueryCache cache = new QuadTreeQueryCache(quadTree, 100, QUANTUM_IN_KM);
+
+        // A few hot areas, so most queries hit while the writes keep invalidating some entries
+        double[][] centers = new double[20][];
+        for (int i = 0; i < centers.length; i++)
+            centers[i] = new double[]{random.nextDouble() * 170 - 85, random.nextDouble() * 350 - 175};
+
+        long nextId = POINTS_COUNT;
+        for (int i = 0; i < 2000; i++) {
+            double[] center = centers[random.nextInt(centers.length)];
+            double latitude = center[0] + random.nextGaussian() * .05;
+            double longitude = center[1] + random.nextGaussian() * .05;
+
+            assertEquals(quadTree.findNeighboursIds(latitude, longitude, RANGE_IN_KM),
+                    cache.findNeighboursIds(latitude, longitude, RANGE_IN_KM));
+
+            // Writes land next to the hot areas, or anywhere
+            double[] target = centers[random.nextInt(centers.length)];
+            double writeLatitude = random.nextBoolean() ? target[0] + random.nextGaussian() * .3 : random.nextDouble() * 170 - 85;
+            double writeLongitude = random.nextBoolean() ? target[1] + random.nextGaussian() * .3 : random.nextDouble() * 350 - 175;
+            switch (random.nextInt(3)) {
+                case 0:
+                    quadTree.addNeighbour(nextId++, writeLatitude, writeLongitude);
+                    break;
+                case 1:
+                    quadTree.moveNeighbour(random.nextInt(POINTS_COUNT), writeLatitude, writeLongitude);
+                    break;
+                default:
+                    quadTree.removeNeighbour(nextId - 1 - random.nextInt(100));
+            }
+        }
+
+        assertTrue("Hits " + cache.getHits(), cache.getHits() > 500);
+        assertTrue("Misses " + cache.getMisses(), cache.getMisses() > centers.length);
+    }
+
+    @Test
+    public void onlyWritesToTheVisitedLeavesInvalidateAnEntry() {
+        QuadTree quadTree = createQuadTree(new Random(2));
+        QuadTreeQueryCache cache = new QuadTreeQueryCache(quadTree, 100, QUANTUM_IN_KM);
+
+        cache.findNeighboursIds(40, -70, RANGE_IN_KM);
+        cache.findNeighboursIds(40, -70, RANGE_IN_KM);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        // The other side of the world
+        quadTree.addNeighbour(-1, -40, 110);
+        quadTree.moveNeighbour(-1, -40.1, 110.1);
+        quadTree.removeNeighbour(-1);
+        assertEquals(quadTree.findNeighboursIds(40, -70, RANGE_IN_KM), cache.findNeighboursIds(40, -70, RANGE_IN_KM));
+        assertEquals(1, cache.getMisses());
+
+        quadTree.addNeighbour(-2, 40, -70);
+        assertTrue(cache.findNeighboursIds(40, -70, RANGE_IN_KM).contains(-2L));
+        assertEquals(2, cache.getMisses());
+
+        quadTree.moveNeighbour(-2, -40, 110);
+        assertEquals(quadTree.findNeighboursIds(40, -70, RANGE_IN_KM), cache.findNeighboursIds(40, -70, RANGE_IN_KM));
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreDropped() {
+        QuadTreeQueryCache cache = new QuadTreeQueryCache(createQuadTree(new Random(3)), 2, QUANTUM_IN_KM);
+
+        cache.findNeighboursIds(0, 0, RANGE_IN_KM);
+        cache.findNeighboursIds(10, 10, RANGE_IN_KM);
+        cache.findNeighboursIds(0, 0, RANGE_IN_KM);
+        cache.findNeighboursIds(20, 20, RANGE_IN_KM);
+        assertEquals(3, cache.getMisses());
+
+        cache.findNeighboursIds(0, 0, RANGE_IN_KM);
+        assertEquals(3, cache.getMisses());
+        cache.findNeighboursIds(10, 10, RANGE_IN_KM);
+        assertEquals(4, cache.getMisses());
+
+        cache.clear();
+        cache.findNeighboursIds(0, 0, RANGE_IN_KM);
+        assertEquals(5, cache.getMisses());
+    }
+
+    private static QuadTree createQuadTree(Random random) {
+        QuadTree quadTree = new QuadTree();
+        for (int id = 0; id < POINTS_COUNT; id++)
+            quadTree.addNeighbour(id, random.nextDouble() * 170 - 85, random.nextDouble() * 350 - 175);
+
+        return quadTree;
+    }
+}
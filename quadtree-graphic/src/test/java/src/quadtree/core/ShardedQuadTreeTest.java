@@ -0,0 +1,166 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks a {@link ShardedQuadTree} against a single {@link QuadTree} after the same random writes,
+ * applied one by one and in batches.
+ */
+
+public class ShardedQuadTreeTest {
+
+    private static final int IDS_COUNT = 3000;
+    private static final int WRITES_COUNT = 10000;
+    private static final int QUERIES_COUNT = 100;
+
+    @Test
+    public void singleWritesMatchAQuadTree() {
+        Random random = new Random(1);
+        ShardedQuadTree sharded = new ShardedQuadTree(2);
+        QuadTree quadTree = new QuadTree();
+        boolean[] exists = new boolean[IDS_COUNT];
+
+        for (int i = 0; i < WRITES_COUNT; i++) {
+            NeighbourWrite write = randomWrite(random, exists);
+            switch (write.mType) {
+                case NeighbourWrite.ADD:
+                    sharded.addNeighbour(write.mId, write.mLatitude, write.mLongitude);
+                    quadTree.addNeighbour(write.mId, write.mLatitude, write.mLongitude);
+                    break;
+                case NeighbourWrite.MOVE:
+                    sharded.moveNeighbour(write.mId, write.mLatitude, write.mLongitude);
+                    quadTree.moveNeighbour(write.mId, write.mLatitude, write.mLongitude);
+                    break;
+                default:
+                    assertEquals(quadTree.removeNeighbour(write.mId), sharded.removeNeighbour(write.mId));
+            }
+        }
+
+        assertSameNeighbours(quadTree, sharded, random);
+    }
+
+    @Test
+    public void batchesMatchAQuadTree() {
+        Random random = new Random(2);
+        ShardedQuadTree sharded = new ShardedQuadTree(2);
+        QuadTree quadTree = new QuadTree();
+        boolean[] exists = new boolean[IDS_COUNT];
+
+        for (int batch = 0; batch < WRITES_COUNT / 100; batch++) {
+            List<NeighbourWrite> writes = new ArrayList<>();
+            for (int i = 0; i < 100; i++)
+                writes.add(randomWrite(random, exists));
+
+            boolean[] expected = quadTree.applyWrites(writes);
+            boolean[] applied = sharded.applyWrites(writes);
+            for (int i = 0; i < expected.length; i++)
+                assertEquals(expected[i], applied[i]);
+        }
+
+        assertSameNeighbours(quadTree, sharded, random);
+    }
+
+    @Test
+    public void addOfAKnownIdInAnotherShardMovesIt() {
+        ShardedQuadTree sharded = new ShardedQuadTree(1);
+        sharded.addNeighbour(1, 45, -90);
+        sharded.addNeighbour(1, -45, 90);
+
+        List<NeighbourWrite> writes = new ArrayList<>();
+        writes.add(new NeighbourWrite(NeighbourWrite.ADD, 2, 45, -90));
+        writes.add(new NeighbourWrite(NeighbourWrite.ADD, 2, -45, 90));
+        sharded.applyWrites(writes);
+
+        Map<Long, String> neighbours = neighboursOf(sharded);
+        assertEquals(2, neighbours.size());
+        assertEquals(position(-45, 90), neighbours.get(1L));
+        assertEquals(position(-45, 90), neighbours.get(2L));
+        assertTrue(sharded.findNeighbours(45, -90, 100).isEmpty());
+
+        assertTrue(sharded.removeNeighbour(1));
+        assertTrue(sharded.removeNeighbour(2));
+        assertTrue(neighboursOf(sharded).isEmpty());
+    }
+
+    /**
+     * Adds new ids, moves or removes the existing ones, an id removed may be added again later
+     */
+    private static NeighbourWrite randomWrite(Random random, boolean[] exists) {
+        int id = random.nextInt(IDS_COUNT);
+        double latitude = random.nextDouble() * 170 - 85;
+        double longitude = random.nextDouble() * 350 - 175;
+
+        if (!exists[id]) {
+            exists[id] = true;
+            return new NeighbourWrite(NeighbourWrite.ADD, id, latitude, longitude);
+        }
+
+        if (random.nextInt(4) == 0) {
+            exists[id] = false;
+            return new NeighbourWrite(NeighbourWrite.REMOVE, id, 0, 0);
+        }
+
+        return new NeighbourWrite(NeighbourWrite.MOVE, id, latitude, longitude);
+    }
+
+    private static void assertSameNeighbours(QuadTree quadTree, ShardedQuadTree sharded, Random random) {
+        assertEquals(neighboursOf(quadTree), neighboursOf(sharded));
+
+        for (int i = 0; i < QUERIES_COUNT; i++) {
+            double latitude = random.nextDouble() * 170 - 85;
+            double longitude = random.nextDouble() * 350 - 175;
+            double rangeInKm = random.nextDouble() * 3000;
+
+            assertEquals(quadTree.findNeighboursIds(latitude, longitude, rangeInKm),
+                    sharded.findNeighboursIds(latitude, longitude, rangeInKm));
+            assertEquals(ids(quadTree.findNearestNeighbours(latitude, longitude, 10)),
+                    ids(sharded.findNearestNeighbours(latitude, longitude, 10)));
+        }
+    }
+
+    private static Map<Long, String> neighboursOf(NeighbourIndex index) {
+        final Map<Long, String> neighbours = new HashMap<>();
+        index.forEachNeighbour((id, latitude, longitude) ->
+                assertEquals("Neighbour " + id + " is stored twice", null, neighbours.put(id, position(latitude, longitude))));
+        return neighbours;
+    }
+
+    private static String position(double latitude, double longitude) {
+        return latitude + "," + longitude;
+    }
+
+    private static List<Long> ids(List<Neighbour> neighbours) {
+        List<Long> ids = new ArrayList<>();
+        for (Neighbour neighbour : neighbours)
+            ids.add(neighbour.getId());
+        return ids;
+    }
+}
@@ -0,0 +1,152 @@
+package src.quadtree.core;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Checks the closing of the buckets of a {@link SpatioTemporalQuadTree}, the time filter at their
+ * edges, the retention and the times kept by the rolled up windows.
+ */
+
+public class SpatioTemporalQuadTreeTest {
+
+    private static final long BUCKET_MILLIS = 1000;
+    private static final double RANGE_IN_KM = 10;
+
+    @Test
+    public void bucketsCloseWhenTimeMovesOn() {
+        SpatioTemporalQuadTree tree = new SpatioTemporalQuadTree(BUCKET_MILLIS);
+        assertTrue(tree.addPosition(1, 10, 10, 500));
+        assertTrue(tree.addPosition(2, 10, 10, 999));
+        assertEquals(0, tree.getSegmentsCount());
+
+        // A position of the next bucket closes the open one
+        assertTrue(tree.addPosition(3, 10, 10, 1000));
+        assertEquals(1, tree.getSegmentsCount());
+        assertFalse(tree.addPosition(4, 10, 10, 999));
+
+        // Time passing the end of the open bucket closes it too
+        tree.advanceTo(1999);
+        assertEquals(1, tree.getSegmentsCount());
+        tree.advanceTo(2000);
+        assertEquals(2, tree.getSegmentsCount());
+
+        assertEquals(ids(1, 2, 3), find(tree, 10, 10, 0, 2000));
+        assertFalse(tree.addPosition(4, 10, 10, 1500));
+    }
+
+    @Test
+    public void timeRangeIsCutAtTheEdgesOfTheBuckets() {
+        SpatioTemporalQuadTree tree = new SpatioTemporalQuadTree(BUCKET_MILLIS);
+        tree.addPosition(1, 10, 10, 0);
+        tree.addPosition(2, 10, 10, 999);
+        tree.addPosition(3, 10, 10, 1000);
+        tree.addPosition(4, 10, 10, 1999);
+
+        // The open bucket and a closed one are filtered the same way
+        for (int i = 0; i < 2; i++) {
+            assertEquals(ids(1, 2), find(tree, 10, 10, 0, 1000));
+            assertEquals(ids(2), find(tree, 10, 10, 999, 1000));
+            assertEquals(ids(2, 3), find(tree, 10, 10, 999, 1001));
+            assertEquals(ids(3), find(tree, 10, 10, 1000, 1001));
+            assertEquals(ids(1), find(tree, 10, 10, -1000, 1));
+            assertEquals(ids(), find(tree, 10, 10, 1, 999));
+            assertEquals(ids(4), find(tree, 10, 10, 1999, 5000));
+            assertEquals(ids(), find(tree, 20, 20, 0, 5000));
+
+            tree.advanceTo(2000);
+        }
+        assertEquals(2, tree.getSegmentsCount());
+    }
+
+    @Test
+    public void bucketsAreEvictedAfterTheRetention() {
+        SpatioTemporalQuadTree tree = new SpatioTemporalQuadTree(BUCKET_MILLIS);
+        tree.setRetention(2000);
+        for (int bucket = 0; bucket < 5; bucket++)
+            tree.addPosition(bucket, 10, 10, bucket * BUCKET_MILLIS);
+
+        // Buckets 0 to 3 are closed, the first ended 4000 ms before the newest time
+        assertEquals(2, tree.getSegmentsCount());
+        assertEquals(ids(2, 3, 4), find(tree, 10, 10, 0, 5000));
+
+        tree.advanceTo(5000);
+        assertEquals(2, tree.getSegmentsCount());
+        assertEquals(ids(3, 4), find(tree, 10, 10, 0, 5000));
+
+        tree.advanceTo(8000);
+        assertEquals(0, tree.getSegmentsCount());
+        assertEquals(ids(), find(tree, 10, 10, 0, 8000));
+    }
+
+    @Test
+    public void rolledUpWindowsKeepTheFirstAndLastTimes() {
+        SpatioTemporalQuadTree tree = new SpatioTemporalQuadTree(BUCKET_MILLIS);
+        tree.setRollUp(0, 4 * BUCKET_MILLIS);
+
+        // Id 1 moves from 10,10 to 20,20 within the first bucket of the window, then is seen again in the third
+        tree.addPosition(1, 10, 10, 100);
+        tree.addPosition(3, 20, 20, 500);
+        tree.addPosition(1, 20, 20, 900);
+        tree.addPosition(1, 20, 20, 2500);
+        tree.addPosition(2, 20, 20, 3500);
+        tree.advanceTo(4000);
+        assertEquals(1, tree.getSegmentsCount());
+
+        // Only the latest position of each id is kept
+        assertEquals(ids(), find(tree, 10, 10, 0, 4000));
+        assertEquals(ids(1, 2, 3), find(tree, 20, 20, 0, 4000));
+
+        // The ids are found only between their first and last times in the window
+        assertEquals(ids(), find(tree, 20, 20, 0, 100));
+        assertEquals(ids(1), find(tree, 20, 20, 0, 101));
+        assertEquals(ids(1, 3), find(tree, 20, 20, 500, 501));
+        assertEquals(ids(1), find(tree, 20, 20, 1000, 2000));
+        assertEquals(ids(1), find(tree, 20, 20, 2500, 2501));
+        assertEquals(ids(), find(tree, 20, 20, 2501, 3500));
+        assertEquals(ids(2), find(tree, 20, 20, 3000, 4000));
+
+        // The next window is rolled up on its own
+        tree.addPosition(1, 20, 20, 4000);
+        tree.advanceTo(8000);
+        assertEquals(2, tree.getSegmentsCount());
+        assertEquals(ids(1), find(tree, 20, 20, 3501, 4001));
+        assertEquals(ids(1, 2), find(tree, 20, 20, 3000, 8000));
+    }
+
+    private static Set<Long> find(SpatioTemporalQuadTree tree, double latitude, double longitude, long fromMillis, long toMillis) {
+        return tree.findNeighboursIds(latitude, longitude, RANGE_IN_KM, fromMillis, toMillis);
+    }
+
+    private static Set<Long> ids(long... ids) {
+        Set<Long> set = new HashSet<>();
+        for (long id : ids)
+            set.add(id);
+        return set;
+    }
+}
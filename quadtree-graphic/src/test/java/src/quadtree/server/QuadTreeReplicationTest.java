@@ -0,0 +1,226 @@
+package src.quadtree.server;
+
+import org.junit.After;
+import org.junit.Test;
+import src.quadtree.core.QuadTree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Leonardo Lana
+ * Github: https://github.com/leonardodlana
+ * <p>
+ * Copyright 2018 Leonardo Lana
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ============================================================================
+ *
+ * Runs a leader and a follower on the loopback interface and checks that the follower ends with the
+ * same neighbours as the leader, from the log and from a snapshot after the log overflows.
+ */
+
+public class QuadTreeReplicationTest {
+
+    private static final long CONVERGENCE_TIMEOUT_MILLIS = 30000;
+    private static final int IDS_COUNT = 2000;
+
+    /**
+     * The areas compared between the leader and the follower, a 4 by 4 grid over the world
+     */
+    private static final int GRID_SIZE = 4;
+
+    private final List<QuadTreeServer> mServers = new ArrayList<>();
+    private final List<Thread> mThreads = new ArrayList<>();
+    private final Random mRandom = new Random(7);
+    private long mRequestId;
+
+    @After
+    public void stopServers() throws InterruptedException {
+        for (QuadTreeServer server : mServers)
+            server.stop();
+
+        for (Thread thread : mThreads)
+            thread.join();
+    }
+
+    @Test
+    public void followerConvergesFromTheLog() throws Exception {
+        QuadTreeServer leader = start(leader(new QuadTree(), 10000));
+        QuadTreeServer follower = start(follower(leader));
+
+        try (Socket client = connect(leader)) {
+            writeAndWait(client, 500, 1);
+        }
+
+        awaitConvergence(leader, follower);
+    }
+
+    @Test
+    public void followerResyncsAfterTheLogOverflows() throws Exception {
+        QuadTree index = new QuadTree();
+        for (int id = 0; id < IDS_COUNT; id++)
+            index.addNeighbour(id, randomLatitude(), randomLongitude());
+
+        QuadTreeServer leader = start(leader(index, 16));
+        QuadTreeServer follower = start(follower(leader));
+
+        try (Socket client = connect(leader)) {
+            writeAndWait(client, 10, 1);
+            awaitConvergence(leader, follower);
+
+            // Every write of a batch arrives in the same turn of the loop, more writes than the log holds
+            writeAndWait(client, 300, 300);
+            writeAndWait(client, 100, 1);
+        }
+
+        awaitConvergence(leader, follower);
+    }
+
+    private QuadTreeServer leader(QuadTree index, int logCapacity) throws IOException {
+        QuadTreeServer leader = new QuadTreeServer(index, 0, 1);
+        leader.enableReplication(logCapacity);
+        return leader;
+    }
+
+    private QuadTreeServer follower(QuadTreeServer leader) throws IOException {
+        QuadTreeServer follower = new QuadTreeServer(new QuadTree(), 0, 1);
+        follower.followLeader(new InetSocketAddress("127.0.0.1", leader.getPort()), QuadTree::new);
+        return follower;
+    }
+
+    private QuadTreeServer start(QuadTreeServer server) {
+        Thread thread = new Thread(server, "quadtree-server-test");
+        thread.start();
+        mServers.add(server);
+        mThreads.add(thread);
+        return server;
+    }
+
+    private static Socket connect(QuadTreeServer server) throws IOException {
+        Socket socket = new Socket("127.0.0.1", server.getPort());
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    /**
+     * Sends random inserts, moves and removes, in batches sent together, waiting for the answers of each batch
+     */
+    private void writeAndWait(Socket socket, int count, int batchSize) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        for (int written = 0; written < count; written += batchSize) {
+            int batch = Math.min(batchSize, count - written);
+            for (int i = 0; i < batch; i++) {
+                long id = mRandom.nextInt(IDS_COUNT);
+                int operation = mRandom.nextInt(10);
+
+                if (operation < 8) {
+                    output.writeInt(QuadTreeProtocol.FRAME_HEADER_SIZE + 24);
+                    output.writeByte(operation < 2 ? QuadTreeProtocol.INSERT : QuadTreeProtocol.MOVE);
+                    output.writeLong(mRequestId++);
+                    output.writeLong(id);
+                    output.writeDouble(randomLatitude());
+                    output.writeDouble(randomLongitude());
+                } else {
+                    output.writeInt(QuadTreeProtocol.FRAME_HEADER_SIZE + 8);
+                    output.writeByte(QuadTreeProtocol.REMOVE);
+                    output.writeLong(mRequestId++);
+                    output.writeLong(id);
+                }
+            }
+            output.flush();
+
+            for (int i = 0; i < batch; i++) {
+                int length = input.readInt();
+                byte status = input.readByte();
+                assertTrue("Unexpected status " + status, status == QuadTreeProtocol.STATUS_OK || status == QuadTreeProtocol.STATUS_NOT_FOUND);
+                input.skipBytes(length - 1);
+            }
+        }
+    }
+
+    /**
+     * Waits for the follower to apply the last write of the leader, then compares the ids in every area
+     */
+    private static void awaitConvergence(QuadTreeServer leader, QuadTreeServer follower) throws Exception {
+        long deadline = System.currentTimeMillis() + CONVERGENCE_TIMEOUT_MILLIS;
+        while (follower.getSequence() != leader.getSequence()) {
+            assertTrue("The follower is at " + follower.getSequence() + ", the leader at " + leader.getSequence(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        try (Socket leaderClient = connect(leader); Socket followerClient = connect(follower)) {
+            double height = 180.0 / GRID_SIZE;
+            double width = 360.0 / GRID_SIZE;
+
+            for (int row = 0; row < GRID_SIZE; row++) {
+                for (int column = 0; column < GRID_SIZE; column++) {
+                    double minLatitude = -90 + row * height;
+                    double minLongitude = -180 + column * width;
+                    assertEquals(findIds(leaderClient, minLatitude, minLongitude, minLatitude + height, minLongitude + width),
+                            findIds(followerClient, minLatitude, minLongitude, minLatitude + height, minLongitude + width));
+                }
+            }
+        }
+    }
+
+    private static Set<Long> findIds(Socket socket, double minLatitude, double minLongitude,
+                                     double maxLatitude, double maxLongitude) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        output.writeInt(QuadTreeProtocol.FRAME_HEADER_SIZE + 32);
+        output.writeByte(QuadTreeProtocol.RANGE);
+        output.writeLong(0);
+        output.writeDouble(minLatitude);
+        output.writeDouble(minLongitude);
+        output.writeDouble(maxLatitude);
+        output.writeDouble(maxLongitude);
+        output.flush();
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        input.readInt();
+        assertEquals(QuadTreeProtocol.STATUS_OK, input.readByte());
+        input.readLong();
+
+        Set<Long> ids = new HashSet<>();
+        int count = input.readInt();
+        for (int i = 0; i < count; i++)
+            ids.add(input.readLong());
+
+        return ids;
+    }
+
+    private double randomLatitude() {
+        return mRandom.nextDouble() * 170 - 85;
+    }
+
+    private double randomLongitude() {
+        return mRandom.nextDouble() * 350 - 175;
+    }
+}